@@ -0,0 +1,141 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Run;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+/**
+ * A {@link LockableResourcesManager} which runs without Jenkins: lock steps are
+ * represented by mocked contexts and builds, and resuming them is only reported
+ * to the {@link ProceedListener}.
+ */
+public class HeadlessLockableResourcesManager extends LockableResourcesManager {
+
+	private boolean persistent;
+
+	private ProceedListener listener;
+
+	private long proceeded;
+
+	public HeadlessLockableResourcesManager(File configFile) {
+		super(configFile);
+	}
+
+	/**
+	 * Whether {@link #save()} writes to the disk, off by default to measure the scheduling only.
+	 */
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	public void setProceedListener(ProceedListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Number of lock steps resumed since the creation of the manager.
+	 */
+	public long getProceeded() {
+		return proceeded;
+	}
+
+	@Override
+	public synchronized void save() {
+		if (persistent) {
+			super.save();
+		}
+	}
+
+	@Override
+	void proceed(List<String> resourceNames, StepContext context, String resourceDescription,
+			String variable, boolean inversePrecedence) {
+		proceeded++;
+		if (listener != null) {
+			listener.proceeded(resourceNames, context, inversePrecedence);
+		}
+	}
+
+	/**
+	 * Adds resources named {@code prefix0} to {@code prefix<count-1>}, with the given labels.
+	 */
+	public synchronized void addResources(String prefix, int count, String labels) {
+		List<LockableResource> resources = getResources();
+		for (int i = 0; i < count; i++) {
+			resources.add(new LockableResource(prefix + i, "", labels, null));
+		}
+	}
+
+	/**
+	 * Requirement on the given resources, like {@code lock('name')}.
+	 */
+	public LockableResourcesStruct requireNames(String... names) {
+		return new LockableResourcesStruct(Arrays.asList(names));
+	}
+
+	/**
+	 * Requirement on a label, like {@code lock(label: 'label', quantity: 2)}, 0 meaning all.
+	 */
+	public static LockableResourcesStruct requireLabel(String label, int quantity) {
+		return new LockableResourcesStruct(null, label, quantity);
+	}
+
+	public static List<LockableResourcesStruct> requirements(LockableResourcesStruct... structs) {
+		return Arrays.asList(structs);
+	}
+
+	/**
+	 * A running build of the given job.
+	 */
+	public static Run<?, ?> mockRun(String job, int number, long queueId) {
+		return mockRun(job, number, queueId, System.currentTimeMillis());
+	}
+
+	/**
+	 * A running build of the given job, started at the given time, which orders the builds using {@code inversePrecedence}.
+	 */
+	public static Run<?, ?> mockRun(String job, int number, long queueId, long startTime) {
+		Run<?, ?> run = mock(Run.class);
+		when(run.getExternalizableId()).thenReturn(job + "#" + number);
+		when(run.getQueueId()).thenReturn(queueId);
+		when(run.isBuilding()).thenReturn(true);
+		when(run.getStartTimeInMillis()).thenReturn(startTime);
+		when(run.getFullDisplayName()).thenReturn(job + " #" + number);
+		return run;
+	}
+
+	/**
+	 * The context of a lock step of the given build.
+	 */
+	public static StepContext mockContext(Run<?, ?> run) {
+		StepContext context = mock(StepContext.class);
+		try {
+			when(context.get(Run.class)).thenReturn((Run) run);
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+		return context;
+	}
+
+	/**
+	 * Notified when a queued or new lock step gets its resources.
+	 */
+	public interface ProceedListener {
+		void proceeded(List<String> resourceNames, StepContext context, boolean inversePrecedence);
+	}
+}
@@ -0,0 +1,38 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.benchmark;
+
+import org.junit.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks from the {@code benchmark} profile: {@code mvn test -P benchmark}.
+ * {@code -Dbenchmark.include=<regexp>} selects the benchmarks, all of this package by default
+ * (e.g. {@code ResourcesFootprintBenchmark} for the memory used by the resources), and the results are written
+ * to {@code target/jmh-result.json} so that they can be compared between two changes.
+ */
+public class BenchmarkRunner {
+
+	@Test
+	public void runBenchmarks() throws Exception {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(System.getProperty("benchmark.include", BenchmarkRunner.class.getPackage().getName()))
+				.shouldFailOnError(true)
+				.resultFormat(ResultFormatType.JSON)
+				.result(System.getProperty("benchmark.result", "target/jmh-result.json"));
+		String params = System.getProperty("benchmark.poolSize");
+		if (params != null) {
+			options.param("poolSize", params.split(","));
+		}
+		new Runner(options.build()).run();
+	}
+}
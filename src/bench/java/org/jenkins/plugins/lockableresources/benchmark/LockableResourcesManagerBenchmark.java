@@ -0,0 +1,180 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.benchmark;
+
+import hudson.Util;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jenkins.plugins.lockableresources.HeadlessLockableResourcesManager;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hot paths of the manager, on pools of resources of several sizes.
+ * Every resource has the label {@code all} and one of ten {@code groupN} labels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockableResourcesManagerBenchmark {
+
+	private static final Logger LOGGER = Logger.getLogger(LockableResourcesManagerBenchmark.class.getName());
+
+	static final int GROUPS = 10;
+
+	@State(Scope.Benchmark)
+	public static class Pool {
+
+		@Param({ "100", "1000", "10000" })
+		public int poolSize;
+
+		public File home;
+
+		public HeadlessLockableResourcesManager manager;
+
+		/* last resource, the worst case of a linear search */
+		public String lastName;
+
+		public List<LockableResourcesStruct> twoOfGroup;
+
+		public LockableResourcesStruct groupStruct;
+
+		public Run<?, ?> build;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			home = Files.createTempDirectory("lockable-resources-benchmark").toFile();
+			manager = new HeadlessLockableResourcesManager(new File(home, "lockable-resources.xml"));
+			List<LockableResource> resources = manager.getResources();
+			for (int i = 0; i < poolSize; i++) {
+				resources.add(new LockableResource("resource" + i, "", "all group" + (i % GROUPS), null));
+			}
+			lastName = "resource" + (poolSize - 1);
+			groupStruct = HeadlessLockableResourcesManager.requireLabel("group" + (GROUPS - 1), 2);
+			twoOfGroup = HeadlessLockableResourcesManager.requirements(groupStruct);
+			build = HeadlessLockableResourcesManager.mockRun("holder", 1, 1);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException, InterruptedException {
+			Util.deleteRecursive(home);
+		}
+	}
+
+	/**
+	 * Lock steps waiting for the first resource of the pool, and for a second one held by another build,
+	 * so that every unlock goes through all of them without handing the resource over.
+	 */
+	@State(Scope.Benchmark)
+	public static class Waiting {
+
+		@Param({ "0", "10", "100", "1000" })
+		public int queueDepth;
+
+		public Set<LockableResource> first;
+
+		public List<String> firstName;
+
+		@Setup(Level.Trial)
+		public void setUp(Pool pool) {
+			LockableResource busy = pool.manager.fromName("resource1");
+			busy.setBuild(HeadlessLockableResourcesManager.mockRun("blocker", 1, 2));
+			for (int i = 0; i < queueDepth; i++) {
+				Run<?, ?> waiter = HeadlessLockableResourcesManager.mockRun("waiter", i + 1, 100 + i);
+				pool.manager.queueContext(HeadlessLockableResourcesManager.mockContext(waiter),
+						HeadlessLockableResourcesManager.requirements(pool.manager.requireNames("resource0", "resource1")),
+						"resource0, resource1");
+			}
+			first = new HashSet<LockableResource>(Collections.singleton(pool.manager.fromName("resource0")));
+			firstName = Arrays.asList("resource0");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown(Pool pool) {
+			pool.manager.fromName("resource1").setBuild(null);
+		}
+	}
+
+	@Benchmark
+	public LockableResource fromName(Pool pool) {
+		return pool.manager.fromName(pool.lastName);
+	}
+
+	@Benchmark
+	public List<LockableResource> getResourcesWithLabel(Pool pool) {
+		return pool.manager.getResourcesWithLabel("group" + (GROUPS - 1), null);
+	}
+
+	@Benchmark
+	public Set<LockableResource> checkResourcesAvailability(Pool pool) {
+		return pool.manager.checkResourcesAvailability(pool.twoOfGroup, null, null);
+	}
+
+	@Benchmark
+	public List<LockableResource> tryQueue(Pool pool) throws ExecutionException {
+		List<LockableResource> selected = pool.manager.tryQueue(pool.groupStruct, 42, "freestyle", 2,
+				Collections.<String, Object>emptyMap(), LOGGER);
+		if (selected != null) {
+			for (LockableResource r : selected) {
+				r.unqueue();
+			}
+		}
+		return selected;
+	}
+
+	@Benchmark
+	public boolean lockUnlock(Pool pool, Waiting waiting) {
+		boolean locked = pool.manager.lock(waiting.first, pool.build, null);
+		pool.manager.unlockNames(waiting.firstName, pool.build, null, false);
+		return locked;
+	}
+
+	/**
+	 * Writes the whole pool, as every lock and unlock does with the default persistence.
+	 */
+	@Benchmark
+	public void save(Pool pool) {
+		pool.manager.setPersistent(true);
+		try {
+			for (LockableResource r : pool.manager.getResources()) {
+				r.setDirty(true);
+			}
+			pool.manager.save();
+		} finally {
+			pool.manager.setPersistent(false);
+		}
+	}
+}
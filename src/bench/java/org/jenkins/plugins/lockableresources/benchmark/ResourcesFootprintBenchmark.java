@@ -0,0 +1,108 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.benchmark;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkins.plugins.lockableresources.HeadlessLockableResourcesManager;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap retained by the resources of a pool loaded from the configuration file,
+ * reported as the {@code bytesPerResource} secondary result. Like on a real
+ * instance, half the resources are queued by one of a few jobs.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResourcesFootprintBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class SavedPool {
+
+		@Param({ "10000" })
+		public int poolSize;
+
+		public File home;
+
+		public File configFile;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			home = Files.createTempDirectory("lockable-resources-footprint").toFile();
+			configFile = new File(home, "lockable-resources.xml");
+			HeadlessLockableResourcesManager manager = new HeadlessLockableResourcesManager(configFile);
+			List<LockableResource> resources = manager.getResources();
+			for (int i = 0; i < poolSize; i++) {
+				LockableResource r = new LockableResource("resource" + i, "",
+						"all group" + (i % LockableResourcesManagerBenchmark.GROUPS), null);
+				if (i % 2 == 0) {
+					r.setQueued(i + 1, "job" + (i % LockableResourcesManagerBenchmark.GROUPS));
+				}
+				resources.add(r);
+			}
+			manager.setPersistent(true);
+			manager.save();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException, InterruptedException {
+			Util.deleteRecursive(home);
+		}
+	}
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Footprint {
+
+		public long bytesPerResource;
+	}
+
+	@Benchmark
+	public HeadlessLockableResourcesManager load(SavedPool pool, Footprint footprint) {
+		long before = usedHeap();
+		HeadlessLockableResourcesManager manager = new HeadlessLockableResourcesManager(pool.configFile);
+		manager.load();
+		// the resources themselves, the label index is built on first use
+		footprint.bytesPerResource = (usedHeap() - before) / manager.getResources().size();
+		return manager;
+	}
+
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			memory.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,84 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.HeadlessLockableResourcesManager;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+
+/**
+ * One lock step of the trace: when it starts, what it asks for and how long it holds the resources.
+ * Times are in milliseconds of simulated time.
+ */
+public final class Request {
+
+	public final int id;
+	public final long arrival;
+	public final long holdTime;
+	public final boolean inversePrecedence;
+	/* label of each requirement, the first one is the main one */
+	public final List<String> labels;
+	public final List<Integer> quantities;
+
+	public Request(int id, long arrival, long holdTime, boolean inversePrecedence,
+			List<String> labels, List<Integer> quantities) {
+		this.id = id;
+		this.arrival = arrival;
+		this.holdTime = holdTime;
+		this.inversePrecedence = inversePrecedence;
+		this.labels = Collections.unmodifiableList(new ArrayList<String>(labels));
+		this.quantities = Collections.unmodifiableList(new ArrayList<Integer>(quantities));
+	}
+
+	public String getMainLabel() {
+		return labels.get(0);
+	}
+
+	public List<LockableResourcesStruct> toRequirements() {
+		List<LockableResourcesStruct> requirements = new ArrayList<LockableResourcesStruct>();
+		for (int i = 0; i < labels.size(); i++) {
+			requirements.add(HeadlessLockableResourcesManager.requireLabel(labels.get(i), quantities.get(i)));
+		}
+		return requirements;
+	}
+
+	/**
+	 * {@code arrival,holdTime,inversePrecedence,label:quantity[;label:quantity...]}
+	 */
+	public String toCsv() {
+		StringBuilder b = new StringBuilder();
+		b.append(arrival).append(',').append(holdTime).append(',').append(inversePrecedence).append(',');
+		for (int i = 0; i < labels.size(); i++) {
+			if (i > 0) {
+				b.append(';');
+			}
+			b.append(labels.get(i)).append(':').append(quantities.get(i));
+		}
+		return b.toString();
+	}
+
+	public static Request fromCsv(int id, String line) {
+		String[] fields = line.split(",");
+		if (fields.length != 4) {
+			throw new IllegalArgumentException("Invalid trace line: " + line);
+		}
+		List<String> labels = new ArrayList<String>();
+		List<Integer> quantities = new ArrayList<Integer>();
+		for (String requirement : fields[3].split(";")) {
+			int colon = requirement.lastIndexOf(':');
+			labels.add(requirement.substring(0, colon));
+			quantities.add(Integer.parseInt(requirement.substring(colon + 1)));
+		}
+		return new Request(id, Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+				Boolean.parseBoolean(fields[2]), labels, quantities);
+	}
+}
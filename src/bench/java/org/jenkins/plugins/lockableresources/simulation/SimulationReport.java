@@ -0,0 +1,170 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Results of a {@link Simulator} run. Times are in milliseconds of simulated time,
+ * except the time spent in the manager, which is real time.
+ */
+public class SimulationReport {
+
+	private final Workload workload;
+	private final int requests;
+
+	private final List<Long> waits = new ArrayList<Long>();
+	private final Map<String, List<Long>> waitsByLabel = new LinkedHashMap<String, List<Long>>();
+	private long busy;
+	private long end;
+	private int overtaking;
+	private int unserved;
+	private long managerNanos;
+	private long managerCalls;
+
+	SimulationReport(Workload workload, int requests) {
+		this.workload = workload;
+		this.requests = requests;
+	}
+
+	void served(Request request, long wait, int resources, boolean overtaking) {
+		waits.add(wait);
+		List<Long> labelWaits = waitsByLabel.get(request.getMainLabel());
+		if (labelWaits == null) {
+			labelWaits = new ArrayList<Long>();
+			waitsByLabel.put(request.getMainLabel(), labelWaits);
+		}
+		labelWaits.add(wait);
+		busy += request.holdTime * resources;
+		if (overtaking) {
+			this.overtaking++;
+		}
+	}
+
+	void setEnd(long end) {
+		this.end = Math.max(this.end, end);
+	}
+
+	void setUnserved(int unserved) {
+		this.unserved = unserved;
+	}
+
+	void addManagerTime(long nanos) {
+		managerNanos += nanos;
+		managerCalls++;
+	}
+
+	public int getServed() {
+		return waits.size();
+	}
+
+	public int getUnserved() {
+		return unserved;
+	}
+
+	/**
+	 * Served requests per minute of simulated time.
+	 */
+	public double getThroughput() {
+		return end == 0 ? 0 : waits.size() * 60000.0 / end;
+	}
+
+	/**
+	 * Percentile of the wait time, {@code p} between 0 and 100.
+	 */
+	public long getWaitPercentile(double p) {
+		return percentile(waits, p);
+	}
+
+	/**
+	 * Share of the time the resources were locked, until the last release.
+	 */
+	public double getUtilization() {
+		long capacity = (long) workload.getPoolSize() * end;
+		return capacity == 0 ? 0 : (double) busy / capacity;
+	}
+
+	/**
+	 * Jain's fairness index of the mean wait time per label: 1 when all labels wait as long,
+	 * down to 1/n when one label out of n does all the waiting.
+	 */
+	public double getFairness() {
+		double sum = 0;
+		double squares = 0;
+		for (List<Long> labelWaits : waitsByLabel.values()) {
+			double mean = mean(labelWaits);
+			sum += mean;
+			squares += mean * mean;
+		}
+		return squares == 0 ? 1 : sum * sum / (waitsByLabel.size() * squares);
+	}
+
+	/**
+	 * Requests which got their resources while an older request of the same label was still waiting.
+	 */
+	public int getOvertaking() {
+		return overtaking;
+	}
+
+	public double getManagerMicrosPerCall() {
+		return managerCalls == 0 ? 0 : managerNanos / 1000.0 / managerCalls;
+	}
+
+	private static long percentile(List<Long> values, double p) {
+		if (values.isEmpty()) {
+			return 0;
+		}
+		long[] sorted = new long[values.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = values.get(i);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static double mean(List<Long> values) {
+		if (values.isEmpty()) {
+			return 0;
+		}
+		double sum = 0;
+		for (long value : values) {
+			sum += value;
+		}
+		return sum / values.size();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append("Workload: ").append(workload).append('\n');
+		b.append(String.format(Locale.ROOT, "Served %d/%d requests (%d never served) in %.1f min%n",
+				waits.size(), requests, unserved, end / 60000.0));
+		b.append(String.format(Locale.ROOT, "Throughput: %.2f requests/min, utilization: %.1f%%%n",
+				getThroughput(), getUtilization() * 100));
+		b.append(String.format(Locale.ROOT, "Wait (s): mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+				mean(waits) / 1000, getWaitPercentile(50) / 1000.0, getWaitPercentile(90) / 1000.0,
+				getWaitPercentile(99) / 1000.0, getWaitPercentile(100) / 1000.0));
+		b.append(String.format(Locale.ROOT, "Fairness: %.3f across labels, %d requests overtook an older one%n",
+				getFairness(), overtaking));
+		for (Map.Entry<String, List<Long>> label : waitsByLabel.entrySet()) {
+			b.append(String.format(Locale.ROOT, "  %-12s %6d requests, wait mean %.1f s, p90 %.1f s%n",
+					label.getKey(), label.getValue().size(), mean(label.getValue()) / 1000,
+					percentile(label.getValue(), 90) / 1000.0));
+		}
+		b.append(String.format(Locale.ROOT, "Manager: %d calls, %.1f us per call%n",
+				managerCalls, getManagerMicrosPerCall()));
+		return b.toString();
+	}
+}
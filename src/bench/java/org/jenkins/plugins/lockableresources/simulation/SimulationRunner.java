@@ -0,0 +1,42 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.simulation;
+
+import static org.junit.Assert.assertEquals;
+
+import hudson.Util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Runs a simulation from the {@code benchmark} profile:
+ * {@code mvn test -P benchmark -Dbenchmark.test=SimulationRunner -Dsim.requests=10000 ...},
+ * see {@link Workload} for the settings. Giving the same {@code sim.trace} file to two runs
+ * replays the same lock steps, to compare two versions of the scheduling.
+ */
+public class SimulationRunner {
+
+	@Test
+	public void simulate() throws Exception {
+		Workload workload = Workload.fromProperties(System.getProperties());
+		List<Request> trace = workload.getTrace();
+		File home = Files.createTempDirectory("lockable-resources-simulation").toFile();
+		try {
+			SimulationReport report = new Simulator(home, workload).run(trace);
+			System.out.println(report);
+			assertEquals("every request got its resources", trace.size(), report.getServed());
+		} finally {
+			Util.deleteRecursive(home);
+		}
+	}
+}
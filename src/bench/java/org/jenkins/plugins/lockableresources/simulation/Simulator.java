@@ -0,0 +1,158 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.simulation;
+
+import hudson.model.Run;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import org.jenkins.plugins.lockableresources.HeadlessLockableResourcesManager;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+/**
+ * Replays a trace of lock steps against a {@link HeadlessLockableResourcesManager}, in simulated time:
+ * every request goes through {@code lockOrQueue} when it arrives, and through {@code unlockNames}
+ * once it held its resources for its hold time. The manager is driven from a single thread, and
+ * the time it spends in these calls is measured in real time.
+ */
+public class Simulator implements HeadlessLockableResourcesManager.ProceedListener {
+
+	/* start time of the simulated builds, the manager ignores the ones which did not start */
+	private static final long EPOCH = 1000000000000L;
+
+	private final Workload workload;
+	private final HeadlessLockableResourcesManager manager;
+
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private final Map<StepContext, Step> steps = new IdentityHashMap<StepContext, Step>();
+	/* ids of the requests waiting, per main label, to count the ones served out of order */
+	private final Map<String, TreeSet<Integer>> waiting = new HashMap<String, TreeSet<Integer>>();
+
+	private long now;
+	private long sequence;
+	private SimulationReport report;
+
+	public Simulator(File home, Workload workload) {
+		this.workload = workload;
+		this.manager = new HeadlessLockableResourcesManager(new File(home, "lockable-resources.xml"));
+		List<LockableResource> resources = manager.getResources();
+		for (Map.Entry<String, Integer> label : workload.getPool().entrySet()) {
+			for (int i = 0; i < label.getValue(); i++) {
+				resources.add(new LockableResource(label.getKey() + "-" + i, "", label.getKey(), null));
+			}
+		}
+		manager.setProceedListener(this);
+	}
+
+	public HeadlessLockableResourcesManager getManager() {
+		return manager;
+	}
+
+	public SimulationReport run(List<Request> trace) {
+		report = new SimulationReport(workload, trace.size());
+		for (Request request : trace) {
+			events.add(new Event(request.arrival, sequence++, new Step(request), true));
+		}
+		while (!events.isEmpty()) {
+			Event event = events.poll();
+			now = event.time;
+			if (event.arrival) {
+				arrive(event.step);
+			} else {
+				release(event.step);
+			}
+		}
+		report.setUnserved(steps.size());
+		return report;
+	}
+
+	private void arrive(Step step) {
+		Request request = step.request;
+		step.run = HeadlessLockableResourcesManager.mockRun("job-" + request.getMainLabel(), request.id + 1,
+				request.id + 1, EPOCH + request.arrival);
+		step.context = HeadlessLockableResourcesManager.mockContext(step.run);
+		steps.put(step.context, step);
+		TreeSet<Integer> ids = waiting.get(request.getMainLabel());
+		if (ids == null) {
+			ids = new TreeSet<Integer>();
+			waiting.put(request.getMainLabel(), ids);
+		}
+		ids.add(request.id);
+
+		long start = System.nanoTime();
+		manager.lockOrQueue(step.context, step.run, request.toRequirements(), "request " + request.id, null,
+				request.inversePrecedence, null);
+		report.addManagerTime(System.nanoTime() - start);
+	}
+
+	private void release(Step step) {
+		long start = System.nanoTime();
+		manager.unlockNames(step.locked, step.run, null, step.request.inversePrecedence);
+		report.addManagerTime(System.nanoTime() - start);
+		report.setEnd(now);
+	}
+
+	@Override
+	public void proceeded(List<String> resourceNames, StepContext context, boolean inversePrecedence) {
+		Step step = steps.remove(context);
+		if (step == null) {
+			throw new IllegalStateException("Unknown lock step resumed: " + context);
+		}
+		Request request = step.request;
+		step.locked = new ArrayList<String>(resourceNames);
+
+		TreeSet<Integer> ids = waiting.get(request.getMainLabel());
+		ids.remove(request.id);
+		boolean overtaking = !ids.isEmpty() && ids.first() < request.id;
+
+		report.served(request, now - request.arrival, resourceNames.size(), overtaking);
+		events.add(new Event(now + request.holdTime, sequence++, step, false));
+	}
+
+	private static final class Step {
+		final Request request;
+		Run<?, ?> run;
+		StepContext context;
+		List<String> locked;
+
+		Step(Request request) {
+			this.request = request;
+		}
+	}
+
+	private static final class Event implements Comparable<Event> {
+		final long time;
+		final long sequence;
+		final Step step;
+		final boolean arrival;
+
+		Event(long time, long sequence, Step step, boolean arrival) {
+			this.time = time;
+			this.sequence = sequence;
+			this.step = step;
+			this.arrival = arrival;
+		}
+
+		@Override
+		public int compareTo(Event o) {
+			if (time != o.time) {
+				return time < o.time ? -1 : 1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Describes the resources and the lock steps of a simulation, and generates a reproducible trace from them.
+ * <p>
+ * All the settings can be given as properties, e.g. system properties of {@link SimulationRunner}:
+ * <ul>
+ * <li>{@code sim.pool}: resources per label, e.g. {@code linux:20,windows:10,gpu:4}</li>
+ * <li>{@code sim.labels}: label mix of the requests as {@code label:weight:quantity}, e.g. {@code linux:6:1,gpu:1:2}</li>
+ * <li>{@code sim.requests}: number of requests</li>
+ * <li>{@code sim.arrivalRate}: mean requests per second, arrivals follow a Poisson process</li>
+ * <li>{@code sim.holdTime}: mean hold time in seconds</li>
+ * <li>{@code sim.holdTime.distribution}: {@code exponential}, {@code uniform} (0 to twice the mean) or {@code fixed}</li>
+ * <li>{@code sim.extra}: probability that a request also locks one resource of another label, like {@code extra}</li>
+ * <li>{@code sim.inversePrecedence}: ratio of requests using {@code inversePrecedence}</li>
+ * <li>{@code sim.seed}: seed of the trace</li>
+ * <li>{@code sim.trace}: CSV file of the trace, replayed instead of generating one if it exists, written otherwise</li>
+ * </ul>
+ */
+public class Workload {
+
+	private Map<String, Integer> pool = parseCounts("linux:20,windows:10,gpu:4");
+	private final Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+	private final Map<String, Integer> quantities = new LinkedHashMap<String, Integer>();
+	private int requests = 2000;
+	private double arrivalRate = 1;
+	private double holdTime = 20;
+	private String holdTimeDistribution = "exponential";
+	private double extra = 0.1;
+	private double inversePrecedence = 0;
+	private long seed = 42;
+	private File trace;
+
+	public Workload() {
+		setLabels("linux:6:1,windows:3:1,gpu:1:2");
+	}
+
+	public static Workload fromProperties(Properties p) {
+		Workload w = new Workload();
+		if (p.getProperty("sim.pool") != null) {
+			w.pool = parseCounts(p.getProperty("sim.pool"));
+		}
+		if (p.getProperty("sim.labels") != null) {
+			w.setLabels(p.getProperty("sim.labels"));
+		}
+		w.requests = Integer.parseInt(p.getProperty("sim.requests", String.valueOf(w.requests)));
+		w.arrivalRate = Double.parseDouble(p.getProperty("sim.arrivalRate", String.valueOf(w.arrivalRate)));
+		w.holdTime = Double.parseDouble(p.getProperty("sim.holdTime", String.valueOf(w.holdTime)));
+		w.holdTimeDistribution = p.getProperty("sim.holdTime.distribution", w.holdTimeDistribution);
+		w.extra = Double.parseDouble(p.getProperty("sim.extra", String.valueOf(w.extra)));
+		w.inversePrecedence = Double.parseDouble(p.getProperty("sim.inversePrecedence", String.valueOf(w.inversePrecedence)));
+		w.seed = Long.parseLong(p.getProperty("sim.seed", String.valueOf(w.seed)));
+		if (p.getProperty("sim.trace") != null) {
+			w.trace = new File(p.getProperty("sim.trace"));
+		}
+		return w;
+	}
+
+	private void setLabels(String spec) {
+		weights.clear();
+		quantities.clear();
+		for (String entry : spec.split(",")) {
+			String[] fields = entry.trim().split(":");
+			if (fields.length != 3) {
+				throw new IllegalArgumentException("Expected label:weight:quantity, got " + entry);
+			}
+			weights.put(fields[0], Integer.parseInt(fields[1]));
+			quantities.put(fields[0], Integer.parseInt(fields[2]));
+		}
+	}
+
+	private static Map<String, Integer> parseCounts(String spec) {
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (String entry : spec.split(",")) {
+			String[] fields = entry.trim().split(":");
+			if (fields.length != 2) {
+				throw new IllegalArgumentException("Expected label:count, got " + entry);
+			}
+			counts.put(fields[0], Integer.parseInt(fields[1]));
+		}
+		return counts;
+	}
+
+	/**
+	 * Number of resources per label.
+	 */
+	public Map<String, Integer> getPool() {
+		return pool;
+	}
+
+	public int getPoolSize() {
+		int size = 0;
+		for (int count : pool.values()) {
+			size += count;
+		}
+		return size;
+	}
+
+	/**
+	 * The trace of the simulation: replayed from {@code sim.trace} if it exists, generated otherwise.
+	 */
+	public List<Request> getTrace() throws IOException {
+		if (trace != null && trace.isFile()) {
+			List<Request> requests = new ArrayList<Request>();
+			for (String line : Files.readAllLines(trace.toPath(), StandardCharsets.UTF_8)) {
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					requests.add(Request.fromCsv(requests.size(), line));
+				}
+			}
+			return requests;
+		}
+		List<Request> requests = generate();
+		if (trace != null) {
+			List<String> lines = new ArrayList<String>();
+			lines.add("# arrival,holdTime,inversePrecedence,label:quantity;...");
+			for (Request r : requests) {
+				lines.add(r.toCsv());
+			}
+			Files.write(trace.toPath(), lines, StandardCharsets.UTF_8);
+		}
+		return requests;
+	}
+
+	public List<Request> generate() {
+		Random random = new Random(seed);
+		List<String> labels = new ArrayList<String>(weights.keySet());
+		int totalWeight = 0;
+		for (int weight : weights.values()) {
+			totalWeight += weight;
+		}
+
+		List<Request> trace = new ArrayList<Request>(requests);
+		double now = 0;
+		for (int i = 0; i < requests; i++) {
+			now += exponential(random, 1000 / arrivalRate);
+
+			String label = labels.get(labels.size() - 1);
+			int pick = random.nextInt(totalWeight);
+			for (String l : labels) {
+				pick -= weights.get(l);
+				if (pick < 0) {
+					label = l;
+					break;
+				}
+			}
+			List<String> requestLabels = new ArrayList<String>();
+			List<Integer> requestQuantities = new ArrayList<Integer>();
+			requestLabels.add(label);
+			requestQuantities.add(quantities.get(label));
+			if (labels.size() > 1 && random.nextDouble() < extra) {
+				String other = label;
+				while (other.equals(label)) {
+					other = labels.get(random.nextInt(labels.size()));
+				}
+				requestLabels.add(other);
+				requestQuantities.add(1);
+			}
+
+			trace.add(new Request(i, (long) now, holdTime(random), random.nextDouble() < inversePrecedence,
+					requestLabels, requestQuantities));
+		}
+		return trace;
+	}
+
+	private long holdTime(Random random) {
+		double mean = holdTime * 1000;
+		if ("fixed".equals(holdTimeDistribution)) {
+			return (long) mean;
+		} else if ("uniform".equals(holdTimeDistribution)) {
+			return (long) (random.nextDouble() * 2 * mean);
+		} else if ("exponential".equals(holdTimeDistribution)) {
+			return (long) exponential(random, mean);
+		}
+		throw new IllegalArgumentException("Unknown hold time distribution " + holdTimeDistribution);
+	}
+
+	private static double exponential(Random random, double mean) {
+		return -mean * Math.log(1 - random.nextDouble());
+	}
+
+	@Override
+	public String toString() {
+		return "pool=" + pool + " labels=" + weights + " quantities=" + quantities + " requests=" + requests
+				+ " arrivalRate=" + arrivalRate + "/s holdTime=" + holdTime + "s (" + holdTimeDistribution + ")"
+				+ " extra=" + extra + " inversePrecedence=" + inversePrecedence + " seed=" + seed;
+	}
+}
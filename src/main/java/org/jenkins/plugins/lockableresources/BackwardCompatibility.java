@@ -28,10 +28,26 @@ import java.util.logging.Logger;
 public final class BackwardCompatibility {
 	private static final Logger LOG = Logger.getLogger(BackwardCompatibility.class.getName());
 
-	@Initializer(after = InitMilestone.JOB_LOADED)
+	/*
+	 * Version of the migrations below, to be increased when one is added.
+	 * Once recorded by the manager, they are not run again at startup.
+	 */
+	static final int MIGRATION_VERSION = 1;
+
+	/*
+	 * Attained once the migrations ran, so that the contexts they queue are known.
+	 */
+	static final String MIGRATED = "lockable-resources-migrated";
+
+	@Initializer(after = InitMilestone.JOB_LOADED, attains = MIGRATED)
 	public static void compatibilityMigration() {
+		LockableResourcesManager manager = LockableResourcesManager.get();
+		if (manager.getMigrationVersion() >= MIGRATION_VERSION) {
+			LOG.log(Level.FINE, "lockable-resource-plugin compatibility migration already done");
+			return;
+		}
 		LOG.log(Level.FINE, "lockable-resource-plugin compatibility migration task run");
-		List<LockableResource> resources = LockableResourcesManager.get().getResources();
+		List<LockableResource> resources = manager.getResources();
 		for (LockableResource resource : resources) {
 			List<StepContext> queuedContexts = resource.getQueuedContexts();
 			if (queuedContexts.size() > 0) {
@@ -39,10 +55,11 @@ public final class BackwardCompatibility {
 					List<String> resourcesNames = new ArrayList<String>();
 					resourcesNames.add(resource.getName());
 					LockableResourcesStruct resourceHolder = new LockableResourcesStruct(resourcesNames, "", 0);
-					LockableResourcesManager.get().queueContext(queuedContext, Arrays.asList(resourceHolder), resource.getName());
+					manager.queueContext(queuedContext, Arrays.asList(resourceHolder), resource.getName());
 				}
 				queuedContexts.clear();
 			}
 		}
+		manager.setMigrationVersion(MIGRATION_VERSION);
 	}
 }
\ No newline at end of file
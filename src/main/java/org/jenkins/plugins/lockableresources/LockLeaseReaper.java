@@ -0,0 +1,42 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews the leases of the locks held by running builds, and reclaims the
+ * locks of builds which are gone or finished without releasing them.
+ */
+@Extension
+public class LockLeaseReaper extends AsyncPeriodicWork {
+
+	public LockLeaseReaper() {
+		super("Lockable resources lease reaper");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return Math.max(TimeUnit.MINUTES.toMillis(1), LockableResource.LEASE_DURATION / 4);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		List<String> reclaimed = LockableResourcesManager.get().reclaimExpiredLeases();
+		if (!reclaimed.isEmpty()) {
+			listener.getLogger().println("Reclaimed resources with an expired lock lease: " + reclaimed);
+		}
+	}
+}
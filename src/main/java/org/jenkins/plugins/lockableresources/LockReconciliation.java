@@ -0,0 +1,52 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Releases at startup the locks of the builds which did not survive the
+ * restart, instead of waiting for their leases to expire, so that the
+ * waiting builds get the resources back right away.
+ */
+public final class LockReconciliation {
+
+	private static final Logger LOG = Logger.getLogger(LockReconciliation.class.getName());
+
+	/*
+	 * Number of builds loaded at once, loading them mostly waits for the disk.
+	 */
+	static int THREADS = Integer.getInteger(LockReconciliation.class.getName() + ".threads", 8);
+
+	private LockReconciliation() {
+	}
+
+	@Initializer(after = InitMilestone.JOB_LOADED, requires = BackwardCompatibility.MIGRATED)
+	public static void reconcileLocks() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, THREADS),
+				new NamingThreadFactory(new DaemonThreadFactory(), "Lockable resources reconciliation"));
+		try {
+			long started = System.currentTimeMillis();
+			List<String> released = LockableResourcesManager.get().reconcileLocks(executor);
+			LOG.log(Level.INFO, "Reconciled the lockable resources with the running builds in {0} ms, released {1}",
+					new Object[] { System.currentTimeMillis() - started, released });
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
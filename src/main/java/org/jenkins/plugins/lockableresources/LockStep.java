@@ -35,6 +35,13 @@ public class LockStep extends AbstractStepImpl implements Serializable {
 
 	public boolean inversePrecedence = false;
 
+	/** name of the group of lock steps of the build which lock their resources all at once */
+	@CheckForNull
+	public String group = null;
+
+	/** number of lock steps in the group */
+	public int groupSize = 0;
+
 	@CheckForNull
 	public List<LockStepResource> extra = null;
 
@@ -71,6 +78,18 @@ public class LockStep extends AbstractStepImpl implements Serializable {
 		this.quantity = quantity;
 	}
 
+	@DataBoundSetter
+	public void setGroup(String group) {
+		if (group != null && !group.isEmpty()) {
+			this.group = group;
+		}
+	}
+
+	@DataBoundSetter
+	public void setGroupSize(int groupSize) {
+		this.groupSize = groupSize;
+	}
+
 	@DataBoundSetter
 	public void setExtra(List<LockStepResource> extra) {
 		this.extra = extra;
@@ -128,6 +147,9 @@ public class LockStep extends AbstractStepImpl implements Serializable {
 	 */
 	public void validate() throws Exception {
 		LockStepResource.validate(resource, label, quantity);
+		if (groupSize > 1 && group == null) {
+			throw new IllegalArgumentException("A group is required with a group size.");
+		}
 	}
 
 	public List<LockStepResource> getResources() {
@@ -3,7 +3,6 @@ package org.jenkins.plugins.lockableresources;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,7 +53,7 @@ public class LockStepExecution extends AbstractStepExecutionImpl {
 		for (LockStepResource resource : step.getResources()) {
 			List<String> resources = new ArrayList<String>();
 			if (resource.resource != null) {
-				if (LockableResourcesManager.get().createResource(resource.resource)) {
+				if (LockableResourcesManager.get().createEphemeralResource(resource.resource)) {
 					listener.getLogger().println("Resource [" + resource + "] did not exist. Created.");
 				}
 				resources.add(resource.resource);
@@ -62,12 +61,10 @@ public class LockStepExecution extends AbstractStepExecutionImpl {
 			resourceHolderList.add(new LockableResourcesStruct(resources, resource.label, resource.quantity));
 		}
 
-		// determine if there are enough resources available to proceed
-		Set<LockableResource> available = LockableResourcesManager.get().checkResourcesAvailability(resourceHolderList, listener.getLogger(), null);
-		if (available == null || !LockableResourcesManager.get().lock(available, run, getContext(), step.toString(), step.variable, step.inversePrecedence)) {
-			listener.getLogger().println("[" + step + "] is locked, waiting...");
-			LockableResourcesManager.get().queueContext(getContext(), resourceHolderList, step.toString());
-		} // proceed is called inside lock if execution is possible
+		// lock the resources if there are enough available, or wait for them
+		LockableResourcesManager.get().lockOrQueue(getContext(), run, resourceHolderList, step.toString(),
+				step.variable, step.inversePrecedence, listener.getLogger(), step.group, step.groupSize);
+		// proceed is called inside lock if execution is possible
 		return false;
 	}
 
@@ -23,18 +23,23 @@ import hudson.model.Queue.Task;
 import hudson.model.User;
 import hudson.tasks.Mailer.UserProperty;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
 
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jinterop.winreg.IJIWinReg.saveFile;
@@ -60,9 +65,18 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 	private static final int QUEUE_TIMEOUT = 60;
 	public static final String GROOVY_LABEL_MARKER = "groovy:";
 
+	/**
+	 * How long a lock stays valid without being renewed, see {@link LockLeaseReaper}.
+	 */
+	@Restricted(NoExternalUse.class)
+	public static long LEASE_DURATION = Long.getLong(LockableResource.class.getName() + ".leaseDuration",
+			TimeUnit.MINUTES.toMillis(10));
+
 	private final String name;
 	private String description = "";
 	private String labels = "";
+	// The labels split, without duplicates, and interned as there are few distinct ones
+	private transient String[] labelArray;
 	private String reservedBy = null;
 
 	private long queueItemId = NOT_QUEUED;
@@ -71,21 +85,36 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 	// Needed to make the state non-transient
 	private String buildExternalizableId = null;
 	private long queuingStarted = 0;
+	// Time after which the lock can be reclaimed if the build does not renew it
+	private long leaseExpiry = 0;
+	// When the current build locked the resource, for the hold time metrics
+	private long lockedSince = 0;
+	// Full name of the job which held the resource last, for the cache affinity
+	private String lastHolder = null;
+	// Created on the fly by a lock step, removed once released and no longer waited for
+	private boolean ephemeral = false;
+	// Changed since last persisted: new resources start dirty, loaded ones clean
+	private transient boolean dirty = true;
+	// Lookup tables of the manager this resource belongs to, rebuilt when its labels change
+	private transient volatile ResourceIndex index;
 
 	/**
 	 * Was used within the initial implementation of Pipeline functionality
 	 * using {@link LockStep}, but became deprecated once several resources
 	 * could be locked at once. See queuedContexts in {@link LockableResourcesManager}.
+	 * Only set when such contexts were loaded, until they are migrated.
 	 */
 	@Deprecated
-	private List<StepContext> queuedContexts = new ArrayList<StepContext>();
+	private List<StepContext> queuedContexts;
+
+	private static final String[] NO_LABELS = new String[0];
 
 	@Deprecated
 	public LockableResource(
 			String name, String description, String labels, String reservedBy) {
 		this.name = name;
 		this.description = description;
-		this.labels = labels;
+		this.labels = Util.intern(labels);
 		this.reservedBy = Util.fixEmptyAndTrim(reservedBy);
 	}
 
@@ -95,25 +124,51 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 	}
 
 	private Object readResolve() {
-		if (queuedContexts == null) { // this field was added after the initial version if this class
-			queuedContexts = new ArrayList<StepContext>();
+		if (queuedContexts != null && queuedContexts.isEmpty()) {
+			queuedContexts = null;
 		}
+		labels = Util.intern(labels);
+		queueItemProject = Util.intern(queueItemProject);
 		return this;
 	}
 
+	/**
+	 * @return the contexts queued before they were held by the manager, empty once migrated
+	 */
 	@Deprecated
 	public List<StepContext> getQueuedContexts() {
+		if (queuedContexts == null) {
+			return Collections.emptyList();
+		}
 		return this.queuedContexts;
 	}
 
 	@DataBoundSetter
 	public void setDescription(String description) {
 		this.description = description;
+		this.dirty = true;
 	}
 
 	@DataBoundSetter
 	public void setLabels(String labels) {
-		this.labels = labels;
+		relabel(labels);
+		ResourceIndex i = index;
+		if (i != null) {
+			i.invalidate();
+		}
+	}
+
+	/*
+	 * Changes the labels, for the manager which updates its lookup tables itself.
+	 */
+	void relabel(String labels) {
+		this.labels = Util.intern(labels);
+		this.labelArray = null;
+		this.dirty = true;
+	}
+
+	void setIndex(ResourceIndex index) {
+		this.index = index;
 	}
 
 	@Exported
@@ -121,6 +176,20 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 		return name;
 	}
 
+	/**
+	 * Whether this resource was created by a lock step on an unknown name, and
+	 * is removed once unused, see {@link LockableResourcesManager#createEphemeralResource}.
+	 */
+	@Exported
+	public boolean isEphemeral() {
+		return ephemeral;
+	}
+
+	public void setEphemeral(boolean ephemeral) {
+		this.ephemeral = ephemeral;
+		this.dirty = true;
+	}
+
 	@Exported
 	public String getDescription() {
 		return description;
@@ -131,18 +200,63 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 		return labels;
 	}
 
+	/**
+	 * @return the distinct labels of this resource, in the order they are declared in
+	 */
+	public List<String> getLabelList() {
+		return Collections.unmodifiableList(Arrays.asList(labelArray()));
+	}
+
 	public boolean isValidLabel(String candidate, Map<String, Object> params) {
 		return labelsContain(candidate);
 	}
 
 	private boolean labelsContain(String candidate) {
-		return makeLabelsList().contains(candidate);
+		for (String label : labelArray()) {
+			if (label.equals(candidate)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	private List<String> makeLabelsList() {
 		return Arrays.asList(labels.split("\\s+"));
 	}
 
+	private String[] labelArray() {
+		String[] parsed = labelArray;
+		if (parsed == null) {
+			parsed = parseLabels(labels);
+			labelArray = parsed;
+		}
+		return parsed;
+	}
+
+	/**
+	 * Splits labels separated by white spaces, dropping the duplicates.
+	 */
+	static String[] parseLabels(@CheckForNull String labels) {
+		if (labels == null) {
+			return NO_LABELS;
+		}
+		String trimmed = labels.trim();
+		if (trimmed.isEmpty()) {
+			return NO_LABELS;
+		}
+		String[] split = trimmed.split("\\s+");
+		int count = 0;
+		next: for (String label : split) {
+			for (int i = 0; i < count; i++) {
+				if (split[i].equals(label)) {
+					continue next;
+				}
+			}
+			split[count++] = label.intern();
+		}
+		return count == split.length ? split : Arrays.copyOf(split, count);
+	}
+
 	/**
 	 * Checks if the script matches the requirement.
 	 * @param script Script to be executed
@@ -209,6 +323,9 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 	}
 
 	public void unqueue() {
+		if (queueItemId != NOT_QUEUED || queueItemProject != null || queuingStarted != 0) {
+			this.dirty = true;
+		}
 		queueItemId = NOT_QUEUED;
 		queueItemProject = null;
 		queuingStarted = 0;
@@ -243,6 +360,16 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 		return build;
 	}
 
+	/**
+	 * Gets the external id of the build holding the lock without resolving the build.
+	 *
+	 * @return the build id or null if not locked
+	 */
+	@CheckForNull
+	public String getBuildExternalizableId() {
+		return buildExternalizableId;
+	}
+
 	/**
 	 * @see {@link WithBridgeMethods}
 	 */
@@ -260,14 +387,60 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 	}
 
 	public void setBuild(Run<?, ?> lockedBy) {
+		long now = System.currentTimeMillis();
+		String previous = this.buildExternalizableId;
+		String next = lockedBy != null ? lockedBy.getExternalizableId() : null;
+		if (previous != null && !previous.equals(next) && lockedSince > 0) {
+			LockMetrics.get().recordHold(this, now - lockedSince);
+		}
 		this.build = lockedBy;
+		this.dirty = true;
 		if (lockedBy != null) {
-			this.buildExternalizableId = lockedBy.getExternalizableId();
+			if (!next.equals(previous)) {
+				this.lockedSince = now;
+			}
+			this.buildExternalizableId = next;
+			this.leaseExpiry = now + LEASE_DURATION;
 		} else {
 			this.buildExternalizableId = null;
+			this.leaseExpiry = 0;
+			this.lockedSince = 0;
+		}
+	}
+
+	/**
+	 * Gets when the build holding the lock locked this resource.
+	 *
+	 * @return the time in milliseconds, or {@code 0} if not locked or unknown
+	 */
+	public long getLockedSince() {
+		return lockedSince;
+	}
+
+	/**
+	 * Gets the time after which the lock may be reclaimed if not renewed.
+	 *
+	 * @return the expiry in milliseconds, or {@code 0} if not locked or locked before leases existed
+	 */
+	public long getLeaseExpiry() {
+		return leaseExpiry;
+	}
+
+	/**
+	 * Extends the lease of the lock held on this resource, if any. The resource is not marked
+	 * dirty: the lease is renewed periodically for every lock, and a stale expiry read back after
+	 * a restart only matters for builds which are no longer running.
+	 */
+	public void renewLease(long now) {
+		if (buildExternalizableId != null) {
+			this.leaseExpiry = now + LEASE_DURATION;
 		}
 	}
 
+	public boolean isLeaseExpired(long now) {
+		return buildExternalizableId != null && leaseExpiry > 0 && now > leaseExpiry;
+	}
+
 	public Task getTask() {
 		Item item = Queue.getInstance().getItem(queueItemId);
 		if (item != null) {
@@ -287,14 +460,32 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 		return this.queueItemProject;
 	}
 
+	/**
+	 * Gets the full name of the job whose build released this resource last.
+	 *
+	 * @return the job name, or {@code null} if the resource was never released since it is tracked
+	 */
+	@CheckForNull
+	public String getLastHolder() {
+		return lastHolder;
+	}
+
+	public void setLastHolder(@CheckForNull String lastHolder) {
+		if (lastHolder != null && !lastHolder.equals(this.lastHolder)) {
+			this.lastHolder = Util.intern(lastHolder);
+			this.dirty = true;
+		}
+	}
+
 	public void setQueued(long queueItemId) {
+		this.dirty = true;
 		this.queueItemId = queueItemId;
 		this.queuingStarted = System.currentTimeMillis() / 1000;
 	}
 
 	public void setQueued(long queueItemId, String queueProjectName) {
 		this.setQueued(queueItemId);
-		this.queueItemProject = queueProjectName;
+		this.queueItemProject = Util.intern(queueProjectName);
 	}
 
 	private void validateQueuingTimeout() {
@@ -308,12 +499,97 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 	@DataBoundSetter
 	public void setReservedBy(String userName) {
 		this.reservedBy = Util.fixEmptyAndTrim(userName);
+		this.dirty = true;
 	}
 
 	public void unReserve() {
+		if (this.reservedBy != null) {
+			this.dirty = true;
+		}
 		this.reservedBy = null;
 	}
 
+	/**
+	 * Whether this resource changed since it was last persisted,
+	 * see {@link LockableResourcesManager#save()}.
+	 */
+	@Restricted(NoExternalUse.class)
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	@Restricted(NoExternalUse.class)
+	public void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+
+	/**
+	 * Writes the persisted state of this resource, to be read with {@link #readBinary}.
+	 * The deprecated queued contexts are not written, they are migrated at startup.
+	 */
+	@Restricted(NoExternalUse.class)
+	public void writeBinary(DataOutput out) throws IOException {
+		writeString(out, name);
+		writeString(out, description);
+		writeString(out, labels);
+		writeString(out, reservedBy);
+		out.writeLong(queueItemId);
+		writeString(out, queueItemProject);
+		writeString(out, buildExternalizableId);
+		out.writeLong(queuingStarted);
+		out.writeLong(leaseExpiry);
+		out.writeLong(lockedSince);
+		out.writeBoolean(ephemeral);
+		writeString(out, lastHolder);
+	}
+
+	/**
+	 * Reads a resource written by {@link #writeBinary}, not dirty.
+	 *
+	 * @param version the format version of the snapshot, see {@link org.jenkins.plugins.lockableresources.persistence.ResourceSnapshotFile#FORMAT_VERSION}
+	 */
+	@Restricted(NoExternalUse.class)
+	public static LockableResource readBinary(DataInput in, int version) throws IOException {
+		LockableResource r = new LockableResource(readString(in));
+		r.description = readString(in);
+		r.labels = Util.intern(readString(in));
+		r.reservedBy = readString(in);
+		r.queueItemId = in.readLong();
+		r.queueItemProject = Util.intern(readString(in));
+		r.buildExternalizableId = readString(in);
+		r.queuingStarted = in.readLong();
+		r.leaseExpiry = in.readLong();
+		r.lockedSince = in.readLong();
+		r.ephemeral = in.readBoolean();
+		if (version >= 2) {
+			r.lastHolder = Util.intern(readString(in));
+		}
+		r.dirty = false;
+		return r;
+	}
+
+	// unlike writeUTF, not limited to 64k and null safe
+	private static void writeString(DataOutput out, @CheckForNull String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	@CheckForNull
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
 	public void reset() {
 		this.unReserve();
 		this.unqueue();
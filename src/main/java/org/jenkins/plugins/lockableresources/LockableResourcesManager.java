@@ -9,20 +9,33 @@
 package org.jenkins.plugins.lockableresources;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.BulkChange;
+import hudson.Util;
+import hudson.XmlFile;
 import hudson.model.AbstractBuild;
+import hudson.model.Executor;
+import hudson.model.Result;
 import hudson.model.Run;
+import hudson.util.XStream2;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,17 +47,35 @@ import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
+import org.jenkins.plugins.lockableresources.backend.LocalBackend;
+import org.jenkins.plugins.lockableresources.backend.LockableResourcesBackend;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+import org.jenkins.plugins.lockableresources.persistence.PersistenceMode;
+import org.jenkins.plugins.lockableresources.persistence.ResourceFileStore;
+import org.jenkins.plugins.lockableresources.persistence.ResourceSnapshotFile;
+import org.jenkins.plugins.lockableresources.queue.DeadlockVictimPolicy;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesCandidatesStruct;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkins.plugins.lockableresources.selection.FirstFitStrategy;
+import org.jenkins.plugins.lockableresources.selection.ResourceSelectionStrategy;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.kohsuke.stapler.StaplerRequest;
 
 import edu.umd.cs.findbugs.annotations.Nullable;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+
 @Extension
 public class LockableResourcesManager extends GlobalConfiguration {
 
@@ -61,15 +92,517 @@ public class LockableResourcesManager extends GlobalConfiguration {
 	 */
 	private List<QueuedContextStruct> queuedContexts = new ArrayList<QueuedContextStruct>();
 
+	// the queued contexts by id of their build, the nodes of the wait-for graph, built on first use
+	private transient Map<String, List<QueuedContextStruct>> waitingBuilds;
+
+	/**
+	 * What to do when nested {@link LockStep}s of several builds wait for each other.
+	 */
+	private DeadlockVictimPolicy deadlockVictimPolicy = DeadlockVictimPolicy.NONE;
+
+	/**
+	 * Arbitrates the locks with the other controllers sharing the resources, if any.
+	 */
+	private LockableResourcesBackend backend;
+
+	/**
+	 * Which of the free resources matching a requirement are taken.
+	 */
+	private ResourceSelectionStrategy selectionStrategy;
+
+	/**
+	 * Whether a job gets the free resources it released last before the others matching its
+	 * requirement, to reuse what its previous builds left on them.
+	 */
+	private boolean preferLastHolder = false;
+
+	/**
+	 * How many seconds a queued build waits for a busy resource its job released last, when
+	 * others are free, before taking the others. Only the builds in the Jenkins queue wait.
+	 */
+	private int affinityWait = 0;
+
+	/**
+	 * Where the resources are persisted, see {@link #save()}.
+	 */
+	private PersistenceMode persistenceMode = PersistenceMode.XML;
+
+	private transient ResourceFileStore store;
+
+	private transient ResourceSnapshotFile snapshotFile;
+
+	/**
+	 * Last version of the data migrations run at startup, see {@link BackwardCompatibility}.
+	 */
+	private int migrationVersion;
+
+	private final transient ResourceIndex index = new ResourceIndex();
+
+	/**
+	 * Served to API clients until the next {@link #save()}.
+	 */
+	private transient volatile ResourcesSnapshot snapshot;
+
+	/**
+	 * Number of released ephemeral resources removed together, see
+	 * {@link #createEphemeralResource}. The remaining ones are removed by the {@link LockLeaseReaper}.
+	 */
+	static int EPHEMERAL_BATCH = Integer.getInteger(LockableResourcesManager.class.getName() + ".ephemeralBatch", 64);
+
+	// ephemeral resources released since they were last removed
+	private final transient Set<LockableResource> releasedEphemeral =
+			Collections.newSetFromMap(new IdentityHashMap<LockableResource, Boolean>());
+
+	private final transient ResourceChangeFeed changeFeed = new ResourceChangeFeed();
+	// resources the current snapshot was taken from, in its order
+	private transient LockableResource[] snapshotSources;
+	private transient long snapshotVersion;
+
+	// whether the resources queued for an item include one its job released last, recorded once it locks them
+	private final transient Cache<Long, Boolean> pendingAffinity =
+			CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.HOURS).build();
+
+	/**
+	 * Set when running without Jenkins, see {@link #LockableResourcesManager(File)}.
+	 */
+	private transient File configFile;
+
 	public LockableResourcesManager() {
 		resources = new ArrayList<LockableResource>();
+		loadAll();
+		watchBackend();
+	}
+
+	/**
+	 * Creates an empty manager saving its configuration in the given file, without loading it.
+	 * Meant for benchmarks and simulations driving the manager without a running Jenkins.
+	 */
+	LockableResourcesManager(File configFile) {
+		this.configFile = configFile;
+		resources = new ArrayList<LockableResource>();
+	}
+
+	@Override
+	public XmlFile getConfigFile() {
+		if (configFile != null) {
+			return new XmlFile(Jenkins.XSTREAM, configFile);
+		}
+		return super.getConfigFile();
+	}
+
+	/*
+	 * Loads the configuration file, then the resources wherever the persistence mode keeps them.
+	 */
+	void loadAll() {
 		load();
+		loadResourceFiles();
+		waitingBuilds = null;
+	}
+
+	/*
+	 * In the resource files and binary modes, the configuration file of the manager does not hold the resources.
+	 * They are kept there if the resource files are missing, e.g. if the mode was set by hand.
+	 */
+	private void loadResourceFiles() {
+		if (getPersistenceMode() == PersistenceMode.BINARY) {
+			loadSnapshotFile();
+			return;
+		}
+		if (getPersistenceMode() != PersistenceMode.RESOURCE_FILES) {
+			return;
+		}
+		ResourceFileStore s = getStore();
+		if (!s.exists()) {
+			LOGGER.log(Level.INFO, "No lockable resources in {0}, keeping the ones of the configuration file",
+					s.getDirectory());
+			return;
+		}
+		try {
+			resources = s.load();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Failed to load the lockable resources from " + s.getDirectory(), e);
+		}
 	}
 
+	private void loadSnapshotFile() {
+		ResourceSnapshotFile f = getSnapshotFile();
+		if (!f.exists()) {
+			LOGGER.log(Level.INFO, "No lockable resources in {0}, keeping the ones of the configuration file",
+					f.getFile());
+			return;
+		}
+		try {
+			resources = f.load();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Failed to load the lockable resources from " + f.getFile(), e);
+		}
+	}
+
+	/**
+	 * The resources, in the order they are selected in. The manager never
+	 * adds or removes resources in this list but replaces it, so that it can be
+	 * iterated without locking; the state of the resources can change meanwhile
+	 * though, {@link #getSnapshot()} is a consistent view of it.
+	 */
 	public List<LockableResource> getResources() {
 		return resources;
 	}
 
+	/**
+	 * Appends a resource, on a new list which shares the array of the
+	 * previous one while it has room, so that a burst of creations does not
+	 * copy the resources once per created one.
+	 */
+	private void addResource(LockableResource r) {
+		List<LockableResource> previous = resources;
+		ResourceList list = previous instanceof ResourceList ? (ResourceList) previous : new ResourceList(previous);
+		List<LockableResource> updated = list.append(r);
+		resources = updated;
+		index.added(previous, updated, r);
+	}
+
+	/**
+	 * Changes of the resources, published when they are saved.
+	 */
+	@Nonnull
+	public ResourceChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+
+	/**
+	 * Immutable copy of the state of all the resources, taken after the last change.
+	 * Unlike the resources themselves, it can be read without locking the manager.
+	 */
+	@Nonnull
+	public ResourcesSnapshot getSnapshot() {
+		ResourcesSnapshot s = snapshot;
+		if (s == null) {
+			synchronized (this) {
+				s = snapshot;
+				if (s == null) {
+					// not published by a save yet
+					List<ResourceState> states = new ArrayList<ResourceState>(resources.size());
+					for (LockableResource r : resources) {
+						states.add(new ResourceState(r));
+					}
+					s = new ResourcesSnapshot(snapshotVersion, states);
+					snapshotSources = resources.toArray(new LockableResource[resources.size()]);
+					snapshot = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	@Nonnull
+	public DeadlockVictimPolicy getDeadlockVictimPolicy() {
+		return deadlockVictimPolicy != null ? deadlockVictimPolicy : DeadlockVictimPolicy.NONE;
+	}
+
+	public synchronized void setDeadlockVictimPolicy(@CheckForNull DeadlockVictimPolicy deadlockVictimPolicy) {
+		this.deadlockVictimPolicy = deadlockVictimPolicy;
+		save();
+	}
+
+	@Nonnull
+	public synchronized LockableResourcesBackend getBackend() {
+		if (backend == null) {
+			backend = new LocalBackend();
+		}
+		return backend;
+	}
+
+	public synchronized void setBackend(@CheckForNull LockableResourcesBackend backend) {
+		replaceBackend(backend);
+		save();
+	}
+
+	@Nonnull
+	public synchronized ResourceSelectionStrategy getSelectionStrategy() {
+		if (selectionStrategy == null) {
+			selectionStrategy = new FirstFitStrategy();
+		}
+		return selectionStrategy;
+	}
+
+	public synchronized void setSelectionStrategy(@CheckForNull ResourceSelectionStrategy selectionStrategy) {
+		this.selectionStrategy = selectionStrategy;
+		save();
+	}
+
+	public boolean isPreferLastHolder() {
+		return preferLastHolder;
+	}
+
+	public synchronized void setPreferLastHolder(boolean preferLastHolder) {
+		this.preferLastHolder = preferLastHolder;
+		save();
+	}
+
+	public int getAffinityWait() {
+		return affinityWait;
+	}
+
+	public synchronized void setAffinityWait(int affinityWait) {
+		this.affinityWait = Math.max(0, affinityWait);
+		save();
+	}
+
+	private void replaceBackend(@CheckForNull LockableResourcesBackend backend) {
+		Collection<String> waited = Collections.emptyList();
+		if (this.backend != null && this.backend != backend) {
+			// saving the configuration binds a new backend, keep waiting for the same resources
+			waited = this.backend.getWaited();
+			this.backend.close();
+		}
+		this.backend = backend;
+		watchBackend();
+		if (!waited.isEmpty()) {
+			getBackend().queue(waited);
+		}
+	}
+
+	private void watchBackend() {
+		getBackend().watch(new LockableResourcesBackend.Listener() {
+			@Override
+			public void released(Collection<String> names) {
+				offerReleasedResources(names);
+			}
+
+			@Override
+			public void lost(Collection<String> names) {
+				leasesLost(names);
+			}
+		});
+	}
+
+	/*
+	 * Takes the resources in the backend before they are locked or queued here.
+	 * If another controller holds one of them, asks the backend to tell when it is released.
+	 */
+	private boolean acquireInBackend(Collection<LockableResource> resources) {
+		if (resources.isEmpty()) {
+			return true;
+		}
+		List<String> names = new ArrayList<String>();
+		for (LockableResource r : resources) {
+			names.add(r.getName());
+		}
+		LockableResourcesBackend b = getBackend();
+		if (b.acquire(names)) {
+			return true;
+		}
+		b.queue(names);
+		return false;
+	}
+
+	/**
+	 * Called when resources this controller waits for are released by another controller:
+	 * the ones which are free here are handed over to the waiting contexts.
+	 */
+	public void offerReleasedResources(Collection<String> names) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				offerReleasedResourcesLocked(names);
+			} finally {
+				LockMetrics.get().operationDone("offerReleasedResources", entered);
+			}
+		}
+	}
+
+	private void offerReleasedResourcesLocked(Collection<String> names) {
+		List<String> free = new ArrayList<String>();
+		for (String name : names) {
+			LockableResource r = fromName(name);
+			if (r != null && isFree(r, LockableResource.NOT_QUEUED)) {
+				free.add(name);
+			}
+		}
+		if (!free.isEmpty()) {
+			unlockNames(free, null, null, false);
+		}
+	}
+
+	/**
+	 * Called when another controller took over resources used here, e.g. because their leases
+	 * could not be renewed in time: the queued items give them up and wait for them again, and
+	 * the builds which locked them are aborted rather than keep using them along with the other controller.
+	 */
+	public void leasesLost(Collection<String> names) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				leasesLostLocked(names);
+			} finally {
+				LockMetrics.get().operationDone("leasesLost", entered);
+			}
+		}
+	}
+
+	private void leasesLostLocked(Collection<String> names) {
+		List<String> unqueued = new ArrayList<String>();
+		for (String name : names) {
+			LockableResource r = fromName(name);
+			if (r == null) {
+				continue;
+			}
+			if (r.isQueued()) {
+				r.unqueue();
+				unqueued.add(name);
+			}
+			Run<?, ?> build = r.getBuild();
+			if (build != null) {
+				LOGGER.log(Level.WARNING, "Another controller took over {0}, aborting {1} which locked it",
+						new Object[] { name, build.getExternalizableId() });
+				Executor executor = build.getExecutor();
+				if (executor != null) {
+					executor.interrupt(Result.ABORTED);
+				}
+			}
+		}
+		if (!unqueued.isEmpty()) {
+			getBackend().queue(unqueued);
+			save();
+		}
+	}
+
+	@Nonnull
+	public PersistenceMode getPersistenceMode() {
+		return persistenceMode != null ? persistenceMode : PersistenceMode.XML;
+	}
+
+	/**
+	 * Changes how the resources are persisted, and writes all of them in the new mode.
+	 */
+	public synchronized void setPersistenceMode(@CheckForNull PersistenceMode persistenceMode) {
+		this.persistenceMode = persistenceMode;
+		markAllDirty();
+		save();
+	}
+
+	private void markAllDirty() {
+		for (LockableResource r : resources) {
+			r.setDirty(true);
+		}
+	}
+
+	private ResourceFileStore getStore() {
+		if (store == null) {
+			store = new ResourceFileStore(new File(getConfigFile().getFile().getParentFile(), "lockable-resources"));
+		}
+		return store;
+	}
+
+	private ResourceSnapshotFile getSnapshotFile() {
+		if (snapshotFile == null) {
+			snapshotFile = new ResourceSnapshotFile(new File(getConfigFile().getFile().getParentFile(),
+					"lockable-resources.bin"));
+		}
+		return snapshotFile;
+	}
+
+	/**
+	 * Gets the last version of the startup data migrations which ran, see {@link BackwardCompatibility}.
+	 */
+	public int getMigrationVersion() {
+		return migrationVersion;
+	}
+
+	/**
+	 * Records that the startup data migrations up to the given version ran.
+	 */
+	public synchronized void setMigrationVersion(int migrationVersion) {
+		this.migrationVersion = migrationVersion;
+		save();
+	}
+
+	/**
+	 * Writes the resources as XML, whatever the persistence mode, e.g. to migrate them to another controller.
+	 */
+	public synchronized void exportResources(OutputStream out) throws IOException {
+		ResourceFileStore.exportResources(resources, out);
+	}
+
+	/**
+	 * Replaces the resources with the ones written by {@link #exportResources}.
+	 * The locks held on the resources which already exist are kept.
+	 */
+	public synchronized void importResources(InputStream in) throws IOException {
+		setResources(ResourceFileStore.importResources(in));
+		save();
+	}
+
+	/**
+	 * Applies the configured resources as a diff of the current ones. The
+	 * resources which already exist are updated in place, so that they keep
+	 * their lock, queue and lease state. Only the added, removed and changed
+	 * resources are indexed and persisted again.
+	 */
+	private synchronized void setResources(List<LockableResource> configured) {
+		List<LockableResource> previous = resources;
+		index.prepare(previous);
+		Map<String, Integer> previousPositions = new HashMap<String, Integer>(previous.size() * 2);
+		Map<String, LockableResource> existing = new HashMap<String, LockableResource>(previous.size() * 2);
+		for (int i = 0; i < previous.size(); i++) {
+			LockableResource r = previous.get(i);
+			if (!existing.containsKey(r.getName())) {
+				existing.put(r.getName(), r);
+				previousPositions.put(r.getName(), i);
+			}
+		}
+
+		List<LockableResource> updated = new ArrayList<LockableResource>(configured.size());
+		Map<LockableResource, Integer> positions = new IdentityHashMap<LockableResource, Integer>(configured.size() * 2);
+		List<LockableResource> added = new ArrayList<LockableResource>();
+		Map<LockableResource, String> relabeled = new IdentityHashMap<LockableResource, String>();
+		boolean reordered = false;
+		int lastPosition = -1;
+		for (LockableResource c : configured) {
+			LockableResource r = existing.remove(c.getName());
+			if (r == null) {
+				r = c;
+				r.setDirty(true);
+				added.add(r);
+			} else {
+				if (!StringUtils.equals(r.getDescription(), c.getDescription()))
+					r.setDescription(c.getDescription());
+				if (!StringUtils.equals(r.getLabels(), c.getLabels())) {
+					relabeled.put(r, r.getLabels());
+					r.relabel(c.getLabels());
+				}
+				if (!StringUtils.equals(r.getReservedBy(), c.getReservedBy()))
+					r.setReservedBy(c.getReservedBy());
+				int position = previousPositions.get(r.getName());
+				reordered |= position < lastPosition;
+				lastPosition = position;
+			}
+			positions.put(r, updated.size());
+			updated.add(r);
+		}
+		List<LockableResource> removed = new ArrayList<LockableResource>();
+		for (LockableResource r : previous) {
+			if (!positions.containsKey(r))
+				removed.add(r);
+		}
+
+		resources = updated;
+		if (reordered) {
+			index.invalidate();
+		} else {
+			index.update(previous, updated, positions, added, removed, relabeled);
+		}
+		if (!removed.isEmpty()) {
+			getSelectionStrategy().removed(removed);
+		}
+		if (!added.isEmpty() || !removed.isEmpty() || !relabeled.isEmpty()) {
+			LOGGER.log(Level.FINE, "Configured resources: {0} added, {1} removed, {2} relabeled",
+					new Object[] { added.size(), removed.size(), relabeled.size() });
+		}
+	}
+
 	public List<LockableResource> getResourcesFromProject(String fullName) {
 		List<LockableResource> matching = new ArrayList<LockableResource>();
 		for (LockableResource r : resources) {
@@ -94,17 +627,14 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
 	public Boolean isValidLabel(String label)
 	{
-		return this.getAllLabels().contains(label);
+		return index.hasLabel(this.resources, label);
 	}
 
 	public Set<String> getAllLabels()
 	{
 		Set<String> labels = new HashSet<String>();
 		for (LockableResource r : this.resources) {
-			String rl = r.getLabels();
-			if (rl == null || "".equals(rl))
-				continue;
-			labels.addAll(Arrays.asList(rl.split("\\s+")));
+			labels.addAll(r.getLabelList());
 		}
 		return labels;
 	}
@@ -112,23 +642,17 @@ public class LockableResourcesManager extends GlobalConfiguration {
 	public int getFreeResourceAmount(String label)
 	{
 		int free = 0;
-		for (LockableResource r : this.resources) {
+		for (LockableResource r : index.withLabel(this.resources, label)) {
 			if (r.isLocked() || r.isQueued() || r.isReserved())
 				continue;
-			if (Arrays.asList(r.getLabels().split("\\s+")).contains(label))
-				free += 1;
+			free += 1;
 		}
 		return free;
 	}
 
 	public List<LockableResource> getResourcesWithLabel(String label,
 			Map<String, Object> params) {
-		List<LockableResource> found = new ArrayList<LockableResource>();
-		for (LockableResource r : this.resources) {
-			if (r.isValidLabel(label, params))
-				found.add(r);
-		}
-		return found;
+		return index.withLabel(this.resources, label);
 	}
 
 	/**
@@ -153,25 +677,78 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
 	public LockableResource fromName(String resourceName) {
 		if (resourceName != null) {
-			for (LockableResource r : resources) {
-				if (resourceName.equals(r.getName()))
-					return r;
-			}
+			return index.get(resources, resourceName);
 		}
 		return null;
 	}
 
-	public synchronized boolean queue(List<LockableResource> resources,
+	/**
+	 * @return the resources with the given names which exist, in the order of the names
+	 */
+	public List<LockableResource> fromNames(Collection<String> resourceNames) {
+		List<LockableResource> found = new ArrayList<LockableResource>(resourceNames.size());
+		for (String name : resourceNames) {
+			LockableResource r = fromName(name);
+			if (r != null) {
+				found.add(r);
+			}
+		}
+		return found;
+	}
+
+	public boolean queue(List<LockableResource> resources,
+			long queueItemId, String queueProjectName) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return queueLocked(resources, queueItemId, queueProjectName);
+			} finally {
+				LockMetrics.get().operationDone("queue", entered);
+			}
+		}
+	}
+
+	private boolean queueLocked(List<LockableResource> resources,
 			long queueItemId, String queueProjectName) {
 		for (LockableResource r : resources)
-			if (r.isReserved() || r.isQueued(queueItemId) || r.isLocked())
+			if (!isFree(r, queueItemId))
 				return false;
+		if (!acquireInBackend(resources))
+			return false;
 		for (LockableResource r : resources) {
 			r.setQueued(queueItemId, queueProjectName);
 		}
 		return true;
 	}
 
+	/**
+	 * Gives back the resources queued for the given queue item, e.g. when the
+	 * other items it has to start with cannot get theirs.
+	 */
+	public synchronized void unqueue(List<LockableResource> resources, long queueItemId) {
+		List<String> names = new ArrayList<String>();
+		for (LockableResource r : resources) {
+			if (r.isQueuedByTask(queueItemId)) {
+				r.unqueue();
+				names.add(r.getName());
+			}
+		}
+		// acquired in the backend when queued
+		getBackend().release(names);
+		// lock steps do not take resources queued for items
+		if (!names.isEmpty() && !queuedContexts.isEmpty()) {
+			offerReleasedResourcesLocked(names);
+		}
+	}
+
+	/**
+	 * Gives back the resources queued for the given queue item, which left the queue without running.
+	 */
+	public synchronized void unqueue(long queueItemId) {
+		unqueue(resources, queueItemId);
+	}
+
 	/**
 	 * @deprecated USe {@link #tryQueue(org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct, long, java.lang.String, int, java.util.Map, java.util.logging.Logger)}
 	 */
@@ -203,9 +780,37 @@ public class LockableResourcesManager extends GlobalConfiguration {
 	 * @since TODO
 	 */
 	@CheckForNull
-	public synchronized List<LockableResource> tryQueue(LockableResourcesStruct requiredResources,
+	public List<LockableResource> tryQueue(LockableResourcesStruct requiredResources,
 			long queueItemId, String queueItemProject, int number,
 			Map<String, Object> params, Logger log) throws ExecutionException {
+		return tryQueue(requiredResources, queueItemId, queueItemProject, number, params, 0, log);
+	}
+
+	/**
+	 * Same as above, for an item waiting in the queue since the given time, which may wait
+	 * up to {@link #getAffinityWait()} for the resources its project released last.
+	 *
+	 * @param waitingSince when the item entered the queue, {@code 0} if unknown
+	 */
+	@CheckForNull
+	public List<LockableResource> tryQueue(LockableResourcesStruct requiredResources,
+			long queueItemId, String queueItemProject, int number,
+			Map<String, Object> params, long waitingSince, Logger log) throws ExecutionException {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return tryQueueLocked(requiredResources, queueItemId, queueItemProject, number, params,
+						waitingSince, log);
+			} finally {
+				LockMetrics.get().operationDone("tryQueue", entered);
+			}
+		}
+	}
+
+	private List<LockableResource> tryQueueLocked(LockableResourcesStruct requiredResources,
+			long queueItemId, String queueItemProject, int number,
+			Map<String, Object> params, long waitingSince, Logger log) throws ExecutionException {
 		List<LockableResource> selected = new ArrayList<LockableResource>();
 
 		if (!checkCurrentResourcesStatus(selected, queueItemProject, queueItemId, log)) {
@@ -220,7 +825,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		List<LockableResource> candidates = new ArrayList<LockableResource>();
                 final SecureGroovyScript systemGroovyScript = requiredResources.getResourceMatchScript();
 		if (requiredResources.label != null && requiredResources.label.isEmpty() && systemGroovyScript == null) {
-			candidates = requiredResources.required;
+			candidates = fromNames(requiredResources.getRequiredNames());
 		} else if (systemGroovyScript == null) {
 			candidates = getResourcesWithLabel(requiredResources.label, params);
 		} else {
@@ -228,10 +833,11 @@ public class LockableResourcesManager extends GlobalConfiguration {
 			candidatesByScript = true;
 		}
 
-		for (LockableResource rs : candidates) {
+		List<LockableResource> lastHeld = lastHeldBy(candidates, queueItemProject);
+		for (LockableResource rs : selectionOrder(candidates, lastHeld)) {
 			if (number != 0 && (selected.size() >= number))
 				break;
-			if (!rs.isReserved() && !rs.isLocked() && !rs.isQueued())
+			if (isFree(rs, LockableResource.NOT_QUEUED))
 				selected.add(rs);
 		}
 
@@ -248,25 +854,155 @@ public class LockableResourcesManager extends GlobalConfiguration {
 			required_amount = number == 0 ? candidates.size() : number;
 		}
 
-		if (selected.size() != required_amount) {
-			log.log(Level.FINEST, "{0} found {1} resource(s) to queue." +
-			        "Waiting for correct amount: {2}.",
-			        new Object[]{queueItemProject, selected.size(), required_amount});
+		boolean waitsForLastHeld = selected.size() == required_amount
+				&& waitsForLastHeld(lastHeld, selected, waitingSince);
+		if (selected.size() != required_amount || waitsForLastHeld) {
+			if (waitsForLastHeld) {
+				log.log(Level.FINEST, "{0} waits for the resources it used last: {1}.",
+				        new Object[]{queueItemProject, lastHeld});
+			} else {
+				log.log(Level.FINEST, "{0} found {1} resource(s) to queue." +
+				        "Waiting for correct amount: {2}.",
+				        new Object[]{queueItemProject, selected.size(), required_amount});
+			}
 			// just to be sure, clean up
+			List<String> unqueued = new ArrayList<String>();
 			for (LockableResource x : resources) {
 				if (x.getQueueItemProject() != null &&
-				    x.getQueueItemProject().equals(queueItemProject))
+				    x.getQueueItemProject().equals(queueItemProject)) {
 					x.unqueue();
+					unqueued.add(x.getName());
+				}
+			}
+			// acquired in the backend when queued
+			getBackend().release(unqueued);
+			if (!unqueued.isEmpty() && !queuedContexts.isEmpty()) {
+				offerReleasedResourcesLocked(unqueued);
 			}
 			return null;
 		}
 
+		if (!acquireInBackend(selected)) {
+			log.log(Level.FINEST, "{0} waits for resources locked by another controller.",
+			        new Object[]{queueItemProject});
+			return null;
+		}
+
 		for (LockableResource rsc : selected) {
 			rsc.setQueued(queueItemId, queueItemProject);
 		}
+		if (!lastHeld.isEmpty()) {
+			pendingAffinity.put(queueItemId, isAffinityHit(lastHeld, selected));
+		} else {
+			pendingAffinity.invalidate(queueItemId);
+		}
 		return selected;
 	}
 
+	/*
+	 * The candidates released last by the given job, if the cache affinity is enabled.
+	 */
+	private List<LockableResource> lastHeldBy(List<LockableResource> candidates, @CheckForNull String holder) {
+		if (!preferLastHolder || holder == null) {
+			return Collections.emptyList();
+		}
+		List<LockableResource> lastHeld = new ArrayList<LockableResource>(1);
+		for (LockableResource r : candidates) {
+			if (holder.equals(r.getLastHolder())) {
+				lastHeld.add(r);
+			}
+		}
+		return lastHeld;
+	}
+
+	/*
+	 * The order the candidates are tried in: the ones released last by the job first,
+	 * then the others in the order of the selection strategy.
+	 */
+	private Iterable<LockableResource> selectionOrder(List<LockableResource> candidates,
+			final List<LockableResource> lastHeld) {
+		Iterable<LockableResource> order = getSelectionStrategy().order(candidates);
+		if (lastHeld.isEmpty()) {
+			return order;
+		}
+		final Set<LockableResource> first = new HashSet<LockableResource>(lastHeld);
+		return Iterables.concat(lastHeld, Iterables.filter(order, new Predicate<LockableResource>() {
+			@Override
+			public boolean apply(LockableResource r) {
+				return !first.contains(r);
+			}
+		}));
+	}
+
+	/*
+	 * Whether a queued item should keep waiting for a busy resource its job released last,
+	 * rather than take the other free ones it selected.
+	 */
+	private boolean waitsForLastHeld(List<LockableResource> lastHeld, List<LockableResource> selected,
+			long waitingSince) {
+		if (lastHeld.isEmpty() || affinityWait <= 0 || waitingSince <= 0
+				|| System.currentTimeMillis() - waitingSince >= TimeUnit.SECONDS.toMillis(affinityWait)) {
+			return false;
+		}
+		for (LockableResource r : lastHeld) {
+			if (selected.contains(r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isAffinityHit(List<LockableResource> lastHeld, Collection<LockableResource> selected) {
+		for (LockableResource r : lastHeld) {
+			if (selected.contains(r)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Records the cache affinity of resources just locked, if the job had released some of the candidates last.
+	 */
+	private static void recordAffinity(List<LockableResource> lastHeld, Collection<LockableResource> locked) {
+		if (!lastHeld.isEmpty()) {
+			LockMetrics.get().affinitySelected(isAffinityHit(lastHeld, locked));
+		}
+	}
+
+	/*
+	 * The full name of the job of a queued context, if the cache affinity needs it.
+	 */
+	@CheckForNull
+	private String holderOf(QueuedContextStruct entry) {
+		if (!preferLastHolder) {
+			return null;
+		}
+		try {
+			Run<?, ?> run = entry.getContext().get(Run.class);
+			return run != null ? run.getParent().getFullName() : null;
+		} catch (IOException | InterruptedException e) {
+			LOGGER.log(Level.FINE, "Could not get the build of a queued context: " + e, e);
+			return null;
+		}
+	}
+
+	/*
+	 * Remembers the job releasing the resources, for the cache affinity of its next builds.
+	 */
+	private void recordLastHolders(List<String> names, @Nullable Run<?, ?> build) {
+		for (String name : names) {
+			LockableResource r = fromName(name);
+			if (r == null) {
+				continue;
+			}
+			Run<?, ?> holder = build != null ? build : r.getBuild();
+			if (holder != null) {
+				r.setLastHolder(holder.getParent().getFullName());
+			}
+		}
+	}
+
 	// Adds already selected (in previous queue round) resources to 'selected'
 	// Return false if another item queued for this project -> bail out
 	private boolean checkCurrentResourcesStatus(List<LockableResource> selected,
@@ -299,22 +1035,49 @@ public class LockableResourcesManager extends GlobalConfiguration {
 	/**
 	 * Try to lock the resource and return true if locked.
 	 */
-	public synchronized boolean lock(Set<LockableResource> resources,
+	public boolean lock(Set<LockableResource> resources,
+			Run<?, ?> build, @Nullable StepContext context, @Nullable String logmessage,
+			final String variable, boolean inversePrecedence) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return lockLocked(resources, build, context, logmessage, variable, inversePrecedence);
+			} finally {
+				LockMetrics.get().operationDone("lock", entered);
+			}
+		}
+	}
+
+	private boolean lockLocked(Set<LockableResource> resources,
 			Run<?, ?> build, @Nullable StepContext context, @Nullable String logmessage,
 			final String variable, boolean inversePrecedence) {
 		boolean needToWait = false;
+		long queueItemId = build != null ? build.getQueueId() : LockableResource.NOT_QUEUED;
 
 		for (LockableResource r : resources) {
-			if (r.isReserved() || r.isLocked()) {
+			if (!isFree(r, queueItemId)) {
 				needToWait = true;
 				break;
 			}
 		}
+		if (!needToWait && !acquireInBackend(resources)) {
+			needToWait = true;
+		}
 		if (!needToWait) {
 			for (LockableResource r : resources) {
 				r.unqueue();
 				r.setBuild(build);
 			}
+			getSelectionStrategy().selected(resources);
+			if (context == null) {
+				// the build locks the resources it queued, see tryQueue
+				Boolean hit = pendingAffinity.getIfPresent(queueItemId);
+				if (hit != null) {
+					pendingAffinity.invalidate(queueItemId);
+					LockMetrics.get().affinitySelected(hit);
+				}
+			}
 			if (context != null) {
 				// since LockableResource contains transient variables, they cannot be correctly serialized
 				// hence we use their unique resource names
@@ -322,14 +1085,254 @@ public class LockableResourcesManager extends GlobalConfiguration {
 				for (LockableResource resource : resources) {
 					resourceNames.add(resource.getName());
 				}
-				LockStepExecution.proceed(resourceNames, context, logmessage, variable, inversePrecedence);
+				LockMetrics.get().recordWait(resources, 0);
+				proceed(resourceNames, context, logmessage, variable, inversePrecedence);
 			}
+			save();
 		}
-		save();
 		return !needToWait;
 	}
 
+	/**
+	 * Selects and locks the resources satisfying all the requirements as a single operation:
+	 * either every requirement is satisfied and the selected resources are locked by the build,
+	 * or nothing changes. This is the acquisition path of {@link LockStep}, it follows the same
+	 * availability rules as the queue of freestyle builds, see {@link #tryQueue}.
+	 *
+	 * @return the locked resources, or {@code null} if the requirements cannot be satisfied right now
+	 */
+	@CheckForNull
+	public Set<LockableResource> tryLock(List<LockableResourcesStruct> requiredResourcesList,
+			Run<?, ?> build, @Nullable StepContext context, @Nullable String logmessage,
+			final String variable, boolean inversePrecedence, @Nullable PrintStream logger) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return tryLockLocked(requiredResourcesList, build, context, logmessage, variable, inversePrecedence,
+						logger);
+			} finally {
+				LockMetrics.get().operationDone("tryLock", entered);
+			}
+		}
+	}
+
+	@CheckForNull
+	private Set<LockableResource> tryLockLocked(List<LockableResourcesStruct> requiredResourcesList,
+			Run<?, ?> build, @Nullable StepContext context, @Nullable String logmessage,
+			final String variable, boolean inversePrecedence, @Nullable PrintStream logger) {
+		List<LockableResource> lastHeld = new ArrayList<LockableResource>();
+		Set<LockableResource> available = checkResourcesAvailabilityLocked(requiredResourcesList, logger, null, null,
+				preferLastHolder ? build.getParent().getFullName() : null, lastHeld);
+		if (available == null || !lockLocked(available, build, context, logmessage, variable, inversePrecedence)) {
+			return null;
+		}
+		recordAffinity(lastHeld, available);
+		return available;
+	}
+
+	/**
+	 * Locks the resources required by a {@link LockStep}, or queues its context if they are not available.
+	 * Both happen in the same critical section, so resources released in between cannot be missed.
+	 *
+	 * @return {@code true} if the resources were locked and the step proceeds
+	 */
+	public boolean lockOrQueue(StepContext context, Run<?, ?> build,
+			List<LockableResourcesStruct> requiredResources, String resourceDescription,
+			final String variable, boolean inversePrecedence, @Nullable PrintStream logger) {
+		return lockOrQueue(context, build, requiredResources, resourceDescription, variable, inversePrecedence,
+				logger, null, 0);
+	}
+
+	/**
+	 * Like {@link #lockOrQueue(StepContext, Run, List, String, String, boolean, PrintStream)}, for a
+	 * lock step of a group: the {@code groupSize} lock steps of the build with the same {@code group}
+	 * wait for each other, and lock their resources all at once when all of them can get theirs.
+	 *
+	 * @return {@code true} if the resources of the group were locked and the steps proceed
+	 */
+	public boolean lockOrQueue(StepContext context, Run<?, ?> build,
+			List<LockableResourcesStruct> requiredResources, String resourceDescription,
+			final String variable, boolean inversePrecedence, @Nullable PrintStream logger,
+			@CheckForNull String group, int groupSize) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				if (group != null && groupSize > 1) {
+					return lockOrQueueGangLocked(context, build, requiredResources, resourceDescription, variable,
+							logger, build.getExternalizableId() + " " + group, groupSize);
+				}
+				return lockOrQueueLocked(context, build, requiredResources, resourceDescription, variable, inversePrecedence, logger);
+			} finally {
+				LockMetrics.get().operationDone("lockOrQueue", entered);
+			}
+		}
+	}
+
+	private boolean lockOrQueueGangLocked(StepContext context, Run<?, ?> build,
+			List<LockableResourcesStruct> requiredResources, String resourceDescription,
+			final String variable, @Nullable PrintStream logger, String gang, int gangSize) {
+		queueContextLocked(context, requiredResources, resourceDescription, variable);
+		int members = 0;
+		for (QueuedContextStruct entry : this.queuedContexts) {
+			if (entry.getContext() == context) {
+				entry.setGang(gang, gangSize);
+			}
+			if (gang.equals(entry.getGang())) {
+				members++;
+			}
+		}
+		if (startGangLocked(gang)) {
+			return true;
+		}
+		if (logger != null) {
+			if (members < gangSize) {
+				logger.println("[" + resourceDescription + "] waits for " + (gangSize - members)
+						+ " other lock(s) of its group...");
+			} else {
+				logger.println("[" + resourceDescription + "] is locked, waiting with its group...");
+			}
+		}
+		save();
+		return false;
+	}
+
+	/*
+	 * Locks the resources of all the queued contexts of the group if they are all
+	 * queued and can all get their resources, each its own, or none of them.
+	 */
+	private boolean startGangLocked(String gang) {
+		List<QueuedContextStruct> members = new ArrayList<QueuedContextStruct>();
+		for (QueuedContextStruct entry : this.queuedContexts) {
+			if (gang.equals(entry.getGang())) {
+				members.add(entry);
+			}
+		}
+		if (members.isEmpty()) {
+			return false;
+		}
+		int gangSize = Integer.MAX_VALUE;
+		for (QueuedContextStruct member : members) {
+			gangSize = Math.min(gangSize, member.getGangSize());
+		}
+		if (members.size() < gangSize) {
+			return false;
+		}
+
+		List<Set<LockableResource>> selections = new ArrayList<Set<LockableResource>>(members.size());
+		List<List<LockableResource>> lastHeld = new ArrayList<List<LockableResource>>(members.size());
+		Set<LockableResource> taken = new HashSet<LockableResource>();
+		for (QueuedContextStruct member : members) {
+			List<LockableResource> memberLastHeld = new ArrayList<LockableResource>();
+			Set<LockableResource> selected = checkResourcesAvailabilityLocked(member.getResources(), null, null, taken,
+					holderOf(member), memberLastHeld);
+			if (selected == null) {
+				return false;
+			}
+			taken.addAll(selected);
+			selections.add(selected);
+			lastHeld.add(memberLastHeld);
+		}
+		if (!acquireInBackend(taken)) {
+			return false;
+		}
+
+		List<String> handedTo = new ArrayList<String>();
+		for (int i = 0; i < members.size(); i++) {
+			QueuedContextStruct member = members.get(i);
+			Run<?, ?> run;
+			try {
+				run = member.getContext().get(Run.class);
+			} catch (IOException | InterruptedException e) {
+				LOGGER.log(Level.FINE, "Can not get the Run object of a queued context", e);
+				run = null;
+			}
+			removeQueuedContext(member);
+			if (run == null) {
+				// the build is gone, as are the other members
+				continue;
+			}
+			List<String> names = new ArrayList<String>();
+			for (LockableResource r : selections.get(i)) {
+				r.unqueue();
+				r.setBuild(run);
+				names.add(r.getName());
+			}
+			getSelectionStrategy().selected(selections.get(i));
+			recordAffinity(lastHeld.get(i), selections.get(i));
+			recordWait(member, selections.get(i));
+			proceed(names, member.getContext(), member.getResourceDescription(), member.getVariable(), false);
+			handedTo.add(member.getBuildExternalizableId());
+		}
+		detectDeadlocks(handedTo);
+		save();
+		return true;
+	}
+
+	/*
+	 * Starts the groups of queued contexts which can get their resources, after some were released.
+	 */
+	private void startWaitingGangsLocked() {
+		Set<String> gangs = new LinkedHashSet<String>();
+		for (QueuedContextStruct entry : this.queuedContexts) {
+			if (entry.getGang() != null) {
+				gangs.add(entry.getGang());
+			}
+		}
+		for (String gang : gangs) {
+			startGangLocked(gang);
+		}
+	}
+
+	private boolean lockOrQueueLocked(StepContext context, Run<?, ?> build,
+			List<LockableResourcesStruct> requiredResources, String resourceDescription,
+			final String variable, boolean inversePrecedence, @Nullable PrintStream logger) {
+		if (tryLockLocked(requiredResources, build, context, resourceDescription, variable, inversePrecedence,
+				logger) != null) {
+			return true;
+		}
+		if (logger != null) {
+			logger.println("[" + resourceDescription + "] is locked, waiting...");
+		}
+		queueContextLocked(new QueuedContextStruct(context, requiredResources, resourceDescription, variable,
+				build.getExternalizableId()));
+		return false;
+	}
+
+	private static void recordWait(QueuedContextStruct queued, Collection<LockableResource> resources) {
+		if (queued.getQueuedSince() > 0) {
+			LockMetrics.get().recordWait(resources, System.currentTimeMillis() - queued.getQueuedSince());
+		}
+	}
+
+	/**
+	 * Number of lock steps waiting for resources.
+	 */
+	public synchronized int getQueueDepth() {
+		return queuedContexts.size();
+	}
+
+	/*
+	 * Resumes the lock step which got its resources.
+	 * Overridden by the benchmarks, whose step contexts have no body to run.
+	 */
+	void proceed(List<String> resourceNames, StepContext context, String resourceDescription,
+			String variable, boolean inversePrecedence) {
+		LockStepExecution.proceed(resourceNames, context, resourceDescription, variable, inversePrecedence);
+	}
+
+	/*
+	 * Availability rule shared by the freestyle (queue) and the pipeline (lock step) paths:
+	 * a resource can be taken if it is neither reserved nor locked, and not queued
+	 * for a pending build other than the given queue item.
+	 */
+	private static boolean isFree(LockableResource r, long queueItemId) {
+		return !r.isReserved() && !r.isLocked() && !r.isQueued(queueItemId);
+	}
+
 	private synchronized void freeResources(List<String> unlockResourceNames, @Nullable Run<?, ?> build) {
+		List<String> freed = new ArrayList<String>();
 		for (String unlockResourceName : unlockResourceNames) {
 			for (LockableResource resource : this.resources) {
 				if (resource != null && resource.getName() != null && resource.getName().equals(unlockResourceName)) {
@@ -337,10 +1340,16 @@ public class LockableResourcesManager extends GlobalConfiguration {
 						// No more contexts, unlock resource
 						resource.unqueue();
 						resource.setBuild(null);
+						freed.add(unlockResourceName);
+						if (resource.isEphemeral())
+							releasedEphemeral.add(resource);
 					}
 				}
 			}
 		}
+		getBackend().release(freed);
+		if (releasedEphemeral.size() >= EPHEMERAL_BATCH)
+			removeReleasedEphemeralResources();
 	}
 
 	public synchronized void unlock(List<LockableResource> resourcesToUnLock, @Nullable Run<?, ?> build) {
@@ -359,14 +1368,29 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		this.unlockNames(resourceNamesToUnLock, build, requiredVar, inversePrecedence);
 	}
 
-	public synchronized void unlockNames(@Nullable List<String> resourceNamesToUnLock, @Nullable Run<?, ?> build, String requiredVar, boolean inversePrecedence) {
+	public void unlockNames(@Nullable List<String> resourceNamesToUnLock, @Nullable Run<?, ?> build, String requiredVar, boolean inversePrecedence) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				unlockNamesLocked(resourceNamesToUnLock, build, requiredVar, inversePrecedence);
+			} finally {
+				LockMetrics.get().operationDone("unlockNames", entered);
+			}
+		}
+	}
+
+	private void unlockNamesLocked(@Nullable List<String> resourceNamesToUnLock, @Nullable Run<?, ?> build, String requiredVar, boolean inversePrecedence) {
 		// make sure there is a list of resource names to unlock
 		if (resourceNamesToUnLock == null || (resourceNamesToUnLock.size() == 0)) {
 			return;
 		}
+		recordLastHolders(resourceNamesToUnLock, build);
 
 		// process as many contexts as possible
 		List<String> remainingResourceNamesToUnLock = new ArrayList<>(resourceNamesToUnLock);
+		// builds of the contexts the resources were handed over to
+		List<String> handedTo = new ArrayList<String>();
 
 		QueuedContextStruct nextContext = null;
 		while (!remainingResourceNamesToUnLock.isEmpty()) {
@@ -377,11 +1401,15 @@ public class LockableResourcesManager extends GlobalConfiguration {
 			// no context is queued which can be started once these resources are free'd.
 			if (nextContext == null) {
 				this.freeResources(remainingResourceNamesToUnLock, build);
+				startWaitingGangsLocked();
+				detectDeadlocks(handedTo);
 				save();
 				return;
 			}
 
-			requiredResourceForNextContext = checkResourcesAvailability(nextContext.getResources(), null, remainingResourceNamesToUnLock);
+			List<LockableResource> lastHeld = new ArrayList<LockableResource>();
+			requiredResourceForNextContext = checkResourcesAvailabilityLocked(nextContext.getResources(), null,
+					remainingResourceNamesToUnLock, null, holderOf(nextContext), lastHeld);
 
 			// resourceNamesToUnlock contains the names of the previous resources.
 			// requiredResourceForNextContext contains the resource objects which are required for the next context.
@@ -389,12 +1417,15 @@ public class LockableResourcesManager extends GlobalConfiguration {
 			boolean needToWait = false;
 			for (LockableResource requiredResource : requiredResourceForNextContext) {
 				if (!remainingResourceNamesToUnLock.contains(requiredResource.getName())) {
-					if (requiredResource.isReserved() || requiredResource.isLocked()) {
+					if (!isFree(requiredResource, LockableResource.NOT_QUEUED)) {
 						needToWait = true;
 						break;
 					}
 				}
 			}
+			if (!needToWait && !acquireInBackend(requiredResourceForNextContext)) {
+				needToWait = true;
+			}
 
 			if (!needToWait) {
 				// remove context from queue and process it
@@ -429,19 +1460,242 @@ public class LockableResourcesManager extends GlobalConfiguration {
 						}
 					}
 
-					if (!resourceStillNeeded) {
-						freeResources.add(resourceNameToUnlock);
-					}
+					if (!resourceStillNeeded) {
+						freeResources.add(resourceNameToUnlock);
+					}
+				}
+
+				// keep unused resources
+				remainingResourceNamesToUnLock.retainAll(freeResources);
+
+				// continue with next context
+				String variable = nextContext.getVariable() != null ? nextContext.getVariable() : requiredVar;
+				getSelectionStrategy().selected(requiredResourceForNextContext);
+				recordAffinity(lastHeld, requiredResourceForNextContext);
+				recordWait(nextContext, requiredResourceForNextContext);
+				proceed(resourceNamesToLock, nextContext.getContext(), nextContext.getResourceDescription(), variable, inversePrecedence);
+				handedTo.add(nextContext.getBuildExternalizableId());
+			}
+		}
+		startWaitingGangsLocked();
+		detectDeadlocks(handedTo);
+		save();
+	}
+
+	/**
+	 * Renews the lease of every lock held by a build which is still running, and releases
+	 * in one batch the locks whose lease expired because their build is gone or finished
+	 * without unlocking them (e.g. hard killed). Waiting contexts get the released resources.
+	 * Queued contexts of finished builds are dropped as well.
+	 *
+	 * @return names of the reclaimed resources
+	 */
+	public List<String> reclaimExpiredLeases() {
+		// which builds still run, found without holding the lock: loading a build, or the program
+		// of a pipeline for its context, can be slow
+		Set<String> lockedBy = new HashSet<String>();
+		List<QueuedContextStruct> queued;
+		synchronized (this) {
+			for (LockableResource r : this.resources) {
+				if (r.getBuildExternalizableId() != null) {
+					lockedBy.add(r.getBuildExternalizableId());
+				}
+			}
+			queued = new ArrayList<QueuedContextStruct>(this.queuedContexts);
+		}
+		Map<String, Boolean> building = new HashMap<String, Boolean>(lockedBy.size() * 2);
+		for (String id : lockedBy) {
+			Run<?, ?> build = resolveBuild(id);
+			building.put(id, build != null && build.isBuilding());
+		}
+		List<QueuedContextStruct> finished = new ArrayList<QueuedContextStruct>();
+		for (QueuedContextStruct entry : queued) {
+			try {
+				Run<?, ?> run = entry.getContext().get(Run.class);
+				if (run != null && !run.isBuilding()) {
+					finished.add(entry);
+				}
+			} catch (IOException | InterruptedException e) {
+				// the context may not be loaded yet, keep it
+				LOGGER.log(Level.FINE, "Can not get the Run object of a queued context", e);
+			}
+		}
+
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return reclaimExpiredLeasesLocked(building, finished);
+			} finally {
+				LockMetrics.get().operationDone("reclaimExpiredLeases", entered);
+			}
+		}
+	}
+
+	private List<String> reclaimExpiredLeasesLocked(Map<String, Boolean> building, List<QueuedContextStruct> finished) {
+		long now = System.currentTimeMillis();
+		List<String> expired = new ArrayList<String>();
+		for (LockableResource r : this.resources) {
+			String id = r.getBuildExternalizableId();
+			Boolean running = id != null ? building.get(id) : null;
+			if (running == null) {
+				// free, or locked meanwhile and checked next time
+				continue;
+			}
+			if (running || r.getLeaseExpiry() == 0) {
+				r.renewLease(now);
+			} else if (r.isLeaseExpired(now)) {
+				expired.add(r.getName());
+			}
+		}
+
+		List<QueuedContextStruct> orphans = new ArrayList<QueuedContextStruct>();
+		for (QueuedContextStruct entry : finished) {
+			// unless resumed meanwhile
+			if (this.queuedContexts.contains(entry)) {
+				orphans.add(entry);
+			}
+		}
+		if (!orphans.isEmpty()) {
+			LOGGER.log(Level.INFO, "Dropping {0} queued context(s) of finished builds", orphans.size());
+			removeQueuedContexts(orphans);
+		}
+
+		if (!expired.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Reclaiming resources whose lock lease expired: {0}", expired);
+			unlockNames(expired, null, null, false);
+		} else if (!orphans.isEmpty() || !releasedEphemeral.isEmpty()) {
+			// the remaining ephemeral resources, whatever the batch size
+			removeReleasedEphemeralResources();
+			save();
+		}
+
+		offerWaitedForResourcesLocked();
+
+		List<String> inUse = new ArrayList<String>();
+		for (LockableResource r : this.resources) {
+			if (r.isLocked() || r.isQueued()) {
+				inUse.add(r.getName());
+			}
+		}
+		getBackend().renew(inUse);
+		return expired;
+	}
+
+	/*
+	 * Hands the free resources the queued contexts wait for, by name or by label, to the first
+	 * context which can start with them. Queue reservations time out when they are checked,
+	 * and nothing offers the resources to the contexts then.
+	 */
+	private void offerWaitedForResourcesLocked() {
+		if (queuedContexts.isEmpty()) {
+			return;
+		}
+		Set<String> waitedFor = new LinkedHashSet<String>();
+		for (QueuedContextStruct entry : queuedContexts) {
+			for (LockableResourcesStruct required : entry.getResources()) {
+				if (required.label != null && !required.label.isEmpty()) {
+					for (LockableResource r : getResourcesWithLabel(required.label, null)) {
+						waitedFor.add(r.getName());
+					}
+				} else {
+					waitedFor.addAll(required.getRequiredNames());
+				}
+			}
+		}
+		List<String> free = new ArrayList<String>();
+		for (String name : waitedFor) {
+			LockableResource r = fromName(name);
+			if (r != null && isFree(r, LockableResource.NOT_QUEUED)) {
+				free.add(name);
+			}
+		}
+		if (!free.isEmpty() && getNextQueuedContext(free, false, null) != null) {
+			unlockNames(free, null, null, false);
+		} else {
+			startWaitingGangsLocked();
+		}
+	}
+
+	/**
+	 * Releases in one batch the locks held by builds which are gone or finished,
+	 * e.g. while Jenkins was down, then offers all the free resources to the
+	 * waiting contexts once. The builds are loaded in parallel on the given
+	 * executor without holding the manager lock, as loading them can be slow.
+	 *
+	 * @return names of the released resources
+	 */
+	public List<String> reconcileLocks(ExecutorService executor) throws InterruptedException {
+		Map<String, String> lockedBy = new HashMap<String, String>();
+		synchronized (this) {
+			for (LockableResource r : this.resources) {
+				if (r.getBuildExternalizableId() != null) {
+					lockedBy.put(r.getName(), r.getBuildExternalizableId());
 				}
+			}
+		}
 
-				// keep unused resources
-				remainingResourceNamesToUnLock.retainAll(freeResources);
+		Map<String, Future<Boolean>> resolving = new HashMap<String, Future<Boolean>>();
+		for (final String id : new HashSet<String>(lockedBy.values())) {
+			resolving.put(id, executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					Run<?, ?> build = resolveBuild(id);
+					return build != null && build.isBuilding();
+				}
+			}));
+		}
+		Set<String> finished = new HashSet<String>();
+		for (Map.Entry<String, Future<Boolean>> e : resolving.entrySet()) {
+			try {
+				if (!e.getValue().get()) {
+					finished.add(e.getKey());
+				}
+			} catch (ExecutionException x) {
+				// left to the lease reaper
+				LOGGER.log(Level.WARNING, "Failed to load the build " + e.getKey() + " holding lockable resources", x);
+			}
+		}
 
-				// continue with next context
-				LockStepExecution.proceed(resourceNamesToLock, nextContext.getContext(), nextContext.getResourceDescription(), requiredVar, inversePrecedence);
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			List<String> orphans = new ArrayList<String>();
+			BulkChange bc = new BulkChange(this);
+			try {
+				List<String> names = new ArrayList<String>(this.resources.size());
+				for (LockableResource r : this.resources) {
+					String id = r.getBuildExternalizableId();
+					// unless locked again meanwhile
+					if (id != null && finished.contains(id) && id.equals(lockedBy.get(r.getName()))) {
+						orphans.add(r.getName());
+					}
+					names.add(r.getName());
+				}
+				if (!orphans.isEmpty()) {
+					LOGGER.log(Level.WARNING, "Releasing resources locked by builds which are not running: {0}", orphans);
+					unlockNamesLocked(orphans, null, null, false);
+				}
+				if (!this.queuedContexts.isEmpty()) {
+					offerReleasedResourcesLocked(names);
+				}
+				bc.commit();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), e);
+			} finally {
+				bc.abort();
+				LockMetrics.get().operationDone("reconcileLocks", entered);
 			}
+			return orphans;
 		}
-		save();
+	}
+
+	/*
+	 * Loads the build with the given id, overridden when running without Jenkins.
+	 */
+	@CheckForNull
+	Run<?, ?> resolveBuild(String externalizableId) {
+		return Run.fromExternalizableId(externalizableId);
 	}
 
 	/**
@@ -456,10 +1710,13 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		QueuedContextStruct newestEntry = null;
 		List<LockableResource> requiredResourceForNextContext = null;
 		int fromIndex = from != null ? this.queuedContexts.indexOf(from) + 1 : 0;
+		LockMetrics.get().queueScanned(this.queuedContexts.size() - fromIndex);
 		if (!inversePrecedence) {
 			for (int i = fromIndex; i < this.queuedContexts.size(); i++) {
 				QueuedContextStruct entry = this.queuedContexts.get(i);
-				if (checkResourcesAvailability(entry.getResources(), null, resourceNamesToUnLock) != null) {
+				// groups only start together, see startWaitingGangsLocked()
+				if (entry.getGang() == null
+						&& checkResourcesAvailability(entry.getResources(), null, resourceNamesToUnLock) != null) {
 					return entry;
 				}
 			}
@@ -468,7 +1725,8 @@ public class LockableResourcesManager extends GlobalConfiguration {
 			List<QueuedContextStruct> orphan = new ArrayList<QueuedContextStruct>();
 			for (int i = fromIndex; i < this.queuedContexts.size(); i++) {
 				QueuedContextStruct entry = this.queuedContexts.get(i);
-				if (checkResourcesAvailability(entry.getResources(), null, resourceNamesToUnLock) != null) {
+				if (entry.getGang() == null
+						&& checkResourcesAvailability(entry.getResources(), null, resourceNamesToUnLock) != null) {
 					try {
 						Run<?, ?> run = entry.getContext().get(Run.class);
 						if (run != null && run.getStartTimeInMillis() > newest) {
@@ -482,7 +1740,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
 				}
 			}
 			if (!orphan.isEmpty()) {
-				this.queuedContexts.removeAll(orphan);
+				removeQueuedContexts(orphan);
 			}
 		}
 
@@ -496,7 +1754,8 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		if (name != null) {
 			LockableResource existent = fromName(name);
 			if (existent == null) {
-				getResources().add(new LockableResource(name));
+				LockableResource r = new LockableResource(name);
+				addResource(r);
 				save();
 				return true;
 			}
@@ -504,11 +1763,110 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		return false;
 	}
 
+	/**
+	 * Creates the resources of the sets which do not exist yet, and updates
+	 * the labels and descriptions of the ones which do, in one transaction
+	 * with a single save. Existing locks and reservations are kept.
+	 *
+	 * @return the number of created resources
+	 */
+	public int provision(ResourceSet... sets) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return provisionLocked(sets);
+			} finally {
+				LockMetrics.get().operationDone("provision", entered);
+			}
+		}
+	}
+
+	private int provisionLocked(ResourceSet... sets) {
+		Map<String, LockableResource> generated = new LinkedHashMap<String, LockableResource>();
+		for (ResourceSet set : sets) {
+			for (LockableResource r : set) {
+				generated.put(r.getName(), r);
+			}
+		}
+		// the current resources, where the generated ones replace the ones with the same name
+		List<LockableResource> configured = new ArrayList<LockableResource>(resources.size() + generated.size());
+		for (LockableResource r : resources) {
+			LockableResource g = generated.remove(r.getName());
+			if (g != null) {
+				g.setReservedBy(r.getReservedBy());
+				configured.add(g);
+			} else {
+				configured.add(r);
+			}
+		}
+		int created = generated.size();
+		configured.addAll(generated.values());
+		setResources(configured);
+		save();
+		return created;
+	}
+
+	/**
+	 * Creates a resource for a lock step on an unknown name. Unlike
+	 * {@link #createResource}, it is not saved right away but with the lock
+	 * which follows, and it is removed once released with no context waiting for it.
+	 *
+	 * @return whether the resource was created
+	 */
+	public synchronized boolean createEphemeralResource(String name) {
+		if (name == null || fromName(name) != null)
+			return false;
+		LockableResource r = new LockableResource(name);
+		r.setEphemeral(true);
+		addResource(r);
+		return true;
+	}
+
+	/**
+	 * Removes the released ephemeral resources which are still unused, in one
+	 * pass over the resources and with an update of the index per resource.
+	 */
+	private void removeReleasedEphemeralResources() {
+		if (releasedEphemeral.isEmpty())
+			return;
+		Set<String> waitedFor = new HashSet<String>();
+		for (QueuedContextStruct entry : queuedContexts) {
+			for (LockableResourcesStruct required : entry.getResources()) {
+				waitedFor.addAll(required.getRequiredNames());
+			}
+		}
+		List<LockableResource> unused = new ArrayList<LockableResource>();
+		for (LockableResource r : releasedEphemeral) {
+			if (r.isEphemeral() && !r.isLocked() && !r.isReserved() && !r.isQueued()
+					&& !waitedFor.contains(r.getName()) && fromName(r.getName()) == r) {
+				unused.add(r);
+			}
+		}
+		releasedEphemeral.clear();
+		if (unused.isEmpty())
+			return;
+		Set<LockableResource> removed = Collections.newSetFromMap(new IdentityHashMap<LockableResource, Boolean>());
+		removed.addAll(unused);
+		List<LockableResource> previous = resources;
+		List<LockableResource> updated = new ArrayList<LockableResource>(previous.size() - unused.size());
+		for (LockableResource r : previous) {
+			if (!removed.contains(r))
+				updated.add(r);
+		}
+		resources = updated;
+		index.removed(previous, updated, unused);
+		LockMetrics.get().forget(unused, updated);
+		getSelectionStrategy().removed(unused);
+		LOGGER.log(Level.FINE, "Removed {0} unused ephemeral resource(s)", unused.size());
+	}
+
 	public synchronized boolean createResourceWithLabel(String name, String label) {
 		if (name !=null && label !=null) {
 			LockableResource existent = fromName(name);
 			if (existent == null) {
-				getResources().add(new LockableResource(name, "", label, null));
+				LockableResource r = new LockableResource(name, "", label, null);
+				addResource(r);
 				save();
 				return true;
 			}
@@ -516,7 +1874,20 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		return false;
 	}
 
-	public synchronized boolean reserve(List<LockableResource> resources,
+	public boolean reserve(List<LockableResource> resources,
+			String userName) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return reserveLocked(resources, userName);
+			} finally {
+				LockMetrics.get().operationDone("reserve", entered);
+			}
+		}
+	}
+
+	private boolean reserveLocked(List<LockableResource> resources,
 			String userName) {
 		for (LockableResource r : resources) {
 			if (r.isReserved() || r.isLocked() || r.isQueued()) {
@@ -536,7 +1907,19 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		}
 		save();
 	}
-	public synchronized void unreserve(List<LockableResource> resources) {
+	public void unreserve(List<LockableResource> resources) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				unreserveLocked(resources);
+			} finally {
+				LockMetrics.get().operationDone("unreserve", entered);
+			}
+		}
+	}
+
+	private void unreserveLocked(List<LockableResource> resources) {
 		// make sure there is a list of resources to unreserve
 		if (resources == null || (resources.size() == 0)) {
 			return;
@@ -568,10 +1951,14 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		}
 
 		// remove context from queue and process it
-		requiredResourceForNextContext = checkResourcesAvailability(nextContext.getResources(),
+		List<LockableResource> lastHeld = new ArrayList<LockableResource>();
+		requiredResourceForNextContext = checkResourcesAvailabilityLocked(nextContext.getResources(),
 				nextContextLogger,
-				resourceNamesToUnreserve);
-		this.queuedContexts.remove(nextContext);
+				resourceNamesToUnreserve,
+				null,
+				holderOf(nextContext),
+				lastHeld);
+		removeQueuedContext(nextContext);
 
 		// resourceNamesToUnreserve contains the names of the previous resources.
 		// requiredResourceForNextContext contains the resource objects which are required for the next context.
@@ -579,12 +1966,15 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		boolean needToWait = false;
 		for (LockableResource requiredResource : requiredResourceForNextContext) {
 			if (!resourceNamesToUnreserve.contains(requiredResource.getName())) {
-				if (requiredResource.isReserved() || requiredResource.isLocked()) {
+				if (!isFree(requiredResource, LockableResource.NOT_QUEUED)) {
 					needToWait = true;
 					break;
 				}
 			}
 		}
+		if (!needToWait && !acquireInBackend(requiredResourceForNextContext)) {
+			needToWait = true;
+		}
 
 		if (needToWait) {
 			unreserveResources(resources);
@@ -609,7 +1999,11 @@ public class LockableResourcesManager extends GlobalConfiguration {
 			}
 
 			// continue with next context
-			LockStepExecution.proceed(resourceNamesToLock, nextContext.getContext(), nextContext.getResourceDescription(), null, false);
+			getSelectionStrategy().selected(requiredResourceForNextContext);
+			recordAffinity(lastHeld, requiredResourceForNextContext);
+			recordWait(nextContext, requiredResourceForNextContext);
+			proceed(resourceNamesToLock, nextContext.getContext(), nextContext.getResourceDescription(), nextContext.getVariable(), false);
+			detectDeadlocks(Collections.singletonList(nextContext.getBuildExternalizableId()));
 		}
 		save();
 	}
@@ -619,41 +2013,209 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		return "External Resources";
 	}
 
-	public synchronized void reset(List<LockableResource> resources) {
+	public void reset(List<LockableResource> resources) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				resetLocked(resources);
+			} finally {
+				LockMetrics.get().operationDone("reset", entered);
+			}
+		}
+	}
+
+	private void resetLocked(List<LockableResource> resources) {
+		List<String> names = new ArrayList<String>();
 		for (LockableResource r : resources) {
 			r.reset();
+			names.add(r.getName());
 		}
+		getBackend().release(names);
 		save();
 	}
 
+	/**
+	 * Reserves those of the resources which are free, in one transaction
+	 * with a single save, and skips the others.
+	 *
+	 * @return the reserved resources
+	 */
+	public List<LockableResource> reserveFree(List<LockableResource> resources, String userName) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				List<LockableResource> reserved = new ArrayList<LockableResource>();
+				for (LockableResource r : resources) {
+					if (isFree(r, LockableResource.NOT_QUEUED)) {
+						r.setReservedBy(userName);
+						reserved.add(r);
+					}
+				}
+				if (!reserved.isEmpty())
+					save();
+				return reserved;
+			} finally {
+				LockMetrics.get().operationDone("reserveFree", entered);
+			}
+		}
+	}
+
+	/**
+	 * Unreserves the resources and hands all of them to the waiting
+	 * contexts in one pass, with a single save.
+	 *
+	 * @return the unreserved resources
+	 */
+	public List<LockableResource> unreserveAll(List<LockableResource> resources) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			List<LockableResource> unreserved = new ArrayList<LockableResource>();
+			BulkChange bc = new BulkChange(this);
+			try {
+				List<String> names = new ArrayList<String>();
+				for (LockableResource r : resources) {
+					if (r.isReserved()) {
+						r.unReserve();
+						unreserved.add(r);
+						names.add(r.getName());
+					}
+				}
+				offerReleasedResourcesLocked(names);
+				bc.commit();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), e);
+			} finally {
+				bc.abort();
+				LockMetrics.get().operationDone("unreserveAll", entered);
+			}
+			return unreserved;
+		}
+	}
+
+	/**
+	 * Unlocks those of the resources which are locked, whichever build holds
+	 * them, and hands them to the waiting contexts in one pass, with a single save.
+	 *
+	 * @return the unlocked resources
+	 */
+	public List<LockableResource> unlockAll(List<LockableResource> resources) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			List<LockableResource> locked = new ArrayList<LockableResource>();
+			BulkChange bc = new BulkChange(this);
+			try {
+				List<String> names = new ArrayList<String>();
+				for (LockableResource r : resources) {
+					if (r.isLocked()) {
+						locked.add(r);
+						names.add(r.getName());
+					}
+				}
+				unlockNamesLocked(names, null, null, false);
+				bc.commit();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), e);
+			} finally {
+				bc.abort();
+				LockMetrics.get().operationDone("unlockAll", entered);
+			}
+			return locked;
+		}
+	}
+
 	@Override
 	public boolean configure(StaplerRequest req, JSONObject json)
 			throws FormException {
 		try {
 			List<LockableResource> newResouces = req.bindJSONToList(
 					LockableResource.class, json.get("resources"));
-			for (LockableResource r : newResouces) {
-				LockableResource old = fromName(r.getName());
-				if (old != null) {
-					r.setBuild(old.getBuild());
-					r.setQueued(r.getQueueItemId(), r.getQueueItemProject());
-				}
+			synchronized (this) {
+				return configureLocked(req, json, newResouces);
 			}
-			resources = newResouces;
-			save();
-			return true;
-		} catch (JSONException e) {
+		} catch (JSONException | IllegalArgumentException e) {
 			return false;
 		}
 	}
 
+	private boolean configureLocked(StaplerRequest req, JSONObject json, List<LockableResource> newResouces) {
+		setResources(newResouces);
+		String policy = Util.fixEmpty(json.optString("deadlockVictimPolicy"));
+		if (policy != null) {
+			deadlockVictimPolicy = DeadlockVictimPolicy.valueOf(policy);
+		}
+		String mode = Util.fixEmpty(json.optString("persistenceMode"));
+		if (mode != null && PersistenceMode.valueOf(mode) != getPersistenceMode()) {
+			persistenceMode = PersistenceMode.valueOf(mode);
+			// only the changed resources are dirty, the new mode writes all of them
+			markAllDirty();
+		}
+		JSONObject backendJson = json.optJSONObject("backend");
+		if (backendJson != null) {
+			LockableResourcesBackend configured = req.bindJSON(LockableResourcesBackend.class, backendJson);
+			// unchanged, keep its watcher and leases
+			if (!getBackend().isSameConfiguration(configured)) {
+				replaceBackend(configured);
+			}
+		}
+		preferLastHolder = json.optBoolean("preferLastHolder");
+		affinityWait = Math.max(0, json.optInt("affinityWait"));
+		JSONObject selectionJson = json.optJSONObject("selectionStrategy");
+		if (selectionJson != null) {
+			selectionStrategy = req.bindJSON(ResourceSelectionStrategy.class, selectionJson);
+		}
+		save();
+		return true;
+	}
+
 	/**
 	 * Checks if there are enough resources available to satisfy the requirements specified
 	 * within requiredResources and returns the necessary available resources.
 	 * If not enough resources are available, returns null.
 	 */
-	public synchronized Set<LockableResource> checkResourcesAvailability(List<LockableResourcesStruct> requiredResourcesList,
+	public Set<LockableResource> checkResourcesAvailability(List<LockableResourcesStruct> requiredResourcesList,
+			@Nullable PrintStream logger, @Nullable List<String> lockedResourcesAboutToBeUnlocked) {
+		return checkResourcesAvailability(requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked, null);
+	}
+
+	/**
+	 * Same as above, for a build of the given job, which gets the free resources it released
+	 * last first if {@link #isPreferLastHolder()}.
+	 *
+	 * @param holder full name of the job, {@code null} to ignore the cache affinity
+	 */
+	public Set<LockableResource> checkResourcesAvailability(List<LockableResourcesStruct> requiredResourcesList,
+			@Nullable PrintStream logger, @Nullable List<String> lockedResourcesAboutToBeUnlocked,
+			@CheckForNull String holder) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return checkResourcesAvailabilityLocked(requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked,
+						null, holder, null);
+			} finally {
+				LockMetrics.get().operationDone("checkResourcesAvailability", entered);
+			}
+		}
+	}
+
+	private Set<LockableResource> checkResourcesAvailabilityLocked(List<LockableResourcesStruct> requiredResourcesList,
 			@Nullable PrintStream logger, @Nullable List<String> lockedResourcesAboutToBeUnlocked) {
+		return checkResourcesAvailabilityLocked(requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked, null, null, null);
+	}
+
+	/*
+	 * Same as above, without selecting the excluded resources, e.g. taken by the other members of a group,
+	 * and preferring the resources released last by the holder. Those candidates are added to lastHeld, if given,
+	 * to record the cache affinity once the selected resources are locked.
+	 */
+	private Set<LockableResource> checkResourcesAvailabilityLocked(List<LockableResourcesStruct> requiredResourcesList,
+			@Nullable PrintStream logger, @Nullable List<String> lockedResourcesAboutToBeUnlocked,
+			@Nullable Set<LockableResource> excluded, @CheckForNull String holder,
+			@Nullable List<LockableResource> lastHeld) {
 
 		List<LockableResourcesCandidatesStruct> requiredResourcesCandidatesList = new ArrayList<>();
 
@@ -663,7 +2225,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
 			int requiredAmount = 0; // 0 means all
 			List<LockableResource> candidates = new ArrayList<>();
 			if (requiredResources.label != null && requiredResources.label.isEmpty()) {
-				candidates.addAll(requiredResources.required);
+				candidates.addAll(fromNames(requiredResources.getRequiredNames()));
 			} else {
 				candidates.addAll(getResourcesWithLabel(requiredResources.label, null));
 				if (requiredResources.requiredNumber != null) {
@@ -678,6 +2240,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
 			if (requiredAmount == 0) {
 				requiredAmount = candidates.size();
 			}
+			if (excluded != null) {
+				candidates.removeAll(excluded);
+			}
 
 			requiredResourcesCandidatesList.add(new LockableResourcesCandidatesStruct(candidates, requiredAmount));
 		}
@@ -727,17 +2292,21 @@ public class LockableResourcesManager extends GlobalConfiguration {
 				if (selected.size() >= requiredAmount) {
 					break;
 				}
-				if (!rs.isReserved() && !rs.isLocked()) {
+				if (isFree(rs, LockableResource.NOT_QUEUED)) {
 					selected.add(rs);
 				}
 			}
 
 			candidates.removeAll(alreadySelectedCandidates);
-			for (LockableResource rs : candidates) {
+			List<LockableResource> candidatesLastHeld = lastHeldBy(candidates, holder);
+			if (lastHeld != null) {
+				lastHeld.addAll(candidatesLastHeld);
+			}
+			for (LockableResource rs : selectionOrder(candidates, candidatesLastHeld)) {
 				if (selected.size() >= requiredAmount) {
 					break;
 				}
-				if (!rs.isReserved() && !rs.isLocked()) {
+				if (isFree(rs, LockableResource.NOT_QUEUED)) {
 					selected.add(rs);
 				}
 			}
@@ -759,21 +2328,249 @@ public class LockableResourcesManager extends GlobalConfiguration {
 	 * Adds the given context and the required resources to the queue if
 	 * this context is not yet queued.
 	 */
-	public synchronized void queueContext(StepContext context, List<LockableResourcesStruct> requiredResources, String resourceDescription) {
+	public void queueContext(StepContext context, List<LockableResourcesStruct> requiredResources, String resourceDescription) {
+		queueContext(context, requiredResources, resourceDescription, null);
+	}
+
+	public void queueContext(StepContext context, List<LockableResourcesStruct> requiredResources, String resourceDescription, @Nullable String variable) {
+		// resolves the build of the context, before taking the lock
+		QueuedContextStruct queued = new QueuedContextStruct(context, requiredResources, resourceDescription, variable);
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				queueContextLocked(queued);
+			} finally {
+				LockMetrics.get().operationDone("queueContext", entered);
+			}
+		}
+	}
+
+	private void queueContextLocked(QueuedContextStruct queued) {
 		for (QueuedContextStruct entry : this.queuedContexts) {
-			if (entry.getContext() == context) {
+			if (entry.getContext() == queued.getContext()) {
 				return;
 			}
 		}
 
-		this.queuedContexts.add(new QueuedContextStruct(context, requiredResources, resourceDescription));
+		addQueuedContext(queued);
+		detectDeadlock(queued);
 		save();
 	}
 
-	public synchronized boolean unqueueContext(StepContext context) {
-		for (Iterator<QueuedContextStruct> iter = this.queuedContexts.listIterator(); iter.hasNext(); ) {
-			if (iter.next().getContext() == context) {
-				iter.remove();
+	private void addQueuedContext(QueuedContextStruct entry) {
+		this.queuedContexts.add(entry);
+		String buildId = entry.getBuildExternalizableId();
+		if (waitingBuilds != null && buildId != null) {
+			List<QueuedContextStruct> entries = waitingBuilds.get(buildId);
+			if (entries == null) {
+				entries = new ArrayList<QueuedContextStruct>();
+				waitingBuilds.put(buildId, entries);
+			}
+			entries.add(entry);
+		}
+	}
+
+	private void removeQueuedContext(QueuedContextStruct entry) {
+		this.queuedContexts.remove(entry);
+		String buildId = entry.getBuildExternalizableId();
+		if (waitingBuilds != null && buildId != null) {
+			List<QueuedContextStruct> entries = waitingBuilds.get(buildId);
+			if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+				waitingBuilds.remove(buildId);
+			}
+		}
+	}
+
+	private void removeQueuedContexts(Collection<QueuedContextStruct> entries) {
+		for (QueuedContextStruct entry : entries) {
+			removeQueuedContext(entry);
+		}
+	}
+
+	private Map<String, List<QueuedContextStruct>> getWaitingBuilds() {
+		if (waitingBuilds == null) {
+			Map<String, List<QueuedContextStruct>> waiting = new HashMap<String, List<QueuedContextStruct>>();
+			for (QueuedContextStruct entry : this.queuedContexts) {
+				String buildId = entry.getBuildExternalizableId();
+				if (buildId == null) {
+					continue;
+				}
+				List<QueuedContextStruct> entries = waiting.get(buildId);
+				if (entries == null) {
+					entries = new ArrayList<QueuedContextStruct>();
+					waiting.put(buildId, entries);
+				}
+				entries.add(entry);
+			}
+			waitingBuilds = waiting;
+		}
+		return waitingBuilds;
+	}
+
+	/*
+	 * Looks for a cycle in the wait-for graph which goes through the freshly queued context.
+	 * Nodes of the graph are builds: a build waits for every other build holding a resource
+	 * one of its queued contexts cannot do without. Only the edges of the new context can
+	 * close a cycle, so the search starts from there.
+	 */
+	private void detectDeadlock(QueuedContextStruct requester) {
+		String requesterId = requester.getBuildExternalizableId();
+		if (requesterId != null) {
+			detectDeadlock(requesterId, Arrays.asList(requester));
+		}
+	}
+
+	/*
+	 * Looks for the cycles closed by resources handed over to queued contexts: the contexts
+	 * which waited for them now wait for the builds they were handed to, so any new cycle
+	 * goes through one of these builds.
+	 */
+	private void detectDeadlocks(Collection<String> handedTo) {
+		for (String buildId : new LinkedHashSet<String>(handedTo)) {
+			List<QueuedContextStruct> entries = buildId != null ? getWaitingBuilds().get(buildId) : null;
+			if (entries != null) {
+				detectDeadlock(buildId, new ArrayList<QueuedContextStruct>(entries));
+			}
+		}
+	}
+
+	private void detectDeadlock(String buildId, List<QueuedContextStruct> entries) {
+		Set<String> visited = new HashSet<String>();
+		visited.add(buildId);
+		List<QueuedContextStruct> cycle = findWaitCycle(buildId, entries, getWaitingBuilds(),
+				new ArrayList<QueuedContextStruct>(), visited);
+		if (cycle != null) {
+			// the context the search started from
+			resolveDeadlock(cycle.get(0), cycle);
+		}
+	}
+
+	@CheckForNull
+	private List<QueuedContextStruct> findWaitCycle(String origin, List<QueuedContextStruct> entries,
+			Map<String, List<QueuedContextStruct>> waiting, List<QueuedContextStruct> path, Set<String> visited) {
+		for (QueuedContextStruct entry : entries) {
+			path.add(entry);
+			for (String holder : getBlockingHolders(entry)) {
+				if (holder.equals(origin)) {
+					return new ArrayList<QueuedContextStruct>(path);
+				}
+				List<QueuedContextStruct> holderEntries = waiting.get(holder);
+				if (holderEntries != null && visited.add(holder)) {
+					List<QueuedContextStruct> cycle = findWaitCycle(origin, holderEntries, waiting, path, visited);
+					if (cycle != null) {
+						return cycle;
+					}
+				}
+			}
+			path.remove(path.size() - 1);
+		}
+		return null;
+	}
+
+	/*
+	 * Returns the builds holding resources the queued context cannot be started without.
+	 * A label request for a part of the pool can be satisfied by any other candidate,
+	 * so only explicit resources and requests for the whole label are taken into account.
+	 * Resources held by the waiting build itself (e.g. by a parallel branch) are ignored.
+	 */
+	private Set<String> getBlockingHolders(QueuedContextStruct entry) {
+		Set<String> holders = new HashSet<String>();
+		String waiter = entry.getBuildExternalizableId();
+		for (LockableResourcesStruct requirement : entry.getResources()) {
+			List<LockableResource> candidates = new ArrayList<LockableResource>();
+			if (requirement.label != null && requirement.label.isEmpty()) {
+				candidates.addAll(fromNames(requirement.getRequiredNames()));
+			} else {
+				candidates.addAll(getResourcesWithLabel(requirement.label, null));
+				if (requirement.requiredNumber != null) {
+					try {
+						if (Integer.parseInt(requirement.requiredNumber) < candidates.size()) {
+							continue;
+						}
+					} catch (NumberFormatException e) {
+						// 0 means all
+					}
+				}
+			}
+			for (LockableResource r : candidates) {
+				String holder = r.getBuildExternalizableId();
+				if (holder != null && !holder.equals(waiter)) {
+					holders.add(holder);
+				}
+			}
+		}
+		return holders;
+	}
+
+	private void resolveDeadlock(QueuedContextStruct requester, List<QueuedContextStruct> cycle) {
+		List<String> description = new ArrayList<String>();
+		for (QueuedContextStruct entry : cycle) {
+			description.add(entry.getBuildExternalizableId() + " waiting for [" + entry.getResourceDescription() + "]");
+		}
+		String message = "Deadlock detected: " + StringUtils.join(description, " -> ");
+		LOGGER.log(Level.WARNING, message);
+
+		QueuedContextStruct victim = null;
+		switch (getDeadlockVictimPolicy()) {
+			case ABORT_REQUESTER:
+				victim = requester;
+				break;
+			case ABORT_NEWEST:
+				long newest = Long.MIN_VALUE;
+				for (QueuedContextStruct entry : cycle) {
+					try {
+						Run<?, ?> run = entry.getContext().get(Run.class);
+						if (run != null && run.getStartTimeInMillis() > newest) {
+							newest = run.getStartTimeInMillis();
+							victim = entry;
+						}
+					} catch (IOException | InterruptedException e) {
+						LOGGER.log(Level.FINE, "Can not get the Run object of a deadlocked context", e);
+					}
+				}
+				break;
+			default:
+				break;
+		}
+
+		for (QueuedContextStruct entry : cycle) {
+			try {
+				TaskListener listener = entry.getContext().get(TaskListener.class);
+				if (listener != null) {
+					listener.getLogger().println(message);
+				}
+			} catch (IOException | InterruptedException e) {
+				LOGGER.log(Level.FINE, "Could not get logger for deadlocked context: " + e, e);
+			}
+		}
+
+		if (victim != null) {
+			removeQueuedContext(victim);
+			victim.getContext().onFailure(new AbortException(message
+					+ ". Aborting the lock request on [" + victim.getResourceDescription() + "]"));
+		}
+	}
+
+	public boolean unqueueContext(StepContext context) {
+		long requested = System.nanoTime();
+		synchronized (this) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				return unqueueContextLocked(context);
+			} finally {
+				LockMetrics.get().operationDone("unqueueContext", entered);
+			}
+		}
+	}
+
+	private boolean unqueueContextLocked(StepContext context) {
+		for (QueuedContextStruct entry : this.queuedContexts) {
+			if (entry.getContext() == context) {
+				removeQueuedContext(entry);
+				if (entry.getGang() != null) {
+					withdrawFromGangLocked(entry.getGang());
+				}
 				save();
 				return true;
 			}
@@ -781,6 +2578,23 @@ public class LockableResourcesManager extends GlobalConfiguration {
 		return false;
 	}
 
+	/*
+	 * A member of the group gave up waiting, e.g. its step was stopped: the others no longer
+	 * wait for it.
+	 */
+	private void withdrawFromGangLocked(String gang) {
+		boolean waiting = false;
+		for (QueuedContextStruct entry : this.queuedContexts) {
+			if (gang.equals(entry.getGang())) {
+				entry.setGang(gang, entry.getGangSize() - 1);
+				waiting = true;
+			}
+		}
+		if (waiting) {
+			startGangLocked(gang);
+		}
+	}
+
 	public static LockableResourcesManager get() {
 		return (LockableResourcesManager) Jenkins.getInstance()
 				.getDescriptorOrDie(LockableResourcesManager.class);
@@ -790,13 +2604,88 @@ public class LockableResourcesManager extends GlobalConfiguration {
                 if(BulkChange.contains(this))
                     return;
 
+                publishChanges();
+
+                long started = System.nanoTime();
                 try {
-                    getConfigFile().write(this);
+                    long bytes;
+                    if (getPersistenceMode() == PersistenceMode.RESOURCE_FILES) {
+                        // only the changed resources are written
+                        bytes = getStore().save(resources);
+                        XmlFile file = new XmlFile(WITHOUT_RESOURCES, getConfigFile().getFile());
+                        file.write(this);
+                        bytes += file.getFile().length();
+                    } else if (getPersistenceMode() == PersistenceMode.BINARY) {
+                        bytes = getSnapshotFile().save(resources);
+                        XmlFile file = new XmlFile(WITHOUT_RESOURCES, getConfigFile().getFile());
+                        file.write(this);
+                        bytes += file.getFile().length();
+                    } else {
+                        if (resources instanceof ResourceList) {
+                            // written as the plain list it is loaded as
+                            List<LockableResource> previous = resources;
+                            resources = new ArrayList<LockableResource>(previous);
+                            index.replaced(previous, resources);
+                        }
+                        XmlFile file = getConfigFile();
+                        file.write(this);
+                        bytes = file.getFile().length();
+                        for (LockableResource r : resources) {
+                            r.setDirty(false);
+                        }
+                    }
+                    LockMetrics.get().saveDone(started, bytes);
                 } catch (IOException e) {
                     LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(),e);
                 }
         }
 
+	/**
+	 * Publishes the resources changed since the last save, before they are
+	 * persisted and marked clean: as a new snapshot, which shares the states
+	 * of the unchanged resources with the previous one, and to the change feed.
+	 * Resources removed or moved make the feed clients reload.
+	 */
+	private void publishChanges() {
+		ResourcesSnapshot previous = snapshot;
+		LockableResource[] sources = snapshotSources;
+		// whether the resources of the previous snapshot are still at the same place
+		boolean appended = previous != null && sources.length <= resources.size();
+		for (int i = 0; appended && i < sources.length; i++) {
+			appended = sources[i] == resources.get(i);
+		}
+
+		List<ResourceState> states = new ArrayList<ResourceState>(resources.size());
+		List<ResourceState> changed = new ArrayList<ResourceState>();
+		for (int i = 0; i < resources.size(); i++) {
+			LockableResource r = resources.get(i);
+			if (appended && i < sources.length && !r.isDirty()) {
+				states.add(previous.getResources().get(i));
+				continue;
+			}
+			ResourceState state = new ResourceState(r);
+			states.add(state);
+			if (r.isDirty() || (appended && i >= sources.length))
+				changed.add(state);
+		}
+		snapshot = new ResourcesSnapshot(++snapshotVersion, states);
+		snapshotSources = resources.toArray(new LockableResource[resources.size()]);
+
+		if (previous != null && !appended) {
+			changeFeed.publishReload();
+		} else {
+			changeFeed.publish(changed);
+		}
+	}
+
+	/*
+	 * Writes the configuration file when the resources are persisted apart.
+	 */
+	private static final XStream2 WITHOUT_RESOURCES = new XStream2();
+	static {
+		WITHOUT_RESOURCES.omitField(LockableResourcesManager.class, "resources");
+	}
+
 	private static final Logger LOGGER = Logger.getLogger(LockableResourcesManager.class.getName());
 
 }
@@ -160,16 +160,9 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
 						"Only label, groovy expression, or resources can be defined, not more than one.");
 			} else {
 				List<String> wrongNames = new ArrayList<String>();
+				ResourcesSnapshot snapshot = LockableResourcesManager.get().getSnapshot();
 				for (String name : names.split("\\s+")) {
-					boolean found = false;
-					for (LockableResource r : LockableResourcesManager.get()
-							.getResources()) {
-						if (r.getName().equals(name)) {
-							found = true;
-							break;
-						}
-					}
-					if (!found)
+					if (snapshot.get(name) == null)
 						wrongNames.add(name);
 				}
 				if (wrongNames.isEmpty()) {
@@ -248,9 +241,11 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
 
 			value = Util.fixEmptyAndTrim(value);
 
-			for (String l : LockableResourcesManager.get().getAllLabels())
-				if (value != null && l.startsWith(value))
-					c.add(l);
+			if (value != null) {
+				for (ResourcesSnapshot.LabelSummary l : LockableResourcesManager.get().getSnapshot().getLabelSummaries())
+					if (l.getLabel().startsWith(value))
+						c.add(l.getLabel());
+			}
 
 			return c;
 		}
@@ -262,10 +257,14 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
 			value = Util.fixEmptyAndTrim(value);
 
 			if (value != null) {
-				for (LockableResource r : LockableResourcesManager.get()
-						.getResources()) {
-					if (r.getName().startsWith(value))
-						c.add(r.getName());
+				// the names starting with the value are next to each other once sorted
+				ResourcesSnapshot snapshot = LockableResourcesManager.get().getSnapshot();
+				List<ResourceState> sorted = snapshot.getSortedByName();
+				for (int i = snapshot.indexFrom(value); i < sorted.size(); i++) {
+					String name = sorted.get(i).getName();
+					if (!name.startsWith(value))
+						break;
+					c.add(name);
 				}
 			}
 
@@ -0,0 +1,106 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Bounded, in memory sequence of resource state changes published by
+ * {@link LockableResourcesManager#save()}, for clients which follow the
+ * resources incrementally instead of reloading all of them.
+ */
+public final class ResourceChangeFeed {
+
+	public static final int CAPACITY = Integer.getInteger(
+			ResourceChangeFeed.class.getName() + ".capacity", 4096);
+
+	/**
+	 * A resource which changed, or a reload marker when the set of resources changed.
+	 */
+	public static final class Change {
+
+		private final long id;
+		private final ResourceState state;
+
+		Change(long id, @CheckForNull ResourceState state) {
+			this.id = id;
+			this.state = state;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * @return the new state of the resource, or null if the clients must reload all the resources
+		 */
+		@CheckForNull
+		public ResourceState getState() {
+			return state;
+		}
+
+		public boolean isReload() {
+			return state == null;
+		}
+	}
+
+	private final Change[] changes = new Change[CAPACITY];
+	// id of the last published change, stored at index id % CAPACITY; starting
+	// from the clock makes the ids of a previous run look too old to resume
+	private long last = System.currentTimeMillis();
+
+	/**
+	 * @return the id of the last published change
+	 */
+	public synchronized long getLastId() {
+		return last;
+	}
+
+	synchronized void publish(List<ResourceState> states) {
+		if (states.isEmpty())
+			return;
+		for (ResourceState state : states) {
+			last++;
+			changes[(int) (last % CAPACITY)] = new Change(last, state);
+		}
+		notifyAll();
+	}
+
+	synchronized void publishReload() {
+		last++;
+		changes[(int) (last % CAPACITY)] = new Change(last, null);
+		notifyAll();
+	}
+
+	/**
+	 * Changes published after the given one, waiting up to the timeout if
+	 * there are none yet. When the changes since then are no longer all
+	 * kept, a single reload marker is returned.
+	 */
+	public synchronized List<Change> since(long id, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (last == id) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return Collections.emptyList();
+			wait(remaining);
+		}
+		if (id < 0 || id > last || last - id > CAPACITY)
+			return Collections.singletonList(new Change(last, null));
+		List<Change> result = new ArrayList<Change>((int) (last - id));
+		for (long i = id + 1; i <= last; i++) {
+			result.add(changes[(int) (i % CAPACITY)]);
+		}
+		return result;
+	}
+}
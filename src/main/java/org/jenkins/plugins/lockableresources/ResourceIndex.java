@@ -0,0 +1,220 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+/*
+ * Lookup tables of the resources of the manager by name and by label.
+ * They are rebuilt on first use after the list of resources was replaced, unless the manager
+ * updated them in place for the resources it added, removed or relabeled, and after an
+ * indexed resource was relabeled behind the manager's back, by setLabels.
+ */
+final class ResourceIndex {
+
+	private List<LockableResource> indexed;
+	private int indexedSize;
+
+	private Map<String, LockableResource> byName = Collections.emptyMap();
+	private Map<String, List<LockableResource>> byLabel = Collections.emptyMap();
+
+	@CheckForNull
+	synchronized LockableResource get(List<LockableResource> resources, String name) {
+		refresh(resources);
+		return byName.get(name);
+	}
+
+	/*
+	 * Resources having the label, in the order of the manager.
+	 */
+	synchronized List<LockableResource> withLabel(List<LockableResource> resources, String label) {
+		refresh(resources);
+		List<LockableResource> found = byLabel.get(label);
+		return found != null ? new ArrayList<LockableResource>(found) : new ArrayList<LockableResource>();
+	}
+
+	synchronized boolean hasLabel(List<LockableResource> resources, String label) {
+		refresh(resources);
+		return byLabel.containsKey(label);
+	}
+
+	synchronized void invalidate() {
+		indexed = null;
+	}
+
+	/*
+	 * Indexes a resource appended to a copy of the list, if the list was indexed already.
+	 */
+	synchronized void added(List<LockableResource> previous, List<LockableResource> resources, LockableResource r) {
+		if (indexed != previous || indexedSize != previous.size()) {
+			indexed = null;
+			return;
+		}
+		if (!byName.containsKey(r.getName())) {
+			byName.put(r.getName(), r);
+		}
+		for (String label : r.getLabelList()) {
+			List<LockableResource> withLabel = byLabel.get(label);
+			if (withLabel == null) {
+				withLabel = new ArrayList<LockableResource>();
+				byLabel.put(label, withLabel);
+			}
+			withLabel.add(r);
+		}
+		r.setIndex(this);
+		indexed = resources;
+		indexedSize = resources.size();
+	}
+
+	/*
+	 * Keeps the lookup tables for a copy of the list holding the same resources.
+	 */
+	synchronized void replaced(List<LockableResource> previous, List<LockableResource> resources) {
+		if (indexed == previous && indexedSize == previous.size()) {
+			indexed = resources;
+		}
+	}
+
+	/*
+	 * Forgets resources removed from a copy of the list, if the list was indexed already.
+	 */
+	synchronized void removed(List<LockableResource> previous, List<LockableResource> resources,
+			List<LockableResource> removed) {
+		if (indexed != previous || indexedSize != previous.size()) {
+			indexed = null;
+			return;
+		}
+		for (LockableResource r : removed) {
+			if (byName.get(r.getName()) == r) {
+				byName.remove(r.getName());
+			}
+			removeLabels(r, r.getLabels());
+		}
+		indexed = resources;
+		indexedSize = resources.size();
+	}
+
+	/*
+	 * Indexes the resources if needed, before they are changed by update().
+	 */
+	synchronized void prepare(List<LockableResource> resources) {
+		refresh(resources);
+	}
+
+	/*
+	 * Updates the lookup tables in place for the new list of resources, which
+	 * differs from the prepared one by the added and removed resources and
+	 * the relabeled ones, mapped to their previous labels. The resources kept
+	 * must be in the same order as before; positions gives the index of every
+	 * resource in the new list, to insert in the label lists at the right place.
+	 */
+	synchronized void update(List<LockableResource> previous,
+			List<LockableResource> resources, Map<LockableResource, Integer> positions,
+			List<LockableResource> added, List<LockableResource> removed,
+			Map<LockableResource, String> relabeled) {
+		if (indexed != previous || indexedSize != previous.size()) {
+			// indexed since the changes, or never: rebuilt on next use
+			indexed = null;
+			return;
+		}
+		for (LockableResource r : removed) {
+			if (byName.get(r.getName()) == r) {
+				byName.remove(r.getName());
+			}
+			removeLabels(r, r.getLabels());
+		}
+		for (Map.Entry<LockableResource, String> e : relabeled.entrySet()) {
+			removeLabels(e.getKey(), e.getValue());
+			addLabels(e.getKey(), positions);
+		}
+		for (LockableResource r : added) {
+			if (!byName.containsKey(r.getName())) {
+				byName.put(r.getName(), r);
+			}
+			addLabels(r, positions);
+			r.setIndex(this);
+		}
+		indexed = resources;
+		indexedSize = resources.size();
+	}
+
+	private void removeLabels(LockableResource r, @CheckForNull String rl) {
+		for (String label : LockableResource.parseLabels(rl)) {
+			List<LockableResource> withLabel = byLabel.get(label);
+			if (withLabel == null) {
+				continue;
+			}
+			// by identity, resources are equal by name
+			for (Iterator<LockableResource> it = withLabel.iterator(); it.hasNext();) {
+				if (it.next() == r) {
+					it.remove();
+				}
+			}
+			if (withLabel.isEmpty()) {
+				byLabel.remove(label);
+			}
+		}
+	}
+
+	private void addLabels(LockableResource r, Map<LockableResource, Integer> positions) {
+		int position = positions.get(r);
+		for (String label : r.getLabelList()) {
+			List<LockableResource> withLabel = byLabel.get(label);
+			if (withLabel == null) {
+				withLabel = new ArrayList<LockableResource>();
+				byLabel.put(label, withLabel);
+			}
+			// the label lists are in the order of the manager
+			int low = 0;
+			int high = withLabel.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (positions.get(withLabel.get(mid)) < position) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			withLabel.add(low, r);
+		}
+	}
+
+	private void refresh(List<LockableResource> resources) {
+		if (indexed == resources && indexedSize == resources.size()) {
+			return;
+		}
+		Map<String, LockableResource> names = new HashMap<String, LockableResource>(resources.size() * 2);
+		Map<String, List<LockableResource>> labels = new HashMap<String, List<LockableResource>>();
+		for (LockableResource r : resources) {
+			r.setIndex(this);
+			if (!names.containsKey(r.getName())) {
+				names.put(r.getName(), r);
+			}
+			for (String label : r.getLabelList()) {
+				List<LockableResource> withLabel = labels.get(label);
+				if (withLabel == null) {
+					withLabel = new ArrayList<LockableResource>();
+					labels.put(label, withLabel);
+				}
+				withLabel.add(r);
+			}
+		}
+		byName = names;
+		byLabel = labels;
+		indexed = resources;
+		indexedSize = resources.size();
+	}
+}
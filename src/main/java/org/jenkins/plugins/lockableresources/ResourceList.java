@@ -0,0 +1,67 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Unmodifiable list of resources, which an append does not copy: the new
+ * list shares the array of the one appended to while it has room, the
+ * elements past the size of a list not being part of it. Only the newest
+ * list of an array writes to it, others copy it.
+ */
+final class ResourceList extends AbstractList<LockableResource> implements RandomAccess {
+
+	private final LockableResource[] elements;
+	private final int size;
+	// size of the newest list sharing the array
+	private final AtomicInteger used;
+
+	ResourceList(Collection<LockableResource> resources) {
+		this(resources.toArray(new LockableResource[resources.size()]), resources.size(),
+				new AtomicInteger(resources.size()));
+	}
+
+	private ResourceList(LockableResource[] elements, int size, AtomicInteger used) {
+		this.elements = elements;
+		this.size = size;
+		this.used = used;
+	}
+
+	/*
+	 * This list followed by the resource. Called under the manager lock.
+	 */
+	ResourceList append(LockableResource r) {
+		if (size < elements.length && used.compareAndSet(size, size + 1)) {
+			elements[size] = r;
+			return new ResourceList(elements, size + 1, used);
+		}
+		LockableResource[] grown = Arrays.copyOf(elements, Math.max(16, size + (size >> 1) + 1));
+		Arrays.fill(grown, size, grown.length, null);
+		grown[size] = r;
+		return new ResourceList(grown, size + 1, new AtomicInteger(size + 1));
+	}
+
+	@Override
+	public LockableResource get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return elements[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,147 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import hudson.Util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Definition of many resources at once: a name pattern over a numeric
+ * range, with label and description templates. The <code>{n}</code>
+ * placeholder is replaced by each number of the range, left padded
+ * with zeros to {@link #getDigits()} digits. The resources are
+ * generated while iterating, see {@link LockableResourcesManager#provision}.
+ */
+public class ResourceSet implements Iterable<LockableResource> {
+
+	public static final String PLACEHOLDER = "{n}";
+
+	/**
+	 * Upper bound on the number of resources of a set, against typos in the range.
+	 */
+	public static final int MAX_SIZE = 100000;
+
+	private final String namePattern;
+	private final int from;
+	private final int to;
+	private int digits;
+	private String labels;
+	private String description;
+
+	/**
+	 * @param namePattern name of the resources, which must contain {@link #PLACEHOLDER}
+	 * @param from first number, inclusive
+	 * @param to last number, inclusive
+	 */
+	public ResourceSet(String namePattern, int from, int to) {
+		if (namePattern == null || !namePattern.contains(PLACEHOLDER))
+			throw new IllegalArgumentException("The name pattern must contain " + PLACEHOLDER);
+		if (to < from)
+			throw new IllegalArgumentException("Empty range " + from + ".." + to);
+		if ((long) to - from + 1 > MAX_SIZE)
+			throw new IllegalArgumentException("More than " + MAX_SIZE + " resources in " + from + ".." + to);
+		this.namePattern = namePattern;
+		this.from = from;
+		this.to = to;
+	}
+
+	public String getNamePattern() {
+		return namePattern;
+	}
+
+	public int getFrom() {
+		return from;
+	}
+
+	public int getTo() {
+		return to;
+	}
+
+	public int getDigits() {
+		return digits;
+	}
+
+	public ResourceSet setDigits(int digits) {
+		this.digits = digits;
+		return this;
+	}
+
+	@CheckForNull
+	public String getLabels() {
+		return labels;
+	}
+
+	public ResourceSet setLabels(@CheckForNull String labels) {
+		this.labels = Util.fixEmptyAndTrim(labels);
+		return this;
+	}
+
+	@CheckForNull
+	public String getDescription() {
+		return description;
+	}
+
+	public ResourceSet setDescription(@CheckForNull String description) {
+		this.description = Util.fixEmpty(description);
+		return this;
+	}
+
+	public int size() {
+		return to - from + 1;
+	}
+
+	String expand(@CheckForNull String template, int n) {
+		if (template == null)
+			return "";
+		String number = Integer.toString(n);
+		StringBuilder padded = new StringBuilder();
+		for (int i = number.length(); i < digits; i++) {
+			padded.append('0');
+		}
+		return template.replace(PLACEHOLDER, padded.append(number));
+	}
+
+	@Override
+	public Iterator<LockableResource> iterator() {
+		return new Iterator<LockableResource>() {
+			// as a long, so that the range can end at Integer.MAX_VALUE
+			private long next = from;
+
+			@Override
+			public boolean hasNext() {
+				return next <= to;
+			}
+
+			@Override
+			public LockableResource next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				int n = (int) next++;
+				LockableResource r = new LockableResource(expand(namePattern, n));
+				r.setLabels(expand(labels, n));
+				r.setDescription(expand(description, n));
+				return r;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return namePattern + " [" + from + ".." + to + "]";
+	}
+}
@@ -0,0 +1,125 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.List;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+/**
+ * Immutable copy of the state of a {@link LockableResource}, taken without resolving
+ * the build holding it nor the user reserving it, so it is cheap to serve to API clients.
+ */
+public final class ResourceState {
+
+	/**
+	 * What a resource is doing, in the order of precedence used by the Lockable Resources page.
+	 */
+	public enum Status {
+		FREE, QUEUED, RESERVED, LOCKED
+	}
+
+	private final String name;
+	private final String description;
+	private final String labels;
+	private final List<String> labelList;
+	private final String reservedBy;
+	private final String buildExternalizableId;
+	private final long queueItemId;
+	private final String queueItemProject;
+	private final long lockedSince;
+	private final Status status;
+
+	public ResourceState(LockableResource r) {
+		this.name = r.getName();
+		this.description = r.getDescription();
+		this.labels = r.getLabels() != null ? r.getLabels() : "";
+		this.labelList = r.getLabelList();
+		this.reservedBy = r.getReservedBy();
+		this.buildExternalizableId = r.getBuildExternalizableId();
+		this.queueItemId = r.getQueueItemId();
+		this.queueItemProject = r.getQueueItemProject();
+		this.lockedSince = r.getLockedSince();
+		if (buildExternalizableId != null) {
+			status = Status.LOCKED;
+		} else if (reservedBy != null) {
+			status = Status.RESERVED;
+		} else if (queueItemId != LockableResource.NOT_QUEUED) {
+			status = Status.QUEUED;
+		} else {
+			status = Status.FREE;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public String getLabels() {
+		return labels;
+	}
+
+	public List<String> getLabelList() {
+		return labelList;
+	}
+
+	public boolean hasLabel(String label) {
+		return labelList.contains(label);
+	}
+
+	@CheckForNull
+	public String getReservedBy() {
+		return reservedBy;
+	}
+
+	/**
+	 * @return the external id of the build holding the lock, or null if not locked
+	 */
+	@CheckForNull
+	public String getBuildExternalizableId() {
+		return buildExternalizableId;
+	}
+
+	public long getQueueItemId() {
+		return queueItemId;
+	}
+
+	@CheckForNull
+	public String getQueueItemProject() {
+		return queueItemProject;
+	}
+
+	public long getLockedSince() {
+		return lockedSince;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isLocked() {
+		return status == Status.LOCKED;
+	}
+
+	public boolean isReserved() {
+		return status == Status.RESERVED;
+	}
+
+	public boolean isQueued() {
+		return status == Status.QUEUED;
+	}
+
+	public boolean isFree() {
+		return status == Status.FREE;
+	}
+}
@@ -0,0 +1,201 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+/**
+ * Immutable view of all the resources at a point in time, see {@link LockableResourcesManager#getSnapshot()}.
+ * It is safe to read from any thread without locking the manager.
+ */
+public final class ResourcesSnapshot {
+
+	private static final Comparator<ResourceState> BY_NAME = new Comparator<ResourceState>() {
+		@Override
+		public int compare(ResourceState o1, ResourceState o2) {
+			return o1.getName().compareTo(o2.getName());
+		}
+	};
+
+	private final long version;
+
+	private final List<ResourceState> resources;
+
+	private volatile List<ResourceState> sortedByName;
+
+	private volatile Map<String, ResourceState> byName;
+
+	private volatile List<LabelSummary> labelSummaries;
+
+	/**
+	 * Number of resources and of free resources with a label.
+	 */
+	public static final class LabelSummary {
+
+		private final String label;
+		private int total;
+		private int free;
+		// last resource counted, for labels repeated on a resource
+		private ResourceState counted;
+
+		LabelSummary(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		public int getFree() {
+			return free;
+		}
+	}
+
+	public ResourcesSnapshot(long version, List<ResourceState> resources) {
+		this.version = version;
+		this.resources = Collections.unmodifiableList(resources);
+	}
+
+	public ResourcesSnapshot(List<ResourceState> resources) {
+		this(0, resources);
+	}
+
+	/**
+	 * Number of the change of the resources this snapshot was taken after, growing with each change.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the resource with the given name, or null
+	 */
+	@CheckForNull
+	public ResourceState get(String name) {
+		Map<String, ResourceState> map = byName;
+		if (map == null) {
+			map = new HashMap<String, ResourceState>(resources.size() * 2);
+			for (ResourceState r : resources) {
+				if (!map.containsKey(r.getName()))
+					map.put(r.getName(), r);
+			}
+			byName = map;
+		}
+		return map.get(name);
+	}
+
+	public boolean hasLabel(String label) {
+		// the summaries are sorted by label
+		List<LabelSummary> summaries = getLabelSummaries();
+		int low = 0;
+		int high = summaries.size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = summaries.get(mid).getLabel().compareTo(label);
+			if (cmp == 0)
+				return true;
+			if (cmp < 0)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return false;
+	}
+
+	/**
+	 * The resources in the order of the manager.
+	 */
+	public List<ResourceState> getResources() {
+		return resources;
+	}
+
+	/**
+	 * The resources sorted by name, which is the order of the pages of the REST API.
+	 */
+	public List<ResourceState> getSortedByName() {
+		List<ResourceState> sorted = sortedByName;
+		if (sorted == null) {
+			List<ResourceState> copy = new ArrayList<ResourceState>(resources);
+			Collections.sort(copy, BY_NAME);
+			sorted = Collections.unmodifiableList(copy);
+			sortedByName = sorted;
+		}
+		return sorted;
+	}
+
+	/**
+	 * Summaries of all the labels, sorted by label, computed in one pass over the resources.
+	 */
+	public List<LabelSummary> getLabelSummaries() {
+		List<LabelSummary> summaries = labelSummaries;
+		if (summaries == null) {
+			Map<String, LabelSummary> byLabel = new TreeMap<String, LabelSummary>();
+			for (ResourceState r : resources) {
+				for (String label : r.getLabelList()) {
+					LabelSummary summary = byLabel.get(label);
+					if (summary == null) {
+						summary = new LabelSummary(label);
+						byLabel.put(label, summary);
+					} else if (summary.counted == r) {
+						continue;
+					}
+					summary.counted = r;
+					summary.total++;
+					if (r.isFree())
+						summary.free++;
+				}
+			}
+			summaries = Collections.unmodifiableList(new ArrayList<LabelSummary>(byLabel.values()));
+			labelSummaries = summaries;
+		}
+		return summaries;
+	}
+
+	/**
+	 * Index in {@link #getSortedByName()} of the first resource whose name comes after the given one.
+	 */
+	public int indexAfter(String name) {
+		return search(name, true);
+	}
+
+	/**
+	 * Index in {@link #getSortedByName()} of the first resource whose name is not before the given one.
+	 */
+	public int indexFrom(String name) {
+		return search(name, false);
+	}
+
+	private int search(String name, boolean inclusive) {
+		List<ResourceState> sorted = getSortedByName();
+		int low = 0;
+		int high = sorted.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int cmp = sorted.get(mid).getName().compareTo(name);
+			if (cmp < 0 || (inclusive && cmp == 0)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
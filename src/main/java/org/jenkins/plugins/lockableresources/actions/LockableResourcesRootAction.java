@@ -9,6 +9,7 @@
 package org.jenkins.plugins.lockableresources.actions;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.RootAction;
 import hudson.model.User;
 import hudson.security.AccessDeniedException2;
@@ -17,19 +18,31 @@ import hudson.security.PermissionGroup;
 import hudson.security.PermissionScope;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.CheckForNull;
 import javax.servlet.ServletException;
 
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.Messages;
+import org.jenkins.plugins.lockableresources.ResourceChangeFeed;
+import org.jenkins.plugins.lockableresources.ResourceSet;
+import org.jenkins.plugins.lockableresources.ResourceState;
+import org.jenkins.plugins.lockableresources.ResourcesSnapshot;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 @Extension
 public class LockableResourcesRootAction implements RootAction {
@@ -45,6 +58,17 @@ public class LockableResourcesRootAction implements RootAction {
 			Messages._LockableResourcesRootAction_ReservePermission_Description(), Jenkins.ADMINISTER,
 			PermissionScope.JENKINS);
 
+	/**
+	 * Duration in milliseconds of an event stream response.
+	 */
+	public static final long EVENTS_TIMEOUT = Long.getLong(
+			LockableResourcesRootAction.class.getName() + ".eventsTimeout", 30000);
+
+	/**
+	 * Number of resources per page of the Lockable Resources page.
+	 */
+	public static final int PAGE_SIZE = 100;
+
 	public static final String ICON = "/plugin/lockable-resources/img/device-24x24.png";
 
 	public String getIconFileName() {
@@ -88,6 +112,41 @@ public class LockableResourcesRootAction implements RootAction {
 		return LockableResourcesManager.get().getAllLabels().size();
 	}
 
+	public ResourcesSnapshot getSnapshot() {
+		return LockableResourcesManager.get().getSnapshot();
+	}
+
+	/**
+	 * Resources rendered with the page, the next ones are fetched from {@link #doResources}.
+	 */
+	public List<ResourceState> getFirstPage(ResourcesSnapshot snapshot) {
+		List<ResourceState> sorted = snapshot.getSortedByName();
+		return sorted.subList(0, Math.min(PAGE_SIZE, sorted.size()));
+	}
+
+	/**
+	 * @return the URL of the build holding the resource, relative to the root URL
+	 */
+	@CheckForNull
+	public String getBuildUrl(ResourceState resource) {
+		String id = resource.getBuildExternalizableId();
+		if (id == null)
+			return null;
+		int hash = id.lastIndexOf('#');
+		StringBuilder url = new StringBuilder();
+		for (String job : id.substring(0, hash).split("/")) {
+			url.append("job/").append(Util.rawEncode(job)).append('/');
+		}
+		return url.append(id.substring(hash + 1)).append('/').toString();
+	}
+
+	/**
+	 * Id of the last change of the resources, from which the page follows {@link #doEvents}.
+	 */
+	public long getLastChangeId() {
+		return LockableResourcesManager.get().getChangeFeed().getLastId();
+	}
+
 	public void doUnlock(StaplerRequest req, StaplerResponse rsp)
 			throws IOException, ServletException {
 		Jenkins.getInstance().checkPermission(UNLOCK);
@@ -150,6 +209,285 @@ public class LockableResourcesRootAction implements RootAction {
 		rsp.forwardToPreviousPage(req);
 	}
 
+	/**
+	 * Wait and hold time histograms, queue depth and utilization, as JSON.
+	 */
+	public void doMetrics(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+		LockableResourcesManager manager = LockableResourcesManager.get();
+		JSONObject json = LockMetrics.get().toJSON(manager.getResources(), manager.getQueueDepth());
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(json.toString());
+	}
+
+	/**
+	 * Resources as JSON, filtered and paged according to {@link ResourceQuery}.
+	 */
+	public void doResources(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+		ResourceQuery query;
+		try {
+			query = ResourceQuery.fromRequest(req);
+		} catch (IllegalArgumentException e) {
+			rsp.sendError(400, e.getMessage());
+			return;
+		}
+		JSONObject json = query.run(LockableResourcesManager.get().getSnapshot());
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(json.toString());
+	}
+
+	/**
+	 * Server-sent events with the new state of the resources changed after
+	 * the <code>since</code> change id or the <code>Last-Event-ID</code> header.
+	 * The response ends after {@link #EVENTS_TIMEOUT} milliseconds and the
+	 * browser reconnects, so that request threads are not held forever.
+	 */
+	public void doEvents(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+		ResourceChangeFeed feed = LockableResourcesManager.get().getChangeFeed();
+		String since = req.getHeader("Last-Event-ID");
+		if (since == null)
+			since = req.getParameter("since");
+		long id;
+		try {
+			id = since != null ? Long.parseLong(since) : feed.getLastId();
+		} catch (NumberFormatException e) {
+			id = -1; // makes the page reload
+		}
+
+		rsp.setContentType("text/event-stream;charset=UTF-8");
+		rsp.setHeader("Cache-Control", "no-cache");
+		PrintWriter w = rsp.getWriter();
+		w.print("retry: 1000\n\n");
+		w.flush();
+
+		ResourceQuery query = new ResourceQuery();
+		long deadline = System.currentTimeMillis() + EVENTS_TIMEOUT;
+		try {
+			long remaining;
+			while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+				for (ResourceChangeFeed.Change change : feed.since(id, remaining)) {
+					w.print("id: " + change.getId() + "\n");
+					if (change.isReload()) {
+						w.print("event: reload\ndata: {}\n\n");
+					} else {
+						w.print("event: state\ndata: " + query.toJSON(change.getState()) + "\n\n");
+					}
+					id = change.getId();
+				}
+				w.flush();
+				if (w.checkError())
+					return; // the browser went away
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Creates or updates the resources of a {@link ResourceSet} given by the
+	 * <code>namePattern</code>, <code>from</code>, <code>to</code>,
+	 * <code>digits</code>, <code>labels</code> and <code>description</code> parameters.
+	 */
+	@RequirePOST
+	public void doProvision(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+		ResourceSet set;
+		try {
+			set = new ResourceSet(req.getParameter("namePattern"),
+					Integer.parseInt(req.getParameter("from")),
+					Integer.parseInt(req.getParameter("to")));
+			String digits = req.getParameter("digits");
+			if (digits != null && !digits.isEmpty())
+				set.setDigits(Integer.parseInt(digits));
+		} catch (IllegalArgumentException e) {
+			// also a NumberFormatException
+			rsp.sendError(400, e.getMessage());
+			return;
+		}
+		set.setLabels(req.getParameter("labels"));
+		set.setDescription(req.getParameter("description"));
+
+		int created = LockableResourcesManager.get().provision(set);
+		JSONObject json = new JSONObject();
+		json.put("size", set.size());
+		json.put("created", created);
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(json.toString());
+	}
+
+	public void doExportResources(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+		rsp.setContentType("application/xml;charset=UTF-8");
+		rsp.setHeader("Content-Disposition", "attachment; filename=lockable-resources.xml");
+		LockableResourcesManager.get().exportResources(rsp.getOutputStream());
+	}
+
+	@RequirePOST
+	public void doImportResources(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+		try {
+			LockableResourcesManager.get().importResources(req.getInputStream());
+		} catch (IOException e) {
+			rsp.sendError(400, e.getMessage());
+			return;
+		}
+		rsp.setStatus(204);
+	}
+
+	/**
+	 * Reserves for the current user the selected resources which are free.
+	 *
+	 * @see #selectResources
+	 */
+	@RequirePOST
+	public void doBulkReserve(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(RESERVE);
+
+		String userName = getUserName();
+		if (userName == null)
+			throw new AccessDeniedException2(Jenkins.getAuthentication(), RESERVE);
+		List<LockableResource> selected = selectResources(req, rsp);
+		if (selected == null)
+			return;
+		sendBulkResult(rsp, selected, LockableResourcesManager.get().reserveFree(selected, userName));
+	}
+
+	/**
+	 * Unreserves the selected resources, only those reserved by the
+	 * current user unless administrator.
+	 *
+	 * @see #selectResources
+	 */
+	@RequirePOST
+	public void doBulkUnreserve(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(RESERVE);
+
+		List<LockableResource> selected = selectResources(req, rsp);
+		if (selected == null)
+			return;
+		List<LockableResource> allowed = selected;
+		if (!Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER)) {
+			String userName = getUserName();
+			allowed = new ArrayList<LockableResource>();
+			for (LockableResource r : selected) {
+				if (userName != null && userName.equals(r.getReservedBy()))
+					allowed.add(r);
+			}
+		}
+		sendBulkResult(rsp, selected, LockableResourcesManager.get().unreserveAll(allowed));
+	}
+
+	/**
+	 * Unlocks the selected resources which are locked.
+	 *
+	 * @see #selectResources
+	 */
+	@RequirePOST
+	public void doBulkUnlock(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(UNLOCK);
+
+		List<LockableResource> selected = selectResources(req, rsp);
+		if (selected == null)
+			return;
+		sendBulkResult(rsp, selected, LockableResourcesManager.get().unlockAll(selected));
+	}
+
+	/**
+	 * Resets the selected resources.
+	 *
+	 * @see #selectResources
+	 */
+	@RequirePOST
+	public void doBulkReset(StaplerRequest req, StaplerResponse rsp)
+		throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(UNLOCK);
+
+		List<LockableResource> selected = selectResources(req, rsp);
+		if (selected == null)
+			return;
+		LockableResourcesManager.get().reset(selected);
+		sendBulkResult(rsp, selected, selected);
+	}
+
+	/**
+	 * Resources of a bulk operation: the ones named by the <code>resource</code>
+	 * parameters, or else the ones matching the <code>label</code>,
+	 * <code>state</code> and <code>prefix</code> filters of {@link ResourceQuery}.
+	 *
+	 * @return the resources, or null if an error was sent
+	 */
+	@CheckForNull
+	private List<LockableResource> selectResources(StaplerRequest req, StaplerResponse rsp)
+		throws IOException {
+		LockableResourcesManager manager = LockableResourcesManager.get();
+		List<String> names;
+		String[] values = req.getParameterValues("resource");
+		if (values != null) {
+			names = Arrays.asList(values);
+		} else {
+			ResourceQuery query = new ResourceQuery();
+			try {
+				query.setLabel(req.getParameter("label"));
+				query.setStates(req.getParameter("state"));
+				query.setPrefix(req.getParameter("prefix"));
+			} catch (IllegalArgumentException e) {
+				rsp.sendError(400, e.getMessage());
+				return null;
+			}
+			if (!query.hasFilter()) {
+				rsp.sendError(400, "No resource, label, state or prefix given");
+				return null;
+			}
+			names = query.select(manager.getSnapshot());
+		}
+
+		List<LockableResource> resources = new ArrayList<LockableResource>(names.size());
+		for (String name : names) {
+			LockableResource r = manager.fromName(name);
+			if (r == null) {
+				rsp.sendError(404, "Resource not found " + name);
+				return null;
+			}
+			resources.add(r);
+		}
+		return resources;
+	}
+
+	private static void sendBulkResult(StaplerResponse rsp, List<LockableResource> selected,
+			List<LockableResource> changed) throws IOException {
+		Set<LockableResource> changedSet = new HashSet<LockableResource>(changed);
+		JSONArray changedNames = new JSONArray();
+		JSONArray skippedNames = new JSONArray();
+		for (LockableResource r : selected) {
+			if (changedSet.contains(r))
+				changedNames.add(r.getName());
+			else
+				skippedNames.add(r.getName());
+		}
+		JSONObject json = new JSONObject();
+		json.put("changed", changedNames);
+		json.put("skipped", skippedNames);
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(json.toString());
+	}
+
 	public void doReset(StaplerRequest req, StaplerResponse rsp)
 		throws IOException, ServletException {
 		Jenkins.getInstance().checkPermission(UNLOCK);
@@ -0,0 +1,235 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.actions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import org.jenkins.plugins.lockableresources.ResourceState;
+import org.jenkins.plugins.lockableresources.ResourceState.Status;
+import org.jenkins.plugins.lockableresources.ResourcesSnapshot;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Filter and page over a {@link ResourcesSnapshot}, as requested to the
+ * <code>resources</code> REST endpoint.
+ */
+public final class ResourceQuery {
+
+	public static final int DEFAULT_LIMIT = 100;
+	public static final int MAX_LIMIT = 1000;
+
+	public static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(
+			"name", "description", "labels", "state", "reservedBy", "build",
+			"queueItemId", "queueItemProject", "lockedSince"));
+
+	private String label;
+	private Set<Status> states;
+	private String prefix;
+	private String after;
+	private int limit = DEFAULT_LIMIT;
+	private Set<String> fields = new LinkedHashSet<String>(FIELDS);
+
+	/**
+	 * Reads the <code>label</code>, <code>state</code>, <code>prefix</code>,
+	 * <code>after</code>, <code>limit</code> and <code>fields</code> parameters.
+	 *
+	 * @throws IllegalArgumentException on an unknown state or field, or an invalid limit
+	 */
+	public static ResourceQuery fromRequest(StaplerRequest req) {
+		ResourceQuery query = new ResourceQuery();
+		query.setLabel(req.getParameter("label"));
+		query.setStates(req.getParameter("state"));
+		query.setPrefix(req.getParameter("prefix"));
+		query.setAfter(req.getParameter("after"));
+		String limit = req.getParameter("limit");
+		if (limit != null && !limit.isEmpty()) {
+			try {
+				query.setLimit(Integer.parseInt(limit));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid limit " + limit);
+			}
+		}
+		query.setFields(req.getParameter("fields"));
+		return query;
+	}
+
+	public void setLabel(@CheckForNull String label) {
+		this.label = emptyToNull(label);
+	}
+
+	/**
+	 * @param states comma separated list of free, queued, reserved and locked
+	 */
+	public void setStates(@CheckForNull String states) {
+		if (emptyToNull(states) == null) {
+			this.states = null;
+			return;
+		}
+		Set<Status> set = EnumSet.noneOf(Status.class);
+		for (String s : states.split(",")) {
+			s = s.trim();
+			if (s.isEmpty())
+				continue;
+			try {
+				set.add(Status.valueOf(s.toUpperCase(Locale.ENGLISH)));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown state " + s);
+			}
+		}
+		this.states = set;
+	}
+
+	public void setPrefix(@CheckForNull String prefix) {
+		this.prefix = emptyToNull(prefix);
+	}
+
+	/**
+	 * @param after name of the last resource of the previous page
+	 */
+	public void setAfter(@CheckForNull String after) {
+		this.after = emptyToNull(after);
+	}
+
+	public void setLimit(int limit) {
+		if (limit < 1 || limit > MAX_LIMIT)
+			throw new IllegalArgumentException("The limit must be between 1 and " + MAX_LIMIT);
+		this.limit = limit;
+	}
+
+	/**
+	 * @param fields comma separated subset of {@link #FIELDS}, all of them if empty
+	 */
+	public void setFields(@CheckForNull String fields) {
+		if (emptyToNull(fields) == null) {
+			this.fields = new LinkedHashSet<String>(FIELDS);
+			return;
+		}
+		Set<String> set = new LinkedHashSet<String>();
+		for (String f : fields.split(",")) {
+			f = f.trim();
+			if (f.isEmpty())
+				continue;
+			if (!FIELDS.contains(f))
+				throw new IllegalArgumentException("Unknown field " + f);
+			set.add(f);
+		}
+		this.fields = set;
+	}
+
+	/**
+	 * @return whether a label, state or prefix filter is set
+	 */
+	public boolean hasFilter() {
+		return label != null || states != null || prefix != null;
+	}
+
+	/**
+	 * @return the names of all the matching resources, regardless of the page
+	 */
+	public List<String> select(ResourcesSnapshot snapshot) {
+		List<String> names = new ArrayList<String>();
+		for (ResourceState r : snapshot.getResources()) {
+			if (matches(r))
+				names.add(r.getName());
+		}
+		return names;
+	}
+
+	public boolean matches(ResourceState r) {
+		if (label != null && !r.hasLabel(label))
+			return false;
+		if (states != null && !states.contains(r.getStatus()))
+			return false;
+		return prefix == null || r.getName().startsWith(prefix);
+	}
+
+	/**
+	 * @return the matching resources of the page, sorted by name, and the
+	 *         cursor of the next page or null if this is the last one
+	 */
+	public JSONObject run(ResourcesSnapshot snapshot) {
+		List<ResourceState> sorted = snapshot.getSortedByName();
+		int i = 0;
+		if (after != null)
+			i = snapshot.indexAfter(after);
+		if (prefix != null && (after == null || after.compareTo(prefix) < 0))
+			i = Math.max(i, snapshot.indexFrom(prefix));
+
+		JSONArray page = new JSONArray();
+		String last = null;
+		boolean more = false;
+		for (; i < sorted.size(); i++) {
+			ResourceState r = sorted.get(i);
+			if (prefix != null && !r.getName().startsWith(prefix)
+					&& r.getName().compareTo(prefix) > 0)
+				break; // sorted, no other name can start with the prefix
+			if (!matches(r))
+				continue;
+			if (page.size() == limit) {
+				more = true;
+				break;
+			}
+			page.add(toJSON(r));
+			last = r.getName();
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("resources", page);
+		json.put("next", more ? last : JSONNull.getInstance());
+		return json;
+	}
+
+	JSONObject toJSON(ResourceState r) {
+		JSONObject json = new JSONObject();
+		for (String field : fields) {
+			if ("name".equals(field))
+				json.put(field, r.getName());
+			else if ("description".equals(field))
+				json.put(field, nullable(r.getDescription()));
+			else if ("labels".equals(field))
+				json.put(field, JSONArray.fromObject(r.getLabelList()));
+			else if ("state".equals(field))
+				json.put(field, r.getStatus().name().toLowerCase(Locale.ENGLISH));
+			else if ("reservedBy".equals(field))
+				json.put(field, nullable(r.getReservedBy()));
+			else if ("build".equals(field))
+				json.put(field, nullable(r.getBuildExternalizableId()));
+			else if ("queueItemId".equals(field))
+				json.put(field, r.getQueueItemId());
+			else if ("queueItemProject".equals(field))
+				json.put(field, nullable(r.getQueueItemProject()));
+			else if ("lockedSince".equals(field))
+				json.put(field, r.getLockedSince());
+		}
+		return json;
+	}
+
+	/* JSONObject.put drops the key of a null value */
+	private static Object nullable(@CheckForNull String s) {
+		return s == null ? JSONNull.getInstance() : s;
+	}
+
+	@CheckForNull
+	private static String emptyToNull(@CheckForNull String s) {
+		return s == null || s.trim().isEmpty() ? null : s.trim();
+	}
+}
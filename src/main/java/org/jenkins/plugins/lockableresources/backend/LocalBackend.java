@@ -0,0 +1,58 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.backend;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+
+import java.util.Collection;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Default backend: the resources belong to this controller only, and the state kept
+ * (and saved as XML) by the manager is the only source of truth.
+ */
+public class LocalBackend extends LockableResourcesBackend {
+
+	@DataBoundConstructor
+	public LocalBackend() {
+	}
+
+	@Override
+	public boolean acquire(Collection<String> names) {
+		return true;
+	}
+
+	@Override
+	public void release(Collection<String> names) {
+	}
+
+	@Override
+	public void queue(Collection<String> names) {
+	}
+
+	@Override
+	public void renew(Collection<String> inUse) {
+	}
+
+	@Override
+	public void watch(Listener listener) {
+	}
+
+	@Extension(ordinal = 100)
+	public static class DescriptorImpl extends Descriptor<LockableResourcesBackend> {
+
+		@Override
+		public String getDisplayName() {
+			return "This controller only";
+		}
+
+	}
+}
@@ -0,0 +1,105 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.backend;
+
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.annotation.Nonnull;
+
+import jenkins.model.Jenkins;
+
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+
+/**
+ * Where the locks of the {@link LockableResourcesManager} are arbitrated.
+ * <p>
+ * The manager keeps the state of the resources of this controller, and asks the
+ * backend before locking them, so that several controllers sharing the same
+ * resources never lock the same one at the same time. Locks taken in the backend
+ * are leases: they must be renewed periodically, and can be taken over by another
+ * controller once expired.
+ */
+public abstract class LockableResourcesBackend extends AbstractDescribableImpl<LockableResourcesBackend>
+		implements ExtensionPoint {
+
+	/**
+	 * Acquires all the resources for this controller, or none of them.
+	 * Acquiring a resource already held by this controller succeeds.
+	 *
+	 * @return {@code true} if all the resources are now held by this controller
+	 */
+	public abstract boolean acquire(@Nonnull Collection<String> names);
+
+	/**
+	 * Releases the resources held by this controller, the other ones are left untouched.
+	 */
+	public abstract void release(@Nonnull Collection<String> names);
+
+	/**
+	 * Records that this controller waits for the resources, so that the listener
+	 * registered with {@link #watch} is notified when they get released.
+	 */
+	public abstract void queue(@Nonnull Collection<String> names);
+
+	/**
+	 * The resources recorded with {@link #queue} and not released yet, handed over to the
+	 * backend replacing this one so that their release is still notified.
+	 */
+	@Nonnull
+	public Collection<String> getWaited() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Renews the leases of the resources this controller still uses,
+	 * and releases the other ones it holds. The resources in use whose
+	 * lease is lost are reported to the listener registered with {@link #watch}.
+	 */
+	public abstract void renew(@Nonnull Collection<String> inUse);
+
+	/**
+	 * Registers the listener notified when resources queued with {@link #queue}
+	 * get released by another controller. Replaces the previous listener.
+	 */
+	public abstract void watch(@Nonnull Listener listener);
+
+	/**
+	 * Whether the other backend, e.g. bound from a new submission of the configuration form,
+	 * arbitrates the locks the same way, so that this one is kept rather than replaced.
+	 * By default, if it is of the same type with the same persisted fields.
+	 */
+	public boolean isSameConfiguration(@Nonnull LockableResourcesBackend other) {
+		return getClass() == other.getClass()
+				&& Jenkins.XSTREAM2.toXML(this).equals(Jenkins.XSTREAM2.toXML(other));
+	}
+
+	/**
+	 * Stops watching and frees the resources used by this backend,
+	 * called when it is replaced by another configuration.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Notified of the resources released by other controllers.
+	 */
+	public interface Listener {
+		void released(@Nonnull Collection<String> names);
+
+		/**
+		 * Notified of the resources in use here whose lease another controller took over,
+		 * e.g. because it was not renewed in time.
+		 */
+		void lost(@Nonnull Collection<String> names);
+	}
+}
@@ -0,0 +1,534 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.backend;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Shares the locks between the controllers mounting the same directory.
+ * <p>
+ * Each locked resource is a lease file owned by one controller. Locks are taken
+ * with an atomic file creation (the compare-and-set of this store), published whole
+ * through a hard link where the file system supports it. A lease still owned is
+ * renewed in place with an atomic rename. An expired lease is renamed away, checked
+ * to still be the lease which was read, and moved back if another controller replaced
+ * it meanwhile, before creating a new one, so that only one controller can win it.
+ * The leases taken over by other controllers are reported to the listener. Every lease carries a generation of its own,
+ * so that two leases of the same owner are told apart. Releases are noticed
+ * through a {@link WatchService}, with a periodic poll as fallback for the network
+ * file systems which do not report changes made by other hosts.
+ */
+public class SharedDirectoryBackend extends LockableResourcesBackend {
+
+	private static final Logger LOGGER = Logger.getLogger(SharedDirectoryBackend.class.getName());
+
+	private static final String SUFFIX = ".lease";
+
+	// a lease closer to its expiry may be taken over before it is replaced, it is renewed like a take over
+	private static final long RENEW_MARGIN = TimeUnit.SECONDS.toMillis(1);
+
+	@Restricted(NoExternalUse.class)
+	public static long POLL_INTERVAL = Long.getLong(SharedDirectoryBackend.class.getName() + ".pollInterval",
+			TimeUnit.SECONDS.toMillis(5));
+
+	private final String directory;
+
+	private String controllerId;
+
+	private transient Long leaseDuration;
+
+	private transient Set<String> waited;
+
+	private transient Listener listener;
+
+	private transient Thread watcher;
+
+	@DataBoundConstructor
+	public SharedDirectoryBackend(String directory) {
+		this.directory = Util.fixEmptyAndTrim(directory);
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	public String getControllerId() {
+		if (controllerId == null) {
+			Jenkins jenkins = Jenkins.getInstance();
+			if (jenkins != null) {
+				controllerId = jenkins.getLegacyInstanceId();
+			}
+		}
+		return controllerId;
+	}
+
+	@DataBoundSetter
+	public void setControllerId(String controllerId) {
+		this.controllerId = Util.fixEmptyAndTrim(controllerId);
+	}
+
+	@Override
+	public boolean isSameConfiguration(LockableResourcesBackend other) {
+		if (!(other instanceof SharedDirectoryBackend)) {
+			return false;
+		}
+		SharedDirectoryBackend o = (SharedDirectoryBackend) other;
+		// the controller id defaults to the instance id, whether or not it was set
+		return StringUtils.equals(directory, o.directory)
+				&& StringUtils.equals(getControllerId(), o.getControllerId());
+	}
+
+	/**
+	 * Overrides {@link LockableResource#LEASE_DURATION}, for tests.
+	 */
+	void setLeaseDuration(long leaseDuration) {
+		this.leaseDuration = leaseDuration;
+	}
+
+	private long getLeaseDuration() {
+		return leaseDuration != null ? leaseDuration : LockableResource.LEASE_DURATION;
+	}
+
+	private Path getRoot() throws IOException {
+		if (directory == null) {
+			throw new IOException("No shared directory configured");
+		}
+		Path root = Paths.get(directory);
+		Files.createDirectories(root);
+		return root;
+	}
+
+	private static String fileName(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8") + SUFFIX;
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String resourceName(String fileName) {
+		try {
+			return URLDecoder.decode(fileName.substring(0, fileName.length() - SUFFIX.length()), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/*
+	 * The owner of the lease and its expiry time, or null if the resource is free.
+	 */
+	@CheckForNull
+	private Lease readLease(Path file) throws IOException {
+		byte[] content;
+		long written;
+		try {
+			written = Files.getLastModifiedTime(file).toMillis();
+			content = Files.readAllBytes(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		String text = new String(content, StandardCharsets.UTF_8);
+		String[] lines = text.split("\n");
+		if (lines.length < 2) {
+			// being written by its owner, or left half written by a crash: held until it would have expired
+			return new Lease(null, written + getLeaseDuration(), text);
+		}
+		long expiry;
+		try {
+			expiry = Long.parseLong(lines[1].trim());
+		} catch (NumberFormatException e) {
+			expiry = 0;
+		}
+		return new Lease(lines[0], expiry, text);
+	}
+
+	private byte[] leaseContent(long now) {
+		return (getControllerId() + "\n" + (now + getLeaseDuration()) + "\n" + UUID.randomUUID() + "\n")
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Creates the lease file with the given content unless it exists. The content is written to a
+	 * temporary file first and linked, so that the lease is never seen half written, unless the file
+	 * system does not support hard links.
+	 */
+	private static boolean publish(Path root, Path file, byte[] content) throws IOException {
+		Path tmp = root.resolve(UUID.randomUUID() + ".tmp");
+		Files.write(tmp, content);
+		try {
+			Files.createLink(file, tmp);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			try {
+				Files.write(file, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				return true;
+			} catch (FileAlreadyExistsException e2) {
+				return false;
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/*
+	 * Removes the lease file if it still holds the given lease. It is renamed away, so that only one of
+	 * the contenders gets it, then checked, and put back if another controller replaced the lease
+	 * between the read and the rename.
+	 *
+	 * @return false if the lease was replaced, true if it is gone
+	 */
+	private boolean removeIfUnchanged(Path root, Path file, Lease lease) throws IOException {
+		Path tombstone = root.resolve(UUID.randomUUID() + ".expired");
+		try {
+			Files.move(file, tombstone, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			// released or taken over by someone else meanwhile, creating it decides
+			return true;
+		}
+		try {
+			Lease moved = readLease(tombstone);
+			if (moved != null && !moved.content.equals(lease.content)) {
+				if (!publish(root, file, moved.content.getBytes(StandardCharsets.UTF_8))) {
+					LOGGER.log(Level.WARNING, "Could not restore the lease of {0} on {1}, replaced meanwhile",
+							new Object[] { moved.owner, file.getFileName() });
+				}
+				return false;
+			}
+			return true;
+		} finally {
+			Files.deleteIfExists(tombstone);
+		}
+	}
+
+	@Override
+	public synchronized boolean acquire(Collection<String> names) {
+		List<String> taken = new ArrayList<>();
+		try {
+			Path root = getRoot();
+			for (String name : names) {
+				Path file = root.resolve(fileName(name));
+				Lease lease = readLease(file);
+				if (lease != null && getControllerId().equals(lease.owner)
+						&& lease.expiry >= System.currentTimeMillis()) {
+					continue;
+				}
+				if (!tryCreate(root, file, lease)) {
+					release(taken);
+					return false;
+				}
+				taken.add(name);
+			}
+			if (waited != null) {
+				waited.removeAll(names);
+			}
+			return true;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to acquire " + names + " in " + directory, e);
+			release(taken);
+			return false;
+		}
+	}
+
+	private boolean tryCreate(Path root, Path file, @CheckForNull Lease lease) throws IOException {
+		long now = System.currentTimeMillis();
+		if (lease != null) {
+			if (lease.expiry >= now) {
+				return false;
+			}
+			if (!removeIfUnchanged(root, file, lease)) {
+				return false;
+			}
+			LOGGER.log(Level.INFO, "Took over the expired lease of {0} on {1}",
+					new Object[] { lease.owner, file.getFileName() });
+		}
+		return publish(root, file, leaseContent(now));
+	}
+
+	@Override
+	public synchronized void release(Collection<String> names) {
+		if (names.isEmpty()) {
+			return;
+		}
+		try {
+			Path root = getRoot();
+			for (String name : names) {
+				Path file = root.resolve(fileName(name));
+				Lease lease = readLease(file);
+				if (lease != null && getControllerId().equals(lease.owner)) {
+					removeIfUnchanged(root, file, lease);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to release " + names + " in " + directory, e);
+		}
+	}
+
+	@Override
+	public synchronized void queue(Collection<String> names) {
+		if (waited == null) {
+			waited = new HashSet<>();
+		}
+		waited.addAll(names);
+	}
+
+	@Override
+	public synchronized Collection<String> getWaited() {
+		return waited != null ? new ArrayList<>(waited) : Collections.<String>emptyList();
+	}
+
+	@Override
+	public void renew(Collection<String> inUse) {
+		Collection<String> lost = renewLeases(inUse);
+		if (lost.isEmpty()) {
+			return;
+		}
+		LOGGER.log(Level.WARNING, "Lost the leases on {0} to another controller", lost);
+		Listener l;
+		synchronized (this) {
+			l = listener;
+		}
+		if (l != null) {
+			l.lost(lost);
+		}
+	}
+
+	/*
+	 * Renews the leases in use, releases the other ones of this controller.
+	 *
+	 * @return the resources in use whose lease is held by another controller
+	 */
+	private synchronized Collection<String> renewLeases(Collection<String> inUse) {
+		List<String> lost = new ArrayList<>();
+		try {
+			Path root = getRoot();
+			long now = System.currentTimeMillis();
+			Set<String> owned = new HashSet<>();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "*" + SUFFIX)) {
+				for (Path file : files) {
+					Lease lease = readLease(file);
+					if (lease == null || !getControllerId().equals(lease.owner)) {
+						continue;
+					}
+					String name = resourceName(file.getFileName().toString());
+					if (!inUse.contains(name)) {
+						removeIfUnchanged(root, file, lease);
+						continue;
+					}
+					owned.add(name);
+					if (lease.expiry - now > RENEW_MARGIN) {
+						// nobody else takes a lease before it expires
+						replace(root, file, leaseContent(now));
+					} else if (!removeIfUnchanged(root, file, lease) || !publish(root, file, leaseContent(now))) {
+						// expired, and taken over meanwhile
+						lost.add(name);
+					}
+				}
+			}
+			for (String name : inUse) {
+				if (owned.contains(name)) {
+					continue;
+				}
+				// taken over by another controller, or released meanwhile
+				Path file = root.resolve(fileName(name));
+				if (!tryCreate(root, file, readLease(file))) {
+					lost.add(name);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to renew the leases in " + directory, e);
+		}
+		return lost;
+	}
+
+	private static void replace(Path root, Path file, byte[] content) throws IOException {
+		Path tmp = root.resolve(UUID.randomUUID() + ".tmp");
+		Files.write(tmp, content);
+		try {
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	@Override
+	public synchronized void watch(Listener listener) {
+		this.listener = listener;
+		if (watcher == null) {
+			watcher = new Thread(new Watcher(), "Lockable resources watcher for " + directory);
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+	}
+
+	@Override
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			t = watcher;
+			watcher = null;
+			listener = null;
+		}
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+
+	/*
+	 * The waited resources which are free in the store now.
+	 */
+	private Collection<String> checkReleased() {
+		Listener l;
+		List<String> released = new ArrayList<>();
+		synchronized (this) {
+			l = listener;
+			if (l == null || waited == null || waited.isEmpty()) {
+				return Collections.emptyList();
+			}
+			try {
+				Path root = getRoot();
+				long now = System.currentTimeMillis();
+				for (String name : waited) {
+					Lease lease = readLease(root.resolve(fileName(name)));
+					if (lease == null || lease.expiry < now) {
+						released.add(name);
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to check the leases in " + directory, e);
+				return Collections.emptyList();
+			}
+			waited.removeAll(released);
+		}
+		// outside of the lock, the listener will call back acquire()
+		if (!released.isEmpty()) {
+			l.released(released);
+		}
+		return released;
+	}
+
+	private class Watcher implements Runnable {
+		@Override
+		public void run() {
+			WatchService service = null;
+			try {
+				service = getRoot().getFileSystem().newWatchService();
+				getRoot().register(service, StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+			} catch (IOException | UnsupportedOperationException e) {
+				LOGGER.log(Level.FINE, "Watching " + directory + " is not supported, polling it", e);
+				service = null;
+			}
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					if (service != null) {
+						WatchKey key = service.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+						if (key != null) {
+							key.pollEvents();
+							key.reset();
+						}
+					} else {
+						Thread.sleep(POLL_INTERVAL);
+					}
+					try {
+						checkReleased();
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Failed to notify the released resources", e);
+					}
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// closed
+			} finally {
+				if (service != null) {
+					try {
+						service.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+	}
+
+	private static final class Lease {
+		final String owner;
+		final long expiry;
+		// the whole file, unique to this lease
+		final String content;
+
+		Lease(String owner, long expiry, String content) {
+			this.owner = owner;
+			this.expiry = expiry;
+			this.content = content;
+		}
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<LockableResourcesBackend> {
+
+		@Override
+		public String getDisplayName() {
+			return "Shared directory (several controllers)";
+		}
+
+		public FormValidation doCheckDirectory(@QueryParameter String value) {
+			if (Util.fixEmptyAndTrim(value) == null) {
+				return FormValidation.error("The shared directory is required");
+			}
+			return FormValidation.ok();
+		}
+
+	}
+}
@@ -0,0 +1,304 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.metrics;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+
+/**
+ * Wait and hold times of the locks, overall, per resource and per label.
+ * <p>
+ * The wait time goes from the moment a lock step is queued to the moment it gets its resources
+ * (zero if they are available right away), the hold time from the moment a build locks a resource
+ * to the moment it is released, both in milliseconds. Histograms of resources and labels are created on first use,
+ * and dropped with the resources the manager removes.
+ * <p>
+ * The cost of the manager itself is recorded as well, in microseconds: how long callers wait for its
+ * monitor, how long each of its operations holds it, and how long saving takes.
+ */
+public final class LockMetrics {
+
+	private static final LockMetrics INSTANCE = new LockMetrics();
+
+	private final Histogram wait = new Histogram();
+	private final Histogram hold = new Histogram();
+	private final ConcurrentMap<String, Histogram> waitByResource = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Histogram> holdByResource = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Histogram> waitByLabel = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Histogram> holdByLabel = new ConcurrentHashMap<String, Histogram>();
+
+	private final Histogram monitorWait = new Histogram();
+	private final ConcurrentMap<String, Histogram> operations = new ConcurrentHashMap<String, Histogram>();
+	private final Histogram saveTime = new Histogram();
+	private final AtomicLong savedBytes = new AtomicLong();
+	private final Histogram queueScan = new Histogram();
+	private final AtomicLong affinityHits = new AtomicLong();
+	private final AtomicLong affinityMisses = new AtomicLong();
+
+	public static LockMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records that a lock step waited for the given resources.
+	 */
+	public void recordWait(Collection<LockableResource> resources, long millis) {
+		wait.record(millis);
+		for (LockableResource r : resources) {
+			histogram(waitByResource, r.getName()).record(millis);
+			for (String label : labels(r)) {
+				histogram(waitByLabel, label).record(millis);
+			}
+		}
+	}
+
+	/**
+	 * Records that a build held the resource.
+	 */
+	public void recordHold(LockableResource resource, long millis) {
+		hold.record(millis);
+		histogram(holdByResource, resource.getName()).record(millis);
+		for (String label : labels(resource)) {
+			histogram(holdByLabel, label).record(millis);
+		}
+	}
+
+	/**
+	 * Drops the histograms of resources which were removed, e.g. ephemeral ones, and of
+	 * their labels if none of the remaining resources has them.
+	 */
+	public void forget(Collection<LockableResource> removed, Collection<LockableResource> remaining) {
+		Set<String> labels = new HashSet<String>();
+		for (LockableResource r : removed) {
+			waitByResource.remove(r.getName());
+			holdByResource.remove(r.getName());
+			labels.addAll(r.getLabelList());
+		}
+		if (labels.isEmpty()) {
+			return;
+		}
+		for (LockableResource r : remaining) {
+			labels.removeAll(r.getLabelList());
+		}
+		for (String label : labels) {
+			waitByLabel.remove(label);
+			holdByLabel.remove(label);
+		}
+	}
+
+	/**
+	 * Records how long the caller waited for the monitor of the manager.
+	 *
+	 * @param requested {@link System#nanoTime()} before entering the monitor
+	 * @return {@link System#nanoTime()} once entered, to pass to {@link #operationDone}
+	 */
+	public long monitorAcquired(long requested) {
+		long entered = System.nanoTime();
+		monitorWait.record((entered - requested) / 1000);
+		return entered;
+	}
+
+	/**
+	 * Records how long an operation of the manager held its monitor.
+	 */
+	public void operationDone(String operation, long entered) {
+		histogram(operations, operation).record((System.nanoTime() - entered) / 1000);
+	}
+
+	/**
+	 * Records a save of the manager, and the number of bytes written.
+	 */
+	public void saveDone(long started, long bytes) {
+		saveTime.record((System.nanoTime() - started) / 1000);
+		savedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records how many queued contexts were examined to find the next one to resume.
+	 */
+	public void queueScanned(int entries) {
+		queueScan.record(entries);
+	}
+
+	/**
+	 * Records a selection of resources for a job which had used some of the candidates last:
+	 * a hit if it got at least one of them again.
+	 */
+	public void affinitySelected(boolean hit) {
+		(hit ? affinityHits : affinityMisses).incrementAndGet();
+	}
+
+	public long getAffinityHits() {
+		return affinityHits.get();
+	}
+
+	public long getAffinityMisses() {
+		return affinityMisses.get();
+	}
+
+	public Histogram getMonitorWait() {
+		return monitorWait;
+	}
+
+	public Map<String, Histogram> getOperations() {
+		return operations;
+	}
+
+	public Histogram getSaveTime() {
+		return saveTime;
+	}
+
+	public long getSavedBytes() {
+		return savedBytes.get();
+	}
+
+	public Histogram getQueueScan() {
+		return queueScan;
+	}
+
+	public Histogram getWait() {
+		return wait;
+	}
+
+	public Histogram getHold() {
+		return hold;
+	}
+
+	public Map<String, Histogram> getWaitByResource() {
+		return waitByResource;
+	}
+
+	public Map<String, Histogram> getHoldByResource() {
+		return holdByResource;
+	}
+
+	public Map<String, Histogram> getWaitByLabel() {
+		return waitByLabel;
+	}
+
+	public Map<String, Histogram> getHoldByLabel() {
+		return holdByLabel;
+	}
+
+	private static String[] labels(LockableResource r) {
+		List<String> labels = r.getLabelList();
+		return labels.toArray(new String[labels.size()]);
+	}
+
+	private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String key) {
+		Histogram h = histograms.get(key);
+		if (h == null) {
+			Histogram created = new Histogram();
+			h = histograms.putIfAbsent(key, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * The histograms as JSON, resources and labels sorted by name, with the current
+	 * queue depth and utilization (share of the resources locked) overall and per label.
+	 */
+	public JSONObject toJSON(List<LockableResource> resources, int queueDepth) {
+		Map<String, JSONObject> labels = new TreeMap<String, JSONObject>();
+		int locked = 0;
+		Map<String, int[]> usage = new HashMap<String, int[]>();
+		for (LockableResource r : resources) {
+			boolean isLocked = r.isLocked();
+			if (isLocked) {
+				locked++;
+			}
+			for (String label : labels(r)) {
+				int[] u = usage.get(label);
+				if (u == null) {
+					u = new int[2];
+					usage.put(label, u);
+				}
+				u[0]++;
+				if (isLocked) {
+					u[1]++;
+				}
+			}
+		}
+		for (Map.Entry<String, int[]> e : usage.entrySet()) {
+			JSONObject entry = entry(labels, e.getKey());
+			entry.put("total", e.getValue()[0]);
+			entry.put("locked", e.getValue()[1]);
+			entry.put("utilization", (double) e.getValue()[1] / e.getValue()[0]);
+		}
+
+		JSONObject json = new JSONObject();
+		json.put("queueDepth", queueDepth);
+		json.put("total", resources.size());
+		json.put("locked", locked);
+		json.put("utilization", resources.isEmpty() ? 0 : (double) locked / resources.size());
+		json.put("wait", wait.toJSON());
+		json.put("hold", hold.toJSON());
+		json.put("resources", toJSON(new TreeMap<String, JSONObject>(), waitByResource, holdByResource));
+		json.put("labels", toJSON(labels, waitByLabel, holdByLabel));
+
+		JSONObject affinity = new JSONObject();
+		long hits = affinityHits.get();
+		long misses = affinityMisses.get();
+		affinity.put("hits", hits);
+		affinity.put("misses", misses);
+		affinity.put("hitRate", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+		json.put("affinity", affinity);
+
+		JSONObject manager = new JSONObject();
+		manager.put("monitorWait", monitorWait.toJSON());
+		Map<String, JSONObject> sortedOperations = new TreeMap<String, JSONObject>();
+		for (Map.Entry<String, Histogram> e : operations.entrySet()) {
+			sortedOperations.put(e.getKey(), e.getValue().toJSON());
+		}
+		JSONObject ops = new JSONObject();
+		ops.putAll(sortedOperations);
+		manager.put("operations", ops);
+		manager.put("save", saveTime.toJSON());
+		manager.put("savedBytes", savedBytes.get());
+		manager.put("queueScan", queueScan.toJSON());
+		json.put("manager", manager);
+		return json;
+	}
+
+	private static JSONObject toJSON(Map<String, JSONObject> sorted, Map<String, Histogram> waits, Map<String, Histogram> holds) {
+		for (Map.Entry<String, Histogram> e : waits.entrySet()) {
+			entry(sorted, e.getKey()).put("wait", e.getValue().toJSON());
+		}
+		for (Map.Entry<String, Histogram> e : holds.entrySet()) {
+			entry(sorted, e.getKey()).put("hold", e.getValue().toJSON());
+		}
+		JSONObject json = new JSONObject();
+		json.putAll(sorted);
+		return json;
+	}
+
+	private static JSONObject entry(Map<String, JSONObject> entries, String key) {
+		JSONObject entry = entries.get(key);
+		if (entry == null) {
+			entry = new JSONObject();
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+}
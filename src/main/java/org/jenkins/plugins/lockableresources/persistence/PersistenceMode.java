@@ -0,0 +1,40 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.persistence;
+
+/*
+ * How the resources of the manager are written to the disk.
+ */
+public enum PersistenceMode {
+
+	/*
+	 * All the resources within the configuration file of the manager, rewritten on every change.
+	 */
+	XML("Single XML file"),
+
+	/*
+	 * One file per resource, only the changed resources are rewritten.
+	 */
+	RESOURCE_FILES("One file per resource"),
+
+	/*
+	 * All the resources in a binary file next to the configuration file, the fastest to load.
+	 */
+	BINARY("Binary snapshot file");
+
+	private final String displayName;
+
+	PersistenceMode(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
@@ -0,0 +1,269 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.persistence;
+
+import hudson.XmlFile;
+import hudson.util.AtomicFileWriter;
+import hudson.util.XStream2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
+
+/**
+ * Persists every resource in its own file, so that a change to a few resources of a large
+ * inventory only rewrites these ones. Each file is replaced atomically.
+ * <p>
+ * The order of the resources, which is the order they are selected in, is kept in an index
+ * file listing their names. It is only rewritten when resources are added, removed or moved.
+ * The file names mark the capital letters of the resource names, so that resources whose
+ * names differ only by case do not share a file on case-insensitive filesystems.
+ */
+public class ResourceFileStore {
+
+	private static final Logger LOGGER = Logger.getLogger(ResourceFileStore.class.getName());
+
+	private static final String INDEX = "resources.index";
+
+	private static final String SUFFIX = ".xml";
+
+	private static final XStream2 XSTREAM = new XStream2();
+
+	// the only types an imported document may hold
+	private static final Set<Class<?>> IMPORTED_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+			ArrayList.class, LockableResource.class));
+
+	/*
+	 * Reads the imported documents, which come from users: unlike the files of the store,
+	 * they must not make XStream instantiate anything but lockable resources.
+	 */
+	private static final XStream2 IMPORT_XSTREAM = new XStream2() {
+		@Override
+		protected MapperWrapper wrapMapper(MapperWrapper next) {
+			return new MapperWrapper(super.wrapMapper(next)) {
+				@Override
+				public Class realClass(String elementName) {
+					Class type = super.realClass(elementName);
+					if (!IMPORTED_TYPES.contains(type)) {
+						throw new CannotResolveClassException(elementName);
+					}
+					return type;
+				}
+			};
+		}
+	};
+
+	static {
+		XSTREAM.alias("resource", LockableResource.class);
+		IMPORT_XSTREAM.alias("resource", LockableResource.class);
+	}
+
+	private final File directory;
+
+	/*
+	 * Names as listed in the index file, null until read or written.
+	 */
+	private List<String> indexedNames;
+
+	public ResourceFileStore(File directory) {
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public boolean exists() {
+		return new File(directory, INDEX).isFile();
+	}
+
+	/**
+	 * Reads all the resources, in the order of the index.
+	 */
+	public synchronized List<LockableResource> load() throws IOException {
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		List<String> names = new ArrayList<String>();
+		for (String name : readIndex()) {
+			XmlFile file = getFile(name);
+			File legacy = new File(directory, encode(name) + SUFFIX);
+			if (!file.exists() && legacy.isFile()) {
+				// written before the capital letters were marked
+				Files.move(legacy.toPath(), file.getFile().toPath());
+			}
+			if (!file.exists()) {
+				LOGGER.log(Level.WARNING, "Missing file of the lockable resource {0}, skipping it", name);
+				continue;
+			}
+			try {
+				LockableResource resource = (LockableResource) file.read();
+				resource.setDirty(false);
+				resources.add(resource);
+				names.add(name);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to read the lockable resource " + name + ", skipping it", e);
+			}
+		}
+		indexedNames = names;
+		return resources;
+	}
+
+	/**
+	 * Writes the resources changed since the last save, updates the index
+	 * and deletes the files of the resources which are gone.
+	 *
+	 * @return the number of bytes written
+	 */
+	public synchronized long save(List<LockableResource> resources) throws IOException {
+		long bytes = 0;
+		if (indexedNames == null) {
+			indexedNames = readIndex();
+		}
+		List<String> names = new ArrayList<String>(resources.size());
+		for (LockableResource resource : resources) {
+			names.add(resource.getName());
+			if (resource.isDirty()) {
+				XmlFile file = getFile(resource.getName());
+				file.write(resource);
+				resource.setDirty(false);
+				bytes += file.getFile().length();
+			}
+		}
+		if (!names.equals(indexedNames)) {
+			bytes += writeIndex(names);
+			Set<String> removed = new HashSet<String>(indexedNames);
+			removed.removeAll(names);
+			for (String name : removed) {
+				File file = getFile(name).getFile();
+				if (file.exists() && !file.delete()) {
+					LOGGER.log(Level.WARNING, "Failed to delete {0}", file);
+				}
+			}
+			indexedNames = names;
+		}
+		return bytes;
+	}
+
+	private List<String> readIndex() throws IOException {
+		List<String> names = new ArrayList<String>();
+		File index = new File(directory, INDEX);
+		if (index.isFile()) {
+			for (String line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+				if (!line.isEmpty()) {
+					names.add(decode(line));
+				}
+			}
+		}
+		return names;
+	}
+
+	private long writeIndex(List<String> names) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create " + directory);
+		}
+		AtomicFileWriter w = new AtomicFileWriter(new File(directory, INDEX), "UTF-8");
+		try {
+			for (String name : names) {
+				w.write(encode(name));
+				w.write('\n');
+			}
+			w.commit();
+		} finally {
+			w.abort();
+		}
+		return new File(directory, INDEX).length();
+	}
+
+	/**
+	 * Writes the resources as a single XML document, to be imported with {@link #importResources}.
+	 */
+	public static void exportResources(List<LockableResource> resources, OutputStream out) throws IOException {
+		Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		w.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+		XSTREAM.toXML(new ArrayList<LockableResource>(resources), w);
+		w.flush();
+	}
+
+	@SuppressWarnings("unchecked")
+	public static List<LockableResource> importResources(InputStream in) throws IOException {
+		Object imported;
+		try {
+			imported = IMPORT_XSTREAM.fromXML(in);
+		} catch (RuntimeException e) {
+			throw new IOException("Not a list of lockable resources", e);
+		}
+		if (!(imported instanceof List)) {
+			throw new IOException("Not a list of lockable resources");
+		}
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for (Object o : (List<Object>) imported) {
+			if (!(o instanceof LockableResource)) {
+				throw new IOException("Not a lockable resource: " + o);
+			}
+			resources.add((LockableResource) o);
+		}
+		return resources;
+	}
+
+	private XmlFile getFile(String name) {
+		return new XmlFile(XSTREAM, new File(directory, fileName(name)));
+	}
+
+	/*
+	 * The encoded name, where each capital letter is preceded by a caret, which the encoding
+	 * does not produce otherwise.
+	 */
+	static String fileName(String name) {
+		String encoded = encode(name);
+		StringBuilder b = new StringBuilder(encoded.length() + 8);
+		for (int i = 0; i < encoded.length(); i++) {
+			char c = encoded.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				b.append('^');
+			}
+			b.append(c);
+		}
+		return b.append(SUFFIX).toString();
+	}
+
+	private static String encode(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String decode(String line) {
+		try {
+			return URLDecoder.decode(line, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
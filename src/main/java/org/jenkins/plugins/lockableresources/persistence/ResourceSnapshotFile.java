@@ -0,0 +1,136 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+
+/**
+ * Persists all the resources in a single binary file, which is much faster to
+ * read at startup than XML with thousands of resources.
+ * <p>
+ * The file starts with a magic number and the version of its format, so that a
+ * file written by a later version of the plugin is rejected instead of misread.
+ * It is rewritten as a whole and replaced atomically.
+ */
+public class ResourceSnapshotFile {
+
+	private static final int MAGIC = 0x4c52424e; // "LRBN"
+
+	/**
+	 * Version of the format, to be increased with every change of {@link LockableResource#writeBinary}.
+	 * Files of an earlier version are still read.
+	 */
+	public static final int FORMAT_VERSION = 2;
+
+	private final File file;
+
+	public ResourceSnapshotFile(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean exists() {
+		return file.isFile();
+	}
+
+	/**
+	 * Reads all the resources, in the order they were saved in.
+	 *
+	 * @throws IOException if the file is not readable, or of an unknown format
+	 */
+	public synchronized List<LockableResource> load() throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large");
+			}
+			buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// until full
+			}
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.position()));
+		if (in.readInt() != MAGIC) {
+			throw new IOException(file + " is not a lockable resources snapshot");
+		}
+		int version = in.readInt();
+		if (version < 1 || version > FORMAT_VERSION) {
+			throw new IOException(file + " has the unsupported format version " + version);
+		}
+		int count = in.readInt();
+		List<LockableResource> resources = new ArrayList<LockableResource>(count);
+		for (int i = 0; i < count; i++) {
+			resources.add(LockableResource.readBinary(in, version));
+		}
+		return resources;
+	}
+
+	/**
+	 * Writes all the resources and marks them clean.
+	 *
+	 * @return the number of bytes written
+	 */
+	public synchronized long save(List<LockableResource> resources) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * resources.size() + 12);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(resources.size());
+		for (LockableResource r : resources) {
+			r.writeBinary(out);
+		}
+		out.flush();
+
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create " + directory);
+		}
+		Path tmp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			try {
+				Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		for (LockableResource r : resources) {
+			r.setDirty(false);
+		}
+		return bytes.size();
+	}
+}
@@ -0,0 +1,41 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.queue;
+
+/*
+ * Decides which waiting lock request is aborted when the queued pipeline
+ * contexts and the builds holding resources form a cycle.
+ */
+public enum DeadlockVictimPolicy {
+
+	/*
+	 * Only report the deadlock in the logs of the involved builds.
+	 */
+	NONE("Only report the deadlock"),
+
+	/*
+	 * Abort the lock request which closed the cycle.
+	 */
+	ABORT_REQUESTER("Abort the lock request which closed the cycle"),
+
+	/*
+	 * Abort the lock request of the most recently started build in the cycle.
+	 */
+	ABORT_NEWEST("Abort the lock request of the most recently started build");
+
+	private final String displayName;
+
+	DeadlockVictimPolicy(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
@@ -0,0 +1,30 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.queue;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+
+/**
+ * Gives back the resources queued for the items cancelled before they started,
+ * rather than keep them from the lock steps until the reservation times out.
+ */
+@Extension
+public class LockQueueListener extends QueueListener {
+
+	@Override
+	public void onLeft(Queue.LeftItem li) {
+		if (li.isCancelled()) {
+			LockableResourcesManager.get().unqueue(li.getId());
+		}
+	}
+}
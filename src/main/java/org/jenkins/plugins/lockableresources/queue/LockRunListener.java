@@ -53,7 +53,7 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
 						required.addAll(LockableResourcesManager.get().
 								getResourcesFromProject(proj.getFullName()));
 					} else {
-						required.addAll(resources.required);
+						required.addAll(resources.getRequired());
 					}
 
 					if (LockableResourcesManager.get().lock(required, build, null)) {
@@ -12,7 +12,9 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
+import hudson.matrix.DefaultMatrixExecutionStrategyImpl;
 import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixExecutionStrategy;
 import hudson.matrix.MatrixProject;
 import hudson.model.AbstractProject;
 import hudson.model.Job;
@@ -22,17 +24,20 @@ import hudson.model.queue.CauseOfBlockage;
 import hudson.model.ParametersAction;
 import hudson.model.ParameterValue;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.time.DateUtils;
-import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -45,8 +50,110 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 	static final Logger LOGGER = Logger
 			.getLogger(LockableResourcesQueueTaskDispatcher.class.getName());
 
+	/*
+	 * Decisions for the items of the current queue maintenance.
+	 */
+	private volatile SchedulingPlan plan;
+
+	/*
+	 * What the items the queue asked about need, as of their last check:
+	 * the items the plans are made for.
+	 */
+	private final Map<Long, SchedulingPlan.Request> requests = new ConcurrentHashMap<Long, SchedulingPlan.Request>();
+
+	// whether a matrix configuration is a touchstone, by configuration and filter
+	private final Cache<String, Boolean> touchstones = CacheBuilder.newBuilder().maximumSize(10000).build();
+
 	@Override
 	public CauseOfBlockage canRun(Queue.Item item) {
+		SchedulingPlan.Request request = request(item);
+		if (request == null) {
+			requests.remove(item.getId());
+			return null;
+		}
+		requests.put(item.getId(), request);
+
+		LOGGER.finest(request.projectName +
+			" trying to get resources with these details: " + request.resources);
+
+		SchedulingPlan.Decision decision = planned(item, request);
+		if (decision.failure != null) {
+			if (LOGGER.isLoggable(Level.WARNING)) {
+				if (lastLogged.getIfPresent(item.getId()) == null) {
+					lastLogged.put(item.getId(), new Date());
+
+					String itemName = request.projectName + " (id=" + item.getId() + ")";
+					LOGGER.log(Level.WARNING, "Failed to queue item " + itemName, decision.failure.getMessage());
+				}
+			}
+			return new BecauseResourcesQueueFailed(request.resources, decision.failure);
+		}
+
+		if (decision.selected != null) {
+			LOGGER.finest(request.projectName + " reserved resources " + decision.selected);
+			return null;
+		} else {
+			LOGGER.finest(request.projectName + " waiting for resources "
+				+ request.resources.getRequiredNames());
+			return new BecauseResourcesLocked(request.resources);
+		}
+	}
+
+	/*
+	 * Answers from the plan of the current queue maintenance, planning all
+	 * the items which may run again if the resources changed since, or if
+	 * the item was not planned. The requests are the ones recorded when the
+	 * queue asked about the items, none is computed here.
+	 */
+	private SchedulingPlan.Decision planned(Queue.Item item, SchedulingPlan.Request request) {
+		LockableResourcesManager manager = LockableResourcesManager.get();
+		long version = manager.getSnapshot().getVersion();
+		long now = System.currentTimeMillis();
+		SchedulingPlan p = plan;
+		if (p != null && p.isCurrent(version, now)) {
+			SchedulingPlan.Decision decision = p.claim(item.getId());
+			if (decision != null)
+				return decision;
+		}
+
+		List<SchedulingPlan.Request> planned = new ArrayList<SchedulingPlan.Request>();
+		planned.add(request);
+		Set<Long> queued = new HashSet<Long>();
+		for (Queue.Item other : Queue.getInstance().getItems()) {
+			queued.add(other.getId());
+			if (other.getId() == item.getId() || !mayRun(other, now))
+				continue;
+			SchedulingPlan.Request r = requests.get(other.getId());
+			if (r != null)
+				planned.add(r);
+		}
+		// the items which left the queue
+		for (Iterator<Long> it = requests.keySet().iterator(); it.hasNext();) {
+			if (!queued.contains(it.next()))
+				it.remove();
+		}
+		p = SchedulingPlan.compute(manager, planned, version, p, LOGGER);
+		plan = p;
+		return p.claim(item.getId());
+	}
+
+	/*
+	 * Whether the queue asks the dispatchers if the item can run. Whether
+	 * the task or the other dispatchers block it is what they answered the
+	 * last time the queue asked about it: the item got a request only if it
+	 * got to this dispatcher.
+	 */
+	private static boolean mayRun(Queue.Item item, long now) {
+		if (item instanceof Queue.WaitingItem) {
+			return ((Queue.WaitingItem) item).timestamp.getTimeInMillis() <= now;
+		}
+		return item instanceof Queue.BlockedItem;
+	}
+
+	/*
+	 * What the item needs, or null if it does not need resources.
+	 */
+	private SchedulingPlan.Request request(Queue.Item item) {
 		// Skip locking for multiple configuration projects,
 		// only the child jobs will actually lock resources.
 		if (item.task instanceof MatrixProject)
@@ -58,7 +165,7 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 
 		LockableResourcesStruct resources = Utils.requiredResources(project);
 		if (resources == null ||
-			(resources.required.isEmpty() && resources.label.isEmpty() && resources.getResourceMatchScript() == null)) {
+			(resources.getRequired().isEmpty() && resources.label.isEmpty() && resources.getResourceMatchScript() == null)) {
 			return null;
 		}
 
@@ -69,12 +176,23 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 			resourceNumber = 0;
 		}
 
-		LOGGER.finest(project.getName() +
-			" trying to get resources with these details: " + resources);
-
+		Map<String, Object> params = new HashMap<String, Object>();
+		String gang = null;
+		int gangSize = 0;
+		if (item.task instanceof MatrixConfiguration) {
+			// the configurations of a matrix build start together or wait together
+			MatrixConfiguration configuration = (MatrixConfiguration) item.task;
+			MatrixConfiguration.ParentBuildAction parent = item.getAction(MatrixConfiguration.ParentBuildAction.class);
+			MatrixExecutionStrategy strategy = configuration.getParent().getExecutionStrategy();
+			if (parent != null && parent.parent != null && strategy instanceof DefaultMatrixExecutionStrategyImpl
+					&& !((DefaultMatrixExecutionStrategyImpl) strategy).isRunSequentially()) {
+				boolean touchstone = isTouchstone(configuration, (DefaultMatrixExecutionStrategyImpl) strategy);
+				gang = parent.parent.getExternalizableId() + (touchstone ? " touchstone" : "");
+				gangSize = notStarted(configuration.getParent(), parent.parent.getNumber(),
+						(DefaultMatrixExecutionStrategyImpl) strategy, touchstone);
+			}
+		}
 		if (resourceNumber > 0 || !resources.label.isEmpty() || resources.getResourceMatchScript() != null) {
-			Map<String, Object> params = new HashMap<String, Object>();
-
 			// Inject Build Parameters, if possible and applicable to the "item" type
 			try {
 				List<ParametersAction> itemparams = item.getActions(ParametersAction.class);
@@ -104,51 +222,42 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 				MatrixConfiguration matrix = (MatrixConfiguration) item.task;
 				params.putAll(matrix.getCombination());
 			}
+		}
 
-			final List<LockableResource> selected ;
-			try {
-				selected = LockableResourcesManager.get().tryQueue(
-					resources,
-					item.getId(),
-					project.getFullName(),
-					resourceNumber,
-					params,
-					LOGGER);
-			} catch(ExecutionException ex) {
-				Throwable toReport = ex.getCause();
-				if (toReport == null) { // We care about the cause only
-					toReport = ex;
-				}
-				if (LOGGER.isLoggable(Level.WARNING)) {
-					if (lastLogged.getIfPresent(item.getId()) == null) {
-						lastLogged.put(item.getId(), new Date());
-
-						String itemName = project.getFullName() + " (id=" + item.getId() + ")";
-						LOGGER.log(Level.WARNING, "Failed to queue item " + itemName, toReport.getMessage());
-					}
-				}
-
-				return new BecauseResourcesQueueFailed(resources, toReport);
-			}
+		return new SchedulingPlan.Request(item.getId(), item.getInQueueSince(), project.getFullName(),
+				project.getFullDisplayName(), resources, resourceNumber, params, gang, gangSize);
+	}
 
-			if (selected != null) {
-				LOGGER.finest(project.getName() + " reserved resources " + selected);
-				return null;
-			} else {
-				LOGGER.finest(project.getName() + " waiting for resources");
-				return new BecauseResourcesLocked(resources);
-			}
+	/*
+	 * Whether the configuration runs first, before the others of the build are scheduled.
+	 * The filter is evaluated once per configuration, as long as it does not change.
+	 */
+	private boolean isTouchstone(MatrixConfiguration configuration, DefaultMatrixExecutionStrategyImpl strategy) {
+		String filter = strategy.getTouchStoneCombinationFilter();
+		if (filter == null || filter.trim().isEmpty())
+			return false;
+		String key = configuration.getFullName() + '\n' + filter;
+		Boolean touchstone = touchstones.getIfPresent(key);
+		if (touchstone == null) {
+			touchstone = configuration.getCombination().evalGroovyExpression(configuration.getParent().getAxes(), filter);
+			touchstones.put(key, touchstone);
+		}
+		return touchstone;
+	}
 
-		} else {
-			if (LockableResourcesManager.get().queue(resources.required, item.getId(), project.getFullDisplayName())) {
-				LOGGER.finest(project.getName() + " reserved resources " + resources.required);
-				return null;
-			} else {
-				LOGGER.finest(project.getName() + " waiting for resources "
-					+ resources.required);
-				return new BecauseResourcesLocked(resources);
+	/*
+	 * Number of configurations scheduled with the given one which have not started for the
+	 * build yet: cancelled ones are waited for until the matrix build is aborted.
+	 */
+	private int notStarted(MatrixProject project, int number, DefaultMatrixExecutionStrategyImpl strategy,
+			boolean touchstone) {
+		int count = 0;
+		for (MatrixConfiguration c : project.getActiveConfigurations()) {
+			if (isTouchstone(c, strategy) == touchstone && c.getBuildByNumber(number) == null) {
+				count++;
 			}
 		}
+		return count;
 	}
 
 	public static class BecauseResourcesLocked extends CauseOfBlockage {
@@ -162,7 +271,7 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 		@Override
 		public String getShortDescription() {
 			if (this.rscStruct.label.isEmpty())
-				return "Waiting for resources " + rscStruct.required.toString();
+				return "Waiting for resources " + rscStruct.getRequiredNames().toString();
 			else
 				return "Waiting for resources with label " + rscStruct.label;
 		}
@@ -185,7 +294,7 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 		@Override
 		public String getShortDescription() {
 			//TODO: Just a copy-paste from BecauseResourcesLocked, seems strange
-			String resourceInfo = (resources.label.isEmpty()) ? resources.required.toString() : "with label " + resources.label;
+			String resourceInfo = (resources.label.isEmpty()) ? resources.getRequiredNames().toString() : "with label " + resources.label;
 			return "Execution failed while acquiring the resource " + resourceInfo + ". " + cause.getMessage();
 		}
 	}
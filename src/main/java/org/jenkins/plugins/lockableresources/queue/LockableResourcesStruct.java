@@ -14,6 +14,7 @@ import java.io.ObjectOutputStream;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import javax.annotation.CheckForNull;
 
@@ -27,7 +28,19 @@ import edu.umd.cs.findbugs.annotations.Nullable;
 
 public class LockableResourcesStruct implements Serializable {
 
-	public List<LockableResource> required;
+	/*
+	 * Copies of the required resources, as persisted by older versions: only
+	 * read to migrate them to names in readResolve. It used to be public, but
+	 * it is null for the structs created since the requirements are stored by
+	 * name, so it is no longer exposed: use getRequired() or getRequiredNames().
+	 */
+	@Deprecated
+	private List<LockableResource> required;
+	/*
+	 * Names of the required resources, resolved against the manager when
+	 * needed so that neither the manager nor the pipelines persist copies of them.
+	 */
+	private List<String> requiredNames;
 	public String label;
 	public String requiredVar;
 	public String requiredNumber;
@@ -40,13 +53,9 @@ public class LockableResourcesStruct implements Serializable {
 
 	public LockableResourcesStruct(RequiredResourcesProperty property,
 			EnvVars env) {
-		required = new ArrayList<LockableResource>();
+		requiredNames = new ArrayList<String>();
 		for (String name : property.getResources()) {
-			LockableResource r = LockableResourcesManager.get().fromName(
-				env.expand(name));
-			if (r != null) {
-				this.required.add(r);
-			}
+			requiredNames.add(env.expand(name));
 		}
 
 		label = env.expand(property.getLabelName());
@@ -77,14 +86,9 @@ public class LockableResourcesStruct implements Serializable {
 	}
 
 	public LockableResourcesStruct(@Nullable List<String> resources, @Nullable String label, int quantity) {
-		required = new ArrayList<LockableResource>();
+		requiredNames = new ArrayList<String>();
 		if (resources != null) {
-			for (String resource : resources) {
-				LockableResource r = LockableResourcesManager.get().fromName(resource);
-				if (r != null) {
-					this.required.add(r);
-				}
-			}
+			requiredNames.addAll(resources);
 		}
 
 		this.label = label;
@@ -102,6 +106,33 @@ public class LockableResourcesStruct implements Serializable {
 		this.resourceMatchScript = null;
 	}
 
+	private Object readResolve() {
+		if (requiredNames == null) {
+			requiredNames = new ArrayList<String>();
+			if (required != null) {
+				for (LockableResource r : required) {
+					requiredNames.add(r.getName());
+				}
+			}
+			required = null;
+		}
+		return this;
+	}
+
+	/**
+	 * @return the names of the required resources, which may not all exist
+	 */
+	public List<String> getRequiredNames() {
+		return Collections.unmodifiableList(requiredNames);
+	}
+
+	/**
+	 * @return the required resources which exist, looked up by name
+	 */
+	public List<LockableResource> getRequired() {
+		return LockableResourcesManager.get().fromNames(requiredNames);
+	}
+
 	/**
 	 * Gets a system Groovy script to be executed in order to determine if the {@link LockableResource} matches the condition.
 	 * @return System Groovy Script if defined
@@ -117,7 +148,7 @@ public class LockableResourcesStruct implements Serializable {
 	}
 
 	public String toString() {
-		return "Required resources: " + this.required +
+		return "Required resources: " + this.requiredNames +
 			", Required label: " + this.label +
 			", Required label script: " + (this.resourceMatchScript != null ? this.resourceMatchScript.getScript() : "") +
 			", Variable name: " + this.requiredVar +
@@ -8,12 +8,16 @@
  * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
 package org.jenkins.plugins.lockableresources.queue;
 
+import hudson.model.Run;
+
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
 
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 
 /*
@@ -38,13 +42,53 @@ public class QueuedContextStruct implements Serializable {
 	 */
 	private String resourceDescription;
 
+	/*
+	 * External id of the build owning the step context, resolved when queued,
+	 * or on first use for the contexts queued by an older version.
+	 */
+	private String buildExternalizableId;
+
+	/*
+	 * Name of the environment variable the step exposes the locked resources in.
+	 */
+	private String variable;
+
+	/*
+	 * When the step context was queued, 0 if queued by an older version.
+	 */
+	private long queuedSince;
+
+	/*
+	 * Key of the group of contexts which lock their resources all at once, null if none.
+	 */
+	private String gang;
+
+	/*
+	 * Number of contexts in the group.
+	 */
+	private int gangSize;
+
 	/*
 	 * Constructor for the QueuedContextStruct class.
 	 */
 	public QueuedContextStruct(StepContext context, List<LockableResourcesStruct> lockableResourcesStruct, String resourceDescription) {
+		this(context, lockableResourcesStruct, resourceDescription, null);
+	}
+
+	public QueuedContextStruct(StepContext context, List<LockableResourcesStruct> lockableResourcesStruct, String resourceDescription, @Nullable String variable) {
+		this(context, lockableResourcesStruct, resourceDescription, variable, null);
+	}
+
+	/*
+	 * For a context whose build is known already, null to resolve it from the context.
+	 */
+	public QueuedContextStruct(StepContext context, List<LockableResourcesStruct> lockableResourcesStruct, String resourceDescription, @Nullable String variable, @Nullable String buildExternalizableId) {
 		this.context = context;
 		this.lockableResourcesStruct = lockableResourcesStruct;
 		this.resourceDescription = resourceDescription;
+		this.variable = variable;
+		this.queuedSince = System.currentTimeMillis();
+		this.buildExternalizableId = buildExternalizableId != null ? buildExternalizableId : resolveBuildExternalizableId();
 	}
 
 	/*
@@ -68,5 +112,66 @@ public class QueuedContextStruct implements Serializable {
 		return this.resourceDescription;
 	}
 
+	/*
+	 * Gets the variable requested by the step, null if none or if queued by an older version.
+	 */
+	@CheckForNull
+	public String getVariable() {
+		return this.variable;
+	}
+
+	/*
+	 * Gets when the step context was queued, 0 if unknown.
+	 */
+	public long getQueuedSince() {
+		return this.queuedSince;
+	}
+
+	/*
+	 * Gets the key of the group of contexts this one locks its resources with, null if none.
+	 */
+	@CheckForNull
+	public String getGang() {
+		return this.gang;
+	}
+
+	/*
+	 * Gets the number of contexts in the group.
+	 */
+	public int getGangSize() {
+		return this.gangSize;
+	}
+
+	/*
+	 * Makes this context lock its resources only together with the other gangSize - 1 contexts of the group.
+	 */
+	public void setGang(@CheckForNull String gang, int gangSize) {
+		this.gang = gang;
+		this.gangSize = gangSize;
+	}
+
+	/*
+	 * Gets the external id of the build owning the step context,
+	 * or null if the build cannot be retrieved (e.g. it was deleted).
+	 */
+	@CheckForNull
+	public String getBuildExternalizableId() {
+		if (this.buildExternalizableId == null) {
+			this.buildExternalizableId = resolveBuildExternalizableId();
+		}
+		return this.buildExternalizableId;
+	}
+
+	@CheckForNull
+	private String resolveBuildExternalizableId() {
+		try {
+			Run<?, ?> run = this.context.get(Run.class);
+			return run != null ? run.getExternalizableId() : null;
+		} catch (IOException | InterruptedException e) {
+			// no Run object for this context, it is an orphan
+			return null;
+		}
+	}
+
 	private static final long serialVersionUID = 1L;
 }
@@ -0,0 +1,236 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+
+/*
+ * Which of the queue items needing resources can run, decided for all of
+ * them at once under a single acquisition of the manager lock, the items
+ * which have been waiting the longest first. The resources of the items
+ * which can run are queued for them. The items of a gang, e.g. the
+ * configurations of a matrix build, either all get their resources or
+ * all wait.
+ *
+ * A plan holds until the resources change, or for TTL milliseconds, so
+ * that the dispatcher answers the items of a queue maintenance from it.
+ * The resources queued for the items the queue did not ask about, e.g.
+ * cancelled meanwhile, are given back by the next plan.
+ */
+final class SchedulingPlan {
+
+	static long TTL = Long.getLong(SchedulingPlan.class.getName() + ".ttl", 1000);
+
+	/*
+	 * What a queue item needs, computed before taking the manager lock.
+	 */
+	static final class Request {
+		final long itemId;
+		final long inQueueSince;
+		final String projectName;
+		final String projectDisplayName;
+		final LockableResourcesStruct resources;
+		// 0 means all
+		final int number;
+		final Map<String, Object> params;
+		// key of the items starting together, null if none
+		final String gang;
+		// number of items of the gang which have not started yet, queued or not
+		final int gangSize;
+
+		Request(long itemId, long inQueueSince, String projectName, String projectDisplayName,
+				LockableResourcesStruct resources, int number, Map<String, Object> params, String gang,
+				int gangSize) {
+			this.gang = gang;
+			this.gangSize = gangSize;
+			this.itemId = itemId;
+			this.inQueueSince = inQueueSince;
+			this.projectName = projectName;
+			this.projectDisplayName = projectDisplayName;
+			this.resources = resources;
+			this.number = number;
+			this.params = params;
+		}
+
+		boolean byNames() {
+			return number <= 0 && resources.label.isEmpty() && resources.getResourceMatchScript() == null;
+		}
+	}
+
+	static final class Decision {
+		final LockableResourcesStruct resources;
+		// resources queued for the item, null if it waits
+		final List<LockableResource> selected;
+		final Throwable failure;
+
+		Decision(LockableResourcesStruct resources, List<LockableResource> selected, Throwable failure) {
+			this.resources = resources;
+			this.selected = selected;
+			this.failure = failure;
+		}
+	}
+
+	private static final Comparator<Request> LONGEST_WAITING_FIRST = new Comparator<Request>() {
+		@Override
+		public int compare(Request a, Request b) {
+			if (a.inQueueSince != b.inQueueSince) {
+				return a.inQueueSince < b.inQueueSince ? -1 : 1;
+			}
+			return a.itemId < b.itemId ? -1 : (a.itemId == b.itemId ? 0 : 1);
+		}
+	};
+
+	private final long version;
+	private final long created;
+	private final Map<Long, Decision> decisions;
+	// items the dispatcher answered from this plan
+	private final Set<Long> claimed = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+	private SchedulingPlan(long version, long created, Map<Long, Decision> decisions) {
+		this.version = version;
+		this.created = created;
+		this.decisions = decisions;
+	}
+
+	/*
+	 * Whether the plan still holds for the given version of the resources.
+	 */
+	boolean isCurrent(long version, long now) {
+		return this.version == version && now - created < TTL;
+	}
+
+	/*
+	 * The decision for the given queue item, null if it was not planned.
+	 * The resources queued for the item are kept by the next plan.
+	 */
+	Decision claim(long itemId) {
+		Decision decision = decisions.get(itemId);
+		if (decision != null) {
+			claimed.add(itemId);
+		}
+		return decision;
+	}
+
+	/*
+	 * Gives back the resources queued for the items which were not claimed.
+	 */
+	private void releaseUnclaimed(LockableResourcesManager manager) {
+		for (Map.Entry<Long, Decision> e : decisions.entrySet()) {
+			if (e.getValue().selected != null && !claimed.contains(e.getKey())) {
+				manager.unqueue(e.getValue().selected, e.getKey());
+			}
+		}
+	}
+
+	static SchedulingPlan compute(LockableResourcesManager manager, List<Request> requests,
+			long version, @CheckForNull SchedulingPlan previous, Logger log) {
+		List<Request> ordered = new ArrayList<Request>(requests);
+		Collections.sort(ordered, LONGEST_WAITING_FIRST);
+		Map<Long, Decision> decisions = new HashMap<Long, Decision>(ordered.size() * 2);
+
+		long requested = System.nanoTime();
+		synchronized (manager) {
+			long entered = LockMetrics.get().monitorAcquired(requested);
+			try {
+				if (previous != null) {
+					previous.releaseUnclaimed(manager);
+				}
+				Map<String, List<Request>> gangs = new HashMap<String, List<Request>>();
+				for (Request r : ordered) {
+					if (r.gang != null) {
+						List<Request> members = gangs.get(r.gang);
+						if (members == null) {
+							members = new ArrayList<Request>();
+							gangs.put(r.gang, members);
+						}
+						members.add(r);
+					}
+				}
+				for (Request r : ordered) {
+					if (decisions.containsKey(r.itemId)) {
+						continue;
+					}
+					if (r.gang != null) {
+						// at the turn of the member waiting the longest
+						decideGang(manager, gangs.get(r.gang), decisions, log);
+					} else {
+						decisions.put(r.itemId, decide(manager, r, log));
+					}
+				}
+			} finally {
+				LockMetrics.get().operationDone("schedulingPlan", entered);
+			}
+		}
+		return new SchedulingPlan(version, System.currentTimeMillis(), decisions);
+	}
+
+	private static void decideGang(LockableResourcesManager manager, List<Request> members,
+			Map<Long, Decision> decisions, Logger log) {
+		Map<Long, Decision> decided = new HashMap<Long, Decision>();
+		// not before all the members are in the queue
+		boolean all = members.size() >= members.get(0).gangSize;
+		for (int i = 0; all && i < members.size(); i++) {
+			Request m = members.get(i);
+			Decision d = decide(manager, m, log);
+			decided.put(m.itemId, d);
+			if (d.selected == null) {
+				all = false;
+				break;
+			}
+		}
+		if (!all) {
+			for (Request m : members) {
+				Decision d = decided.get(m.itemId);
+				if (d != null && d.selected != null) {
+					manager.unqueue(d.selected, m.itemId);
+					d = new Decision(m.resources, null, null);
+				} else if (d == null) {
+					d = new Decision(m.resources, null, null);
+				}
+				decided.put(m.itemId, d);
+			}
+		}
+		decisions.putAll(decided);
+	}
+
+	private static Decision decide(LockableResourcesManager manager, Request r, Logger log) {
+		if (r.byNames()) {
+			List<LockableResource> required = r.resources.getRequired();
+			if (manager.queue(required, r.itemId, r.projectDisplayName)) {
+				return new Decision(r.resources, required, null);
+			}
+			return new Decision(r.resources, null, null);
+		}
+		try {
+			List<LockableResource> selected = manager.tryQueue(r.resources, r.itemId, r.projectName,
+					r.number, r.params, r.inQueueSince, log);
+			return new Decision(r.resources, selected, null);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+			log.log(Level.FINE, "Failed to queue item " + r.projectName + " (id=" + r.itemId + ")", cause);
+			return new Decision(r.resources, null, cause);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.selection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Default strategy: the first free resources, in the order they are configured in.
+ */
+public class FirstFitStrategy extends ResourceSelectionStrategy {
+
+	@DataBoundConstructor
+	public FirstFitStrategy() {
+	}
+
+	@Override
+	public Iterable<LockableResource> order(List<LockableResource> candidates) {
+		return candidates;
+	}
+
+	@Extension(ordinal = 100)
+	public static class DescriptorImpl extends Descriptor<ResourceSelectionStrategy> {
+
+		@Override
+		public String getDisplayName() {
+			return "First free resource";
+		}
+
+	}
+}
@@ -0,0 +1,144 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.selection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Takes the free resources which were selected the longest time ago first, those never
+ * selected since the start of Jenkins before all. The resources are kept in the order of
+ * their last selection, which the candidates are taken in rather than sorted: the never
+ * selected ones are found in a pass over the candidates, then the others are walked in
+ * that order, both only as long as the manager needs more of them.
+ */
+public class LeastRecentlyUsedStrategy extends ResourceSelectionStrategy {
+
+	// sequence number of the last selection of every resource
+	private transient Map<String, Long> lastSelected = new ConcurrentHashMap<String, Long>();
+	// names of the selected resources, by sequence number of their last selection
+	private transient NavigableMap<Long, String> byLastSelection = new ConcurrentSkipListMap<Long, String>();
+
+	private transient long selections;
+
+	@DataBoundConstructor
+	public LeastRecentlyUsedStrategy() {
+	}
+
+	private Object readResolve() {
+		lastSelected = new ConcurrentHashMap<String, Long>();
+		byLastSelection = new ConcurrentSkipListMap<Long, String>();
+		return this;
+	}
+
+	@Override
+	public Iterable<LockableResource> order(final List<LockableResource> candidates) {
+		return new Iterable<LockableResource>() {
+			@Override
+			public Iterator<LockableResource> iterator() {
+				return new Iterator<LockableResource>() {
+					// position in the candidates, while looking for the never selected ones
+					private int position = 0;
+					// the candidates selected before, by name
+					private final Map<String, LockableResource> selected = new HashMap<String, LockableResource>();
+					private Iterator<String> recent;
+					private LockableResource next;
+
+					@Override
+					public boolean hasNext() {
+						while (next == null && position < candidates.size()) {
+							LockableResource r = candidates.get(position++);
+							if (lastSelected.containsKey(r.getName())) {
+								selected.put(r.getName(), r);
+							} else {
+								next = r;
+							}
+						}
+						if (next == null && !selected.isEmpty()) {
+							if (recent == null) {
+								recent = byLastSelection.values().iterator();
+							}
+							while (next == null && recent.hasNext()) {
+								next = selected.remove(recent.next());
+							}
+						}
+						return next != null;
+					}
+
+					@Override
+					public LockableResource next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						LockableResource r = next;
+						next = null;
+						return r;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public void selected(Collection<LockableResource> resources) {
+		for (LockableResource r : resources) {
+			long selection = ++selections;
+			Long previous = lastSelected.put(r.getName(), selection);
+			if (previous != null) {
+				byLastSelection.remove(previous);
+			}
+			byLastSelection.put(selection, r.getName());
+		}
+	}
+
+	@Override
+	public void removed(Collection<LockableResource> resources) {
+		for (LockableResource r : resources) {
+			Long last = lastSelected.remove(r.getName());
+			if (last != null) {
+				byLastSelection.remove(last);
+			}
+		}
+	}
+
+	/*
+	 * Number of resources the strategy keeps the last selection of.
+	 */
+	int size() {
+		return lastSelected.size();
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<ResourceSelectionStrategy> {
+
+		@Override
+		public String getDisplayName() {
+			return "Least recently used";
+		}
+
+	}
+}
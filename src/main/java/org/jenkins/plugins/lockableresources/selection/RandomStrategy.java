@@ -0,0 +1,56 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.selection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Takes free resources at random, to spread the locks without keeping any state.
+ * The candidates are walked from a random start with a random stride coprime with
+ * their number, which visits each of them once without shuffling them.
+ */
+public class RandomStrategy extends ResourceSelectionStrategy {
+
+	private static final Random RANDOM = new Random();
+
+	@DataBoundConstructor
+	public RandomStrategy() {
+	}
+
+	@Override
+	public Iterable<LockableResource> order(List<LockableResource> candidates) {
+		int size = candidates.size();
+		if (size < 2) {
+			return candidates;
+		}
+		int stride = 1 + RANDOM.nextInt(size - 1);
+		while (BigInteger.valueOf(stride).gcd(BigInteger.valueOf(size)).intValue() != 1) {
+			stride = 1 + RANDOM.nextInt(size - 1);
+		}
+		return new StridedList(candidates, RANDOM.nextInt(size), stride);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<ResourceSelectionStrategy> {
+
+		@Override
+		public String getDisplayName() {
+			return "Random";
+		}
+
+	}
+}
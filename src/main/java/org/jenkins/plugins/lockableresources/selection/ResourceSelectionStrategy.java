@@ -0,0 +1,53 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.selection;
+
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+
+/**
+ * Which of the resources matching a requirement the {@link LockableResourcesManager}
+ * takes when there are more free ones than needed.
+ * <p>
+ * The manager walks the candidates in the order given by {@link #order} and stops once
+ * it found enough free ones, so implementations should yield them lazily, each one in
+ * constant time, rather than sorting all of them first.
+ */
+public abstract class ResourceSelectionStrategy extends AbstractDescribableImpl<ResourceSelectionStrategy>
+		implements ExtensionPoint {
+
+	/**
+	 * Gives the order in which the candidates are tried.
+	 *
+	 * @param candidates the resources matching a requirement, in the order of the manager, not to be modified
+	 */
+	public abstract Iterable<LockableResource> order(@Nonnull List<LockableResource> candidates);
+
+	/**
+	 * Notified of the resources locked by a build, called with the manager lock held. Resources
+	 * only queued for an item, which may still be given back, are not notified until locked.
+	 */
+	public void selected(@Nonnull Collection<LockableResource> resources) {
+	}
+
+	/**
+	 * Notified of the resources removed from the manager, ephemeral ones included, called
+	 * with the manager lock held, so that the state kept about them can be dropped.
+	 */
+	public void removed(@Nonnull Collection<LockableResource> resources) {
+	}
+}
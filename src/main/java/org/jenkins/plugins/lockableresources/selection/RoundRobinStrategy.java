@@ -0,0 +1,59 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.selection;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Spreads the locks over the resources: every selection starts where the previous one stopped.
+ */
+public class RoundRobinStrategy extends ResourceSelectionStrategy {
+
+	// number of resources selected so far
+	private transient AtomicLong turn = new AtomicLong();
+
+	@DataBoundConstructor
+	public RoundRobinStrategy() {
+	}
+
+	private Object readResolve() {
+		turn = new AtomicLong();
+		return this;
+	}
+
+	@Override
+	public Iterable<LockableResource> order(List<LockableResource> candidates) {
+		int size = candidates.size();
+		int start = size == 0 ? 0 : (int) (turn.get() % size);
+		return new StridedList(candidates, start, 1);
+	}
+
+	@Override
+	public void selected(Collection<LockableResource> resources) {
+		turn.addAndGet(resources.size());
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<ResourceSelectionStrategy> {
+
+		@Override
+		public String getDisplayName() {
+			return "Round robin";
+		}
+
+	}
+}
@@ -0,0 +1,61 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.selection;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+
+/*
+ * Walks all the elements of a random access list once, from the given start and
+ * with the given stride, which must be coprime with the size of the list.
+ */
+final class StridedList implements Iterable<LockableResource> {
+
+	private final List<LockableResource> list;
+	private final int start;
+	private final int stride;
+
+	StridedList(List<LockableResource> list, int start, int stride) {
+		this.list = list;
+		this.start = start;
+		this.stride = stride;
+	}
+
+	@Override
+	public Iterator<LockableResource> iterator() {
+		return new Iterator<LockableResource>() {
+			private int visited = 0;
+			private long index = start;
+
+			@Override
+			public boolean hasNext() {
+				return visited < list.size();
+			}
+
+			@Override
+			public LockableResource next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				LockableResource r = list.get((int) (index % list.size()));
+				index += stride;
+				visited++;
+				return r;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,144 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.                 *
+ *                                                                     *
+ * This file is part of the Jenkins Lockable Resources Plugin and is   *
+ * published under the MIT license.                                    *
+ *                                                                     *
+ * See the "LICENSE.txt" file for more information.                    *
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+package org.jenkins.plugins.lockableresources.selection;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Takes free resources at random, each in proportion to its capacity, given by a label
+ * made of the prefix and a number, e.g. {@code capacity-4}, 1 if it has none. The weights
+ * of the candidates are summed in a Fenwick tree, built in linear time the first time a
+ * resource is needed, from which each resource is then drawn in logarithmic time.
+ */
+public class WeightedByCapacityStrategy extends ResourceSelectionStrategy {
+
+	public static final String DEFAULT_PREFIX = "capacity-";
+
+	private static final Random RANDOM = new Random();
+
+	private final String prefix;
+
+	@DataBoundConstructor
+	public WeightedByCapacityStrategy(String prefix) {
+		this.prefix = Util.fixEmptyAndTrim(prefix);
+	}
+
+	public String getPrefix() {
+		return prefix != null ? prefix : DEFAULT_PREFIX;
+	}
+
+	/*
+	 * The capacity of the resource, 1 unless a label of the resource gives another one.
+	 */
+	int capacity(LockableResource r) {
+		String p = getPrefix();
+		for (String label : r.getLabelList()) {
+			if (label.length() > p.length() && label.startsWith(p)) {
+				try {
+					int capacity = Integer.parseInt(label.substring(p.length()));
+					if (capacity > 0) {
+						return capacity;
+					}
+				} catch (NumberFormatException e) {
+					// not a capacity
+				}
+			}
+		}
+		return 1;
+	}
+
+	@Override
+	public Iterable<LockableResource> order(final List<LockableResource> candidates) {
+		if (candidates.size() < 2) {
+			return candidates;
+		}
+		return new Iterable<LockableResource>() {
+			@Override
+			public Iterator<LockableResource> iterator() {
+				return new Iterator<LockableResource>() {
+					private int remaining = candidates.size();
+					private long[] weights;
+					// tree[i] sums the weights of the candidates (i - (i & -i), i], 1-based
+					private long[] tree;
+					private long total;
+
+					@Override
+					public boolean hasNext() {
+						return remaining > 0;
+					}
+
+					@Override
+					public LockableResource next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						if (tree == null) {
+							build();
+						}
+						long target = Math.min((long) (RANDOM.nextDouble() * total), total - 1);
+						// the first candidate whose cumulated weight exceeds the target
+						int position = 0;
+						for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+							if (position + step < tree.length && tree[position + step] <= target) {
+								position += step;
+								target -= tree[position];
+							}
+						}
+						for (int i = position + 1; i < tree.length; i += i & -i) {
+							tree[i] -= weights[position];
+						}
+						total -= weights[position];
+						remaining--;
+						return candidates.get(position);
+					}
+
+					private void build() {
+						int size = candidates.size();
+						weights = new long[size];
+						tree = new long[size + 1];
+						for (int i = 1; i <= size; i++) {
+							weights[i - 1] = capacity(candidates.get(i - 1));
+							tree[i] += weights[i - 1];
+							total += weights[i - 1];
+							int parent = i + (i & -i);
+							if (parent <= size) {
+								tree[parent] += tree[i];
+							}
+						}
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<ResourceSelectionStrategy> {
+
+		@Override
+		public String getDisplayName() {
+			return "Weighted by capacity";
+		}
+
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2013, 6WIND S.A. All rights reserved.
+ *
+ * This file is part of the Jenkins Lockable Resources Plugin and is
+ * published under the MIT license.
+ *
+ * See the "LICENSE.txt" file for more information.
+ */
+
+function find_resource_name(element) {
+	var row = element.up('tr');
+	var resourceName = row.getAttribute('data-resource-name');
+	return resourceName;
+}
+
+function resource_action(action, button) {
+	var resourceName = find_resource_name(button);
+	window.location.assign(action + "?resource=" + encodeURIComponent(resourceName));
+}
+
+function unlock_resource(button) {
+	resource_action("unlock", button);
+}
+
+function reserve_resource(button) {
+	resource_action("reserve", button);
+}
+
+function unreserve_resource(button) {
+	resource_action("unreserve", button);
+}
+
+function reset_resource(button) {
+	resource_action("reset", button);
+}
+
+/*
+ * Pages through the resources table with the "resources" REST endpoint, and
+ * keeps the displayed rows up to date with the state changes pushed by the
+ * "events" endpoint, instead of reloading the whole page.
+ */
+(function() {
+	function button(label, handler) {
+		var b = document.createElement('button');
+		b.setAttribute('onClick', handler + '(this);');
+		b.appendChild(document.createTextNode(label));
+		return b;
+	}
+
+	function element(tag, text) {
+		var e = document.createElement(tag);
+		e.appendChild(document.createTextNode(text));
+		return e;
+	}
+
+	function buildUrl(rootUrl, externalizableId) {
+		// "folder/job#42" is at job/folder/job/job/42/
+		var hash = externalizableId.lastIndexOf('#');
+		var jobs = externalizableId.substring(0, hash).split('/');
+		var url = rootUrl;
+		for (var i = 0; i < jobs.length; i++) {
+			url += '/job/' + encodeURIComponent(jobs[i]);
+		}
+		return url + '/' + externalizableId.substring(hash + 1) + '/';
+	}
+
+	function render(table, row, r) {
+		var cells = row.getElementsByTagName('td');
+		var status = cells[1], labels = cells[2], action = cells[3];
+		status.innerHTML = '';
+		action.innerHTML = '';
+		labels.textContent = r.labels.join(' ');
+
+		if (r.state == 'locked') {
+			status.style.color = 'red';
+			status.appendChild(element('strong', 'LOCKED'));
+			status.appendChild(document.createTextNode(' by '));
+			var link = element('a', r.build);
+			link.href = buildUrl(table.getAttribute('data-root-url'), r.build);
+			status.appendChild(link);
+			if (table.getAttribute('data-can-unlock') == 'true')
+				action.appendChild(button('Unlock', 'unlock_resource'));
+		} else if (r.state == 'reserved') {
+			status.style.color = 'red';
+			status.appendChild(element('strong', 'RESERVED'));
+			status.appendChild(document.createTextNode(' by '));
+			status.appendChild(element('strong', r.reservedBy));
+			if (table.getAttribute('data-can-reserve') == 'true'
+					&& (table.getAttribute('data-user-name') == r.reservedBy
+						|| table.getAttribute('data-is-admin') == 'true'))
+				action.appendChild(button('UnReserve', 'unreserve_resource'));
+		} else if (r.state == 'queued') {
+			status.style.color = 'yellow';
+			status.appendChild(document.createTextNode(
+					'QUEUED by "' + r.queueItemProject + ' ' + r.queueItemId + '"'));
+			if (table.getAttribute('data-can-unlock') == 'true')
+				action.appendChild(button('ResetResource', 'reset_resource'));
+		} else {
+			status.style.color = 'green';
+			status.appendChild(element('strong', 'FREE'));
+			if (table.getAttribute('data-can-reserve') == 'true' && table.getAttribute('data-user-name'))
+				action.appendChild(button('Reserve', 'reserve_resource'));
+		}
+	}
+
+	function createRow(table, r) {
+		var row = document.createElement('tr');
+		row.setAttribute('data-resource-name', r.name);
+		var name = document.createElement('td');
+		name.className = 'pane';
+		name.appendChild(element('strong', r.name));
+		name.appendChild(document.createElement('br'));
+		name.appendChild(element('em', r.description || ''));
+		row.appendChild(name);
+		for (var i = 0; i < 3; i++) {
+			var cell = document.createElement('td');
+			cell.className = 'pane';
+			row.appendChild(cell);
+		}
+		render(table, row, r);
+		return row;
+	}
+
+	function init() {
+		var table = document.getElementById('lockable-resources');
+		if (!table)
+			return;
+		var body = table.getElementsByTagName('tbody')[0];
+		var filter = document.getElementById('lockable-resources-filter');
+		var previous = document.getElementById('lockable-resources-previous');
+		var next = document.getElementById('lockable-resources-next');
+		// cursors of the displayed page and of the pages before it
+		var cursors = [''];
+		var nextCursor = table.getAttribute('data-next');
+		var rows = {};
+
+		function indexRows() {
+			rows = {};
+			var trs = body.getElementsByTagName('tr');
+			for (var i = 0; i < trs.length; i++) {
+				rows[trs[i].getAttribute('data-resource-name')] = trs[i];
+			}
+		}
+
+		function updatePager() {
+			previous.disabled = cursors.length < 2;
+			next.disabled = !nextCursor;
+		}
+
+		function filterParameters() {
+			var parameters = {};
+			var names = ['prefix', 'label', 'state'];
+			for (var i = 0; i < names.length; i++) {
+				var value = filter.elements[names[i]].value;
+				if (value)
+					parameters[names[i]] = value;
+			}
+			return parameters;
+		}
+
+		function load(after) {
+			var query = 'limit=' + table.getAttribute('data-page-size')
+				+ '&after=' + encodeURIComponent(after);
+			var parameters = filterParameters();
+			for (var name in parameters) {
+				query += '&' + name + '=' + encodeURIComponent(parameters[name]);
+			}
+			var xhr = new XMLHttpRequest();
+			xhr.open('GET', 'resources?' + query);
+			xhr.onload = function() {
+				if (xhr.status != 200)
+					return;
+				var page = JSON.parse(xhr.responseText);
+				body.innerHTML = '';
+				for (var i = 0; i < page.resources.length; i++) {
+					body.appendChild(createRow(table, page.resources[i]));
+				}
+				nextCursor = page.next;
+				indexRows();
+				updatePager();
+			};
+			xhr.send();
+		}
+
+		filter.onsubmit = function() {
+			cursors = [''];
+			load('');
+			return false;
+		};
+		next.onclick = function() {
+			cursors.push(nextCursor);
+			load(nextCursor);
+		};
+		previous.onclick = function() {
+			cursors.pop();
+			load(cursors[cursors.length - 1]);
+		};
+		// bulk operations on all the resources matching the filter
+		var buttons = filter.getElementsByTagName('button');
+		for (var i = 0; i < buttons.length; i++) {
+			var operation = buttons[i].getAttribute('data-bulk');
+			if (operation)
+				buttons[i].onclick = bulk(operation, buttons[i].textContent);
+		}
+		function bulk(operation, label) {
+			return function() {
+				var parameters = filterParameters();
+				if (Object.keys(parameters).length == 0) {
+					alert('Set a filter first');
+					return;
+				}
+				if (!confirm(label + ' matching the filter?'))
+					return;
+				new Ajax.Request(operation, {
+					method: 'post',
+					parameters: parameters,
+					onComplete: function() {
+						load(cursors[cursors.length - 1]);
+					}
+				});
+			};
+		}
+
+		indexRows();
+		updatePager();
+
+		if (typeof EventSource == 'undefined')
+			return;
+		var source = new EventSource('events?since=' + table.getAttribute('data-since'));
+		source.addEventListener('state', function(e) {
+			var r = JSON.parse(e.data);
+			// resources outside of the displayed page are ignored
+			if (rows.hasOwnProperty(r.name))
+				render(table, rows[r.name], r);
+		});
+		source.addEventListener('reload', function() {
+			load(cursors[cursors.length - 1]);
+		});
+	}
+
+	if (document.readyState == 'loading') {
+		document.addEventListener('DOMContentLoaded', init);
+	} else {
+		init();
+	}
+})();
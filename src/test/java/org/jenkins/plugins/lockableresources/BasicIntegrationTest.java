@@ -17,6 +17,7 @@ import jenkins.model.Jenkins;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.jenkins.plugins.lockableresources.actions.LockableResourcesRootAction;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesQueueTaskDispatcher;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
@@ -226,5 +227,46 @@ public class BasicIntegrationTest {
 		j.assertBuildStatusSuccess(futureBuild);
 	}
 
+	@Test
+	public void affinityIsRecordedOnceTheBuildLocks() throws Exception {
+		LockableResourcesManager manager = LockableResourcesManager.get();
+		manager.createResourceWithLabel("device1", "lab");
+		manager.createResourceWithLabel("device2", "lab");
+		manager.fromName("device2").setLastHolder("p");
+		manager.setPreferLastHolder(true);
+
+		FreeStyleProject p = j.createFreeStyleProject("p");
+		p.addProperty(new RequiredResourcesProperty(null, "resourceNameVar", "1", "lab", null));
+		p.getBuildersList().add(new PrinterBuilder());
+
+		long hits = LockMetrics.get().getAffinityHits();
+		long misses = LockMetrics.get().getAffinityMisses();
+		FreeStyleBuild b1 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+		j.assertLogContains("resourceNameVar: device2", b1);
+		assertEquals(hits + 1, LockMetrics.get().getAffinityHits());
+		assertEquals(misses, LockMetrics.get().getAffinityMisses());
+	}
+
+	@Test
+	public void bulkReserveSkipsBusyResources() throws Exception {
+		LockableResourcesManager manager = LockableResourcesManager.get();
+		manager.createResourceWithLabel("device1", "lab");
+		manager.createResourceWithLabel("device2", "lab");
+		manager.createResourceWithLabel("device3", "lab");
+		List<LockableResource> other = new ArrayList<LockableResource>();
+		other.add(manager.fromName("device2"));
+		manager.reserve(other, "someone");
+
+		List<LockableResource> lab = manager.getResourcesWithLabel("lab", null);
+		List<LockableResource> reserved = manager.reserveFree(lab, "maintenance");
+		assertEquals(2, reserved.size());
+		assertEquals("someone", manager.fromName("device2").getReservedBy());
+		assertEquals("maintenance", manager.fromName("device3").getReservedBy());
+
+		assertEquals(3, manager.unreserveAll(lab).size());
+		for (LockableResource r : lab) {
+			assertFalse(r.isReserved());
+		}
+	}
 
 }
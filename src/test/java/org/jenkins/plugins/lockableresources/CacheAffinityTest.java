@@ -0,0 +1,79 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+import org.jenkins.plugins.lockableresources.persistence.ResourceFileStore;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class CacheAffinityTest {
+
+	private static final Logger LOGGER = Logger.getLogger(CacheAffinityTest.class.getName());
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LockableResourcesManager manager;
+
+	private final LockableResourcesStruct oneDevice = new LockableResourcesStruct(null, "device", 1);
+
+	@Before
+	public void setUp() throws Exception {
+		manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for (String name : Arrays.asList("a", "b", "c")) {
+			LockableResource r = new LockableResource(name);
+			r.setLabels("device");
+			resources.add(r);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResourceFileStore.exportResources(resources, out);
+		manager.importResources(new ByteArrayInputStream(out.toByteArray()));
+		manager.fromName("b").setLastHolder("job");
+		manager.setPreferLastHolder(true);
+	}
+
+	@Test
+	public void jobGetsTheResourceItUsedLast() throws Exception {
+		long hits = LockMetrics.get().getAffinityHits();
+		List<LockableResource> selected = manager.tryQueue(oneDevice, 1, "job", 1, null, LOGGER);
+		assertEquals(Collections.singletonList(manager.fromName("b")), selected);
+		// recorded once the build locks them
+		assertEquals(hits, LockMetrics.get().getAffinityHits());
+
+		selected = manager.tryQueue(oneDevice, 2, "other", 1, null, LOGGER);
+		assertEquals(Collections.singletonList(manager.fromName("a")), selected);
+	}
+
+	@Test
+	public void queuedItemWaitsForItsResourceAWhile() throws Exception {
+		manager.setAffinityWait(60);
+		manager.fromName("b").setQueued(7, "other");
+		long now = System.currentTimeMillis();
+		assertNull(manager.tryQueue(oneDevice, 1, "job", 1, null, now, LOGGER));
+
+		long misses = LockMetrics.get().getAffinityMisses();
+		List<LockableResource> selected = manager.tryQueue(oneDevice, 1, "job", 1, null, now - 61000, LOGGER);
+		assertEquals(Collections.singletonList(manager.fromName("a")), selected);
+		assertEquals(misses, LockMetrics.get().getAffinityMisses());
+	}
+
+	@Test
+	public void withoutAffinityTheFirstFreeResourceIsTaken() throws Exception {
+		manager.setPreferLastHolder(false);
+		List<LockableResource> selected = manager.tryQueue(oneDevice, 1, "job", 1, null, LOGGER);
+		assertEquals(Collections.singletonList(manager.fromName("a")), selected);
+	}
+}
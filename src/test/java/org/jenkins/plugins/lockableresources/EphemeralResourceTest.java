@@ -0,0 +1,58 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.util.Arrays;
+
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class EphemeralResourceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final int batch = LockableResourcesManager.EPHEMERAL_BATCH;
+
+	@After
+	public void restoreBatch() {
+		LockableResourcesManager.EPHEMERAL_BATCH = batch;
+	}
+
+	@Test
+	public void releasedEphemeralResourcesAreRemovedInBatches() throws Exception {
+		LockableResourcesManager.EPHEMERAL_BATCH = 2;
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		manager.createResource("permanent");
+		assertTrue(manager.createEphemeralResource("deploy-a"));
+		assertTrue(manager.createEphemeralResource("deploy-b"));
+		assertFalse(manager.createEphemeralResource("deploy-a"));
+		assertTrue(manager.fromName("deploy-a").isEphemeral());
+
+		manager.unlockNames(Arrays.asList("permanent", "deploy-a"), null, null, false);
+		assertNotNull(manager.fromName("deploy-a"));
+
+		manager.unlockNames(Arrays.asList("deploy-b"), null, null, false);
+		assertNull(manager.fromName("deploy-a"));
+		assertNull(manager.fromName("deploy-b"));
+		assertNotNull(manager.fromName("permanent"));
+		assertEquals(1, manager.getResources().size());
+	}
+
+	@Test
+	public void metricsOfRemovedEphemeralResourcesAreDropped() throws Exception {
+		LockableResourcesManager.EPHEMERAL_BATCH = 1;
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		assertTrue(manager.createEphemeralResource("deploy-metrics"));
+		LockMetrics.get().recordHold(manager.fromName("deploy-metrics"), 10);
+		assertTrue(LockMetrics.get().getHoldByResource().containsKey("deploy-metrics"));
+
+		manager.unlockNames(Arrays.asList("deploy-metrics"), null, null, false);
+		assertNull(manager.fromName("deploy-metrics"));
+		assertFalse(LockMetrics.get().getHoldByResource().containsKey("deploy-metrics"));
+	}
+}
@@ -0,0 +1,60 @@
+package org.jenkins.plugins.lockableresources;
+
+import hudson.model.Run;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jenkins.plugins.lockableresources.persistence.ResourceFileStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LockReconciliationTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void locksOfGoneBuildsAreReleasedInOneBatch() throws Exception {
+		final List<String> resolved = Collections.synchronizedList(new ArrayList<String>());
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml")) {
+			@Override
+			Run<?, ?> resolveBuild(String externalizableId) {
+				resolved.add(externalizableId);
+				return null;
+			}
+		};
+		String xml = "<list>"
+				+ "<resource><name>r1</name><buildExternalizableId>gone#1</buildExternalizableId></resource>"
+				+ "<resource><name>r2</name></resource>"
+				+ "<resource><name>r3</name><buildExternalizableId>gone#1</buildExternalizableId></resource>"
+				+ "<resource><name>r4</name><buildExternalizableId>gone#2</buildExternalizableId></resource>"
+				+ "</list>";
+		manager.getResources().addAll(ResourceFileStore.importResources(
+				new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		List<String> released;
+		try {
+			released = manager.reconcileLocks(executor);
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(Arrays.asList("r1", "r3", "r4"), released);
+		for (LockableResource r : manager.getResources()) {
+			assertNull(r.getBuildExternalizableId());
+		}
+		// each build is loaded once
+		Collections.sort(resolved);
+		assertEquals(Arrays.asList("gone#1", "gone#2"), resolved);
+	}
+}
@@ -8,6 +8,7 @@ import java.util.concurrent.Semaphore;
 
 import hudson.Functions;
 import hudson.model.Executor;
+import org.jenkins.plugins.lockableresources.queue.DeadlockVictimPolicy;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.graph.FlowGraphWalker;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
@@ -32,6 +33,7 @@ import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -372,6 +374,49 @@ public class LockStepTest {
 		});
 	}
 
+	@Test
+	public void groupLocksAllAtOnce() {
+		story.addStep(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				LockableResourcesManager.get().createResourceWithLabel("resource1", "gang");
+				LockableResourcesManager.get().createResourceWithLabel("resource2", "gang");
+				WorkflowJob blocker = story.j.jenkins.createProject(WorkflowJob.class, "blocker");
+				blocker.setDefinition(new CpsFlowDefinition(
+						"lock('resource2') {\n" +
+						"	semaphore 'hold'\n" +
+						"}\n"
+				));
+				WorkflowRun b1 = blocker.scheduleBuild2(0).waitForStart();
+				SemaphoreStep.waitForStart("hold/1", b1);
+
+				WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+				p.setDefinition(new CpsFlowDefinition(
+						"parallel a: {\n" +
+						"	lock(label: 'gang', quantity: 1, group: 'g', groupSize: 2) {\n" +
+						"		echo 'a locked'\n" +
+						"	}\n" +
+						"}, b: {\n" +
+						"	lock(label: 'gang', quantity: 1, group: 'g', groupSize: 2) {\n" +
+						"		echo 'b locked'\n" +
+						"	}\n" +
+						"}\n"
+				));
+				WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+				// one resource is free, but the group needs two: none of the branches takes it
+				story.j.waitForMessage("is locked, waiting with its group...", b2);
+				isPaused(b2, 2, 2);
+				story.j.assertLogNotContains("Lock acquired on", b2);
+
+				SemaphoreStep.success("hold/1", null);
+				story.j.waitForCompletion(b2);
+				story.j.assertBuildStatus(Result.SUCCESS, b2);
+				story.j.assertLogContains("a locked", b2);
+				story.j.assertLogContains("b locked", b2);
+			}
+		});
+	}
+
 	@Test
 	public void lockOrderRestart() {
 		story.addStep(new Statement() {
@@ -576,6 +621,145 @@ public class LockStepTest {
 		});
 	}
 
+	@Test
+	public void interleavedFreestyleAndPipelineLocks() {
+		story.addStep(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				LockableResourcesManager.get().createResource("resource1");
+				final List<WorkflowJob> pipelines = new ArrayList<>();
+				List<QueueTaskFuture<FreeStyleBuild>> freestyleBuilds = new ArrayList<>();
+				List<QueueTaskFuture<WorkflowRun>> pipelineBuilds = new ArrayList<>();
+				for (int i = 0; i < 5; i++) {
+					FreeStyleProject f = story.j.createFreeStyleProject("f" + i);
+					f.addProperty(new RequiredResourcesProperty("resource1", null, null, null));
+					f.getBuildersList().add(new TestBuilder() {
+
+						@Override
+						public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+							// check all along the build, not only when it starts
+							for (int check = 0; check < 5; check++) {
+								LockableResource resource1 = LockableResourcesManager.get().fromName("resource1");
+								if (resource1 == null || resource1.getBuild() != build) {
+									listener.error("resource1 is not locked by " + build.getFullDisplayName());
+									return false;
+								}
+								for (WorkflowJob p : pipelines) {
+									WorkflowRun run = p.getLastBuild();
+									if (run != null && run.isBuilding() && isInsideLock(run)) {
+										listener.error("resource1 is held by " + run.getFullDisplayName() + " as well");
+										return false;
+									}
+								}
+								Thread.sleep(20);
+							}
+							return true;
+						}
+
+					});
+					WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p" + i);
+					p.setDefinition(new CpsFlowDefinition(
+							"lock('resource1') {\n" +
+							"	echo 'Inside the lock'\n" +
+							"	sleep 1\n" +
+							"	echo 'Leaving the lock'\n" +
+							"}\n" +
+							"echo 'Finish'"
+					));
+					pipelines.add(p);
+				}
+				for (int i = 0; i < 5; i++) {
+					freestyleBuilds.add(story.j.jenkins.getItemByFullName("f" + i, FreeStyleProject.class).scheduleBuild2(0));
+					pipelineBuilds.add(pipelines.get(i).scheduleBuild2(0));
+				}
+
+				for (QueueTaskFuture<FreeStyleBuild> future : freestyleBuilds) {
+					FreeStyleBuild b = future.get();
+					story.j.assertBuildStatusSuccess(b);
+					story.j.assertLogNotContains("failed to lock", b);
+				}
+				for (QueueTaskFuture<WorkflowRun> future : pipelineBuilds) {
+					story.j.assertBuildStatusSuccess(future.get());
+				}
+			}
+		});
+	}
+
+	@Test
+	public void cancelledFreestyleReservationGoesToWaitingLockStep() {
+		story.addStep(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				LockableResourcesManager.get().createResource("resource1");
+				FreeStyleProject f = story.j.createFreeStyleProject("f");
+				f.addProperty(new RequiredResourcesProperty("resource1", null, null, null));
+				// never runs, it keeps resource1 queued
+				f.setAssignedLabel(story.j.jenkins.getLabel("nowhere"));
+				f.scheduleBuild2(0);
+				while (!LockableResourcesManager.get().fromName("resource1").isQueued()) {
+					Thread.sleep(100);
+				}
+
+				WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+				p.setDefinition(new CpsFlowDefinition(
+						"lock('resource1') {\n" +
+						"	echo 'Resource locked'\n" +
+						"}"));
+				WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+				story.j.waitForMessage("[resource1] is locked, waiting...", b1);
+				isPaused(b1, 1, 1);
+
+				assertTrue(story.j.jenkins.getQueue().cancel(f));
+				story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b1));
+				story.j.assertLogContains("Resource locked", b1);
+			}
+		});
+	}
+
+	/**
+	 * Whether the pipeline is in the body of its lock: it prints a message once the lock is
+	 * acquired and another one before releasing it.
+	 */
+	private static boolean isInsideLock(WorkflowRun run) throws IOException {
+		String log = run.getLog();
+		return log.contains("Inside the lock") && !log.contains("Leaving the lock");
+	}
+
+	@Test
+	public void expiredLeaseOfFinishedBuildIsReclaimed() throws Exception {
+		story.addStep(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				LockableResourcesManager.get().createResource("resource1");
+				WorkflowJob p1 = story.j.jenkins.createProject(WorkflowJob.class, "p1");
+				p1.setDefinition(new CpsFlowDefinition("echo 'done'"));
+				WorkflowRun b1 = story.j.assertBuildStatusSuccess(p1.scheduleBuild2(0));
+
+				long leaseDuration = LockableResource.LEASE_DURATION;
+				LockableResource.LEASE_DURATION = 0;
+				try {
+					// b1 finished without releasing its lock, as if it was hard killed
+					LockableResourcesManager.get().fromName("resource1").setBuild(b1);
+
+					WorkflowJob p2 = story.j.jenkins.createProject(WorkflowJob.class, "p2");
+					p2.setDefinition(new CpsFlowDefinition(
+							"lock('resource1') {\n" +
+							"	echo 'Resource locked'\n" +
+							"}"));
+					WorkflowRun b2 = p2.scheduleBuild2(0).waitForStart();
+					story.j.waitForMessage("[resource1] is locked, waiting...", b2);
+
+					Thread.sleep(10);
+					LockableResourcesManager.get().reclaimExpiredLeases();
+					story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b2));
+					story.j.assertLogContains("Resource locked", b2);
+				} finally {
+					LockableResource.LEASE_DURATION = leaseDuration;
+				}
+			}
+		});
+	}
+
 	// TODO: Figure out what to do about the IOException thrown during clean up, since we don't care about it. It's just
 	// a result of the first build being deleted and is nothing but noise here.
 	@Issue("JENKINS-36479")
@@ -846,6 +1030,115 @@ public class LockStepTest {
 		});
 	}
 
+	@Test
+	public void deadlockBetweenNestedLocksAbortsRequester() throws Exception {
+		story.addStep(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				LockableResourcesManager.get().createResource("resource1");
+				LockableResourcesManager.get().createResource("resource2");
+				LockableResourcesManager.get().setDeadlockVictimPolicy(DeadlockVictimPolicy.ABORT_REQUESTER);
+				WorkflowJob p1 = story.j.jenkins.createProject(WorkflowJob.class, "p1");
+				p1.setDefinition(new CpsFlowDefinition(
+						"lock('resource1') {\n" +
+						"	semaphore 'wait-outer-1'\n" +
+						"	lock('resource2') {\n" +
+						"		echo 'Both locked'\n" +
+						"	}\n" +
+						"}\n" +
+						"echo 'Finish'"
+				));
+				WorkflowJob p2 = story.j.jenkins.createProject(WorkflowJob.class, "p2");
+				p2.setDefinition(new CpsFlowDefinition(
+						"lock('resource2') {\n" +
+						"	semaphore 'wait-outer-2'\n" +
+						"	lock('resource1') {\n" +
+						"		echo 'Both locked'\n" +
+						"	}\n" +
+						"}\n" +
+						"echo 'Finish'"
+				));
+				WorkflowRun b1 = p1.scheduleBuild2(0).waitForStart();
+				SemaphoreStep.waitForStart("wait-outer-1/1", b1);
+				WorkflowRun b2 = p2.scheduleBuild2(0).waitForStart();
+				SemaphoreStep.waitForStart("wait-outer-2/1", b2);
+
+				SemaphoreStep.success("wait-outer-1/1", null);
+				story.j.waitForMessage("[resource2] is locked, waiting...", b1);
+
+				// b2 closes the cycle and gets aborted, which releases resource2 for b1
+				SemaphoreStep.success("wait-outer-2/1", null);
+				story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b2));
+				story.j.assertLogContains("Deadlock detected", b2);
+				story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b1));
+				story.j.assertLogContains("Both locked", b1);
+			}
+		});
+	}
+
+	@Test
+	public void deadlockClosedByHandoverAbortsTheNewHolder() throws Exception {
+		story.addStep(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				LockableResourcesManager.get().createResource("resource1");
+				LockableResourcesManager.get().createResource("resource2");
+				LockableResourcesManager.get().setDeadlockVictimPolicy(DeadlockVictimPolicy.ABORT_REQUESTER);
+				WorkflowJob p0 = story.j.jenkins.createProject(WorkflowJob.class, "p0");
+				p0.setDefinition(new CpsFlowDefinition(
+						"lock('resource1') {\n" +
+						"	semaphore 'hold-0'\n" +
+						"}"
+				));
+				WorkflowJob p1 = story.j.jenkins.createProject(WorkflowJob.class, "p1");
+				p1.setDefinition(new CpsFlowDefinition(
+						"lock('resource2') {\n" +
+						"	semaphore 'wait-outer-1'\n" +
+						"	lock('resource1') {\n" +
+						"		echo 'Both locked'\n" +
+						"	}\n" +
+						"}"
+				));
+				WorkflowJob p2 = story.j.jenkins.createProject(WorkflowJob.class, "p2");
+				p2.setDefinition(new CpsFlowDefinition(
+						"parallel a: {\n" +
+						"	lock('resource1') {\n" +
+						"		semaphore 'inside-2a'\n" +
+						"	}\n" +
+						"}, b: {\n" +
+						"	semaphore 'before-2b'\n" +
+						"	lock('resource2') {\n" +
+						"		echo 'Branch b locked'\n" +
+						"	}\n" +
+						"}"
+				));
+				WorkflowRun b0 = p0.scheduleBuild2(0).waitForStart();
+				SemaphoreStep.waitForStart("hold-0/1", b0);
+				WorkflowRun b2 = p2.scheduleBuild2(0).waitForStart();
+				story.j.waitForMessage("[resource1] is locked, waiting...", b2);
+				WorkflowRun b1 = p1.scheduleBuild2(0).waitForStart();
+				SemaphoreStep.waitForStart("wait-outer-1/1", b1);
+				SemaphoreStep.success("wait-outer-1/1", null);
+				story.j.waitForMessage("[resource1] is locked, waiting...", b1);
+				SemaphoreStep.waitForStart("before-2b/1", b2);
+				SemaphoreStep.success("before-2b/1", null);
+				story.j.waitForMessage("[resource2] is locked, waiting...", b2);
+				story.j.assertLogNotContains("Deadlock detected", b2);
+
+				// resource1 goes to b2, which b1 now waits for while b2 waits for resource2 held by b1
+				SemaphoreStep.success("hold-0/1", null);
+				story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b0));
+				SemaphoreStep.waitForStart("inside-2a/1", b2);
+				story.j.waitForMessage("Deadlock detected", b2);
+				SemaphoreStep.success("inside-2a/1", null);
+				story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b2));
+				story.j.assertLogNotContains("Branch b locked", b2);
+				story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b1));
+				story.j.assertLogContains("Both locked", b1);
+			}
+		});
+	}
+
 	private void waitAndClear(int semaphoreIndex, List<WorkflowRun> nextRuns) throws Exception {
 		WorkflowRun toClear = nextRuns.get(0);
 
@@ -28,6 +28,8 @@ package org.jenkins.plugins.lockableresources;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 
+import java.util.Arrays;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -96,6 +98,21 @@ public class LockableResourceTest {
 		assertEquals(expResult, result);
 	}
 
+	/**
+	 * Test of getLabelList method, of class LockableResource.
+	 */
+	@Test
+	public void testGetLabelList() {
+		System.out.println("getLabelList");
+		assertEquals(Arrays.asList("l1", "l2"), instance.getLabelList());
+		instance.setLabels(" l2  l1 l2 ");
+		assertEquals(Arrays.asList("l2", "l1"), instance.getLabelList());
+		assertTrue(instance.isValidLabel("l1", null));
+		assertFalse(instance.isValidLabel("l3", null));
+		instance.setLabels("");
+		assertTrue(instance.getLabelList().isEmpty());
+	}
+
 	/**
 	 * Test of getReservedBy method, of class LockableResource.
 	 */
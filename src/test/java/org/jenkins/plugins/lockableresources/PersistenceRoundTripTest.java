@@ -0,0 +1,69 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.persistence.PersistenceMode;
+import org.jenkins.plugins.lockableresources.persistence.ResourceFileStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class PersistenceRoundTripTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private void roundTrip(PersistenceMode mode) throws Exception {
+		File config = new File(folder.getRoot(), "config.xml");
+		LockableResourcesManager manager = new LockableResourcesManager(config);
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for (String name : new String[] { "a", "b" }) {
+			LockableResource r = new LockableResource(name);
+			r.setLabels("device " + name);
+			r.setDescription("resource " + name);
+			resources.add(r);
+		}
+		resources.get(1).setReservedBy("someone");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResourceFileStore.exportResources(resources, out);
+		manager.importResources(new ByteArrayInputStream(out.toByteArray()));
+		manager.setPreferLastHolder(true);
+		manager.setPersistenceMode(mode);
+
+		String xml = new String(Files.readAllBytes(config.toPath()), StandardCharsets.UTF_8);
+		assertEquals(mode == PersistenceMode.XML, xml.contains("<resources>"));
+
+		LockableResourcesManager loaded = new LockableResourcesManager(config);
+		loaded.loadAll();
+		assertEquals(mode, loaded.getPersistenceMode());
+		assertTrue(loaded.isPreferLastHolder());
+		assertEquals(2, loaded.getResources().size());
+		assertEquals("device b", loaded.fromName("b").getLabels());
+		assertEquals("resource b", loaded.fromName("b").getDescription());
+		assertEquals("someone", loaded.fromName("b").getReservedBy());
+		assertNull(loaded.fromName("a").getReservedBy());
+	}
+
+	@Test
+	public void xml() throws Exception {
+		roundTrip(PersistenceMode.XML);
+	}
+
+	@Test
+	public void resourceFiles() throws Exception {
+		roundTrip(PersistenceMode.RESOURCE_FILES);
+	}
+
+	@Test
+	public void binary() throws Exception {
+		roundTrip(PersistenceMode.BINARY);
+	}
+}
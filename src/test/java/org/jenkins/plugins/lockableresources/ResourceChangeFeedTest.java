@@ -0,0 +1,51 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ResourceChangeFeedTest {
+
+	private static ResourceState state(String name) {
+		return new ResourceState(new LockableResource(name));
+	}
+
+	@Test
+	public void returnsChangesAfterTheGivenId() throws Exception {
+		ResourceChangeFeed feed = new ResourceChangeFeed();
+		long start = feed.getLastId();
+		feed.publish(Arrays.asList(state("a"), state("b")));
+		feed.publish(Arrays.asList(state("c")));
+
+		List<ResourceChangeFeed.Change> changes = feed.since(start + 1, 0);
+		assertEquals(2, changes.size());
+		assertEquals("b", changes.get(0).getState().getName());
+		assertEquals("c", changes.get(1).getState().getName());
+		assertEquals(feed.getLastId(), changes.get(1).getId());
+	}
+
+	@Test
+	public void timesOutWithoutChanges() throws Exception {
+		ResourceChangeFeed feed = new ResourceChangeFeed();
+		assertTrue(feed.since(feed.getLastId(), 10).isEmpty());
+	}
+
+	@Test
+	public void asksToReloadWhenChangesWereDropped() throws Exception {
+		ResourceChangeFeed feed = new ResourceChangeFeed();
+		long start = feed.getLastId();
+		for (int i = 0; i <= ResourceChangeFeed.CAPACITY; i++) {
+			feed.publish(Arrays.asList(state("r" + i)));
+		}
+		List<ResourceChangeFeed.Change> changes = feed.since(start, 0);
+		assertEquals(1, changes.size());
+		assertTrue(changes.get(0).isReload());
+
+		// an id from a previous run
+		changes = feed.since(feed.getLastId() + 1, 0);
+		assertTrue(changes.get(0).isReload());
+	}
+}
@@ -0,0 +1,85 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.persistence.ResourceFileStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ResourceIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static LockableResource resource(String name, String labels) {
+		LockableResource r = new LockableResource(name);
+		r.setLabels(labels);
+		return r;
+	}
+
+	private static void apply(LockableResourcesManager manager, LockableResource... resources) throws Exception {
+		List<LockableResource> list = new ArrayList<LockableResource>();
+		for (LockableResource r : resources) {
+			list.add(r);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResourceFileStore.exportResources(list, out);
+		manager.importResources(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private static String names(List<LockableResource> resources) {
+		List<String> names = new ArrayList<String>();
+		for (LockableResource r : resources) {
+			names.add(r.getName());
+		}
+		return names.toString();
+	}
+
+	@Test
+	public void configuredResourcesAreAppliedInPlace() throws Exception {
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		apply(manager, resource("a", "lab x"), resource("b", "lab"), resource("c", "x"));
+		assertEquals("[a, b]", names(manager.getResourcesWithLabel("lab", null)));
+		LockableResource a = manager.fromName("a");
+		a.setReservedBy("someone");
+
+		LockableResource reservedA = resource("a", "x");
+		reservedA.setReservedBy("someone");
+		apply(manager, reservedA, resource("b", "lab"), resource("d", "lab x"));
+
+		assertSame(a, manager.fromName("a"));
+		assertEquals("someone", a.getReservedBy());
+		assertNull(manager.fromName("c"));
+		assertEquals("[b, d]", names(manager.getResourcesWithLabel("lab", null)));
+		assertEquals("[a, d]", names(manager.getResourcesWithLabel("x", null)));
+	}
+
+	@Test
+	public void reorderedResourcesAreIndexedInTheNewOrder() throws Exception {
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		apply(manager, resource("a", "lab"), resource("b", "lab"));
+		assertEquals("[a, b]", names(manager.getResourcesWithLabel("lab", null)));
+
+		apply(manager, resource("c", "lab"), resource("b", "lab"), resource("a", "lab"));
+		assertEquals("[c, b, a]", names(manager.getResourcesWithLabel("lab", null)));
+	}
+
+	@Test
+	public void relabeledManagedResourceIsReindexed() throws Exception {
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		apply(manager, resource("a", "lab"), resource("b", "lab"));
+		assertEquals("[a, b]", names(manager.getResourcesWithLabel("lab", null)));
+
+		// as admin scripts do, bypassing the manager
+		manager.fromName("a").setLabels("other");
+
+		assertEquals("[b]", names(manager.getResourcesWithLabel("lab", null)));
+		assertEquals("[a]", names(manager.getResourcesWithLabel("other", null)));
+	}
+}
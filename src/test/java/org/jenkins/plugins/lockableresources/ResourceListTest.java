@@ -0,0 +1,54 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ResourceListTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void appendLeavesThePreviousListsUnchanged() {
+		LockableResource a = new LockableResource("a");
+		LockableResource b = new LockableResource("b");
+		LockableResource c = new LockableResource("c");
+		ResourceList empty = new ResourceList(new ArrayList<LockableResource>());
+		ResourceList withA = empty.append(a);
+		ResourceList withAB = withA.append(b);
+		// not the newest list of its array any more
+		ResourceList withAC = withA.append(c);
+
+		assertEquals(0, empty.size());
+		assertEquals(Arrays.asList(a), withA);
+		assertEquals(Arrays.asList(a, b), withAB);
+		assertEquals(Arrays.asList(a, c), withAC);
+	}
+
+	@Test
+	public void createdResourcesAreSavedAsAPlainList() throws Exception {
+		File config = new File(folder.getRoot(), "config.xml");
+		LockableResourcesManager manager = new LockableResourcesManager(config);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(manager.createEphemeralResource("r" + i));
+		}
+		assertEquals(100, manager.getResources().size());
+		assertSame(manager.fromName("r99"), manager.getResources().get(99));
+		manager.save();
+
+		String xml = new String(Files.readAllBytes(config.toPath()), StandardCharsets.UTF_8);
+		assertFalse(xml.contains(ResourceList.class.getName()));
+		LockableResourcesManager loaded = new LockableResourcesManager(config);
+		loaded.loadAll();
+		assertEquals(100, loaded.getResources().size());
+	}
+}
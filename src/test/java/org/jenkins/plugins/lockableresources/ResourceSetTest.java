@@ -0,0 +1,52 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.util.Iterator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ResourceSetTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void expandsTheTemplates() {
+		ResourceSet set = new ResourceSet("device-{n}", 9, 10)
+				.setDigits(3)
+				.setLabels("lab rack-{n}")
+				.setDescription("Device {n}");
+		assertEquals(2, set.size());
+		Iterator<LockableResource> it = set.iterator();
+		LockableResource first = it.next();
+		assertEquals("device-009", first.getName());
+		assertEquals("lab rack-009", first.getLabels());
+		assertEquals("Device 009", first.getDescription());
+		assertEquals("device-010", it.next().getName());
+		assertFalse(it.hasNext());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsPatternsWithoutPlaceholder() {
+		new ResourceSet("device", 1, 2);
+	}
+
+	@Test
+	public void provisionKeepsExistingResources() throws Exception {
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		assertEquals(3, manager.provision(new ResourceSet("d{n}", 1, 3).setLabels("old")));
+		LockableResource d2 = manager.fromName("d2");
+		d2.setReservedBy("someone");
+
+		assertEquals(2, manager.provision(new ResourceSet("d{n}", 2, 5).setLabels("new")));
+		assertEquals(5, manager.getResources().size());
+		assertSame(d2, manager.fromName("d2"));
+		assertEquals("someone", d2.getReservedBy());
+		assertEquals("new", d2.getLabels());
+		assertEquals("old", manager.fromName("d1").getLabels());
+		assertEquals(4, manager.getResourcesWithLabel("new", null).size());
+	}
+}
@@ -0,0 +1,44 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ResourcesSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void changesPublishANewVersionSharingUnchangedStates() throws Exception {
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		manager.createResourceWithLabel("a", "lab");
+		manager.createResourceWithLabel("b", "lab");
+		ResourcesSnapshot before = manager.getSnapshot();
+		assertEquals(2, before.getResources().size());
+
+		manager.reserve(Collections.singletonList(manager.fromName("a")), "someone");
+		ResourcesSnapshot after = manager.getSnapshot();
+		assertTrue(after.getVersion() > before.getVersion());
+		assertTrue(after.get("a").isReserved());
+		assertFalse(before.get("a").isReserved());
+		assertSame(before.get("b"), after.get("b"));
+		assertEquals(1, after.getLabelSummaries().get(0).getFree());
+	}
+
+	@Test
+	public void readersKeepTheirListWhenResourcesAreAdded() throws Exception {
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		manager.createResource("a");
+		List<LockableResource> read = manager.getResources();
+		manager.createResource("b");
+		assertEquals(1, read.size());
+		assertEquals(2, manager.getResources().size());
+		assertNotNull(manager.getSnapshot().get("b"));
+	}
+}
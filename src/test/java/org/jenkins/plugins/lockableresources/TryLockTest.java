@@ -0,0 +1,52 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.jenkins.plugins.lockableresources.metrics.Histogram;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class TryLockTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static long count(String operation) {
+		Histogram h = LockMetrics.get().getOperations().get(operation);
+		return h != null ? h.getCount() : 0;
+	}
+
+	@Test
+	public void failedLockIsNotSaved() throws Exception {
+		File config = new File(folder.getRoot(), "config.xml");
+		LockableResourcesManager manager = new LockableResourcesManager(config);
+		manager.createResource("r1");
+		LockableResource r1 = manager.fromName("r1");
+		assertTrue(manager.reserve(Collections.singletonList(r1), "someone"));
+		assertTrue(config.delete());
+
+		assertFalse(manager.lock(Collections.singleton(r1), null, null, null, null, false));
+		assertFalse(config.exists());
+	}
+
+	@Test
+	public void tryLockIsMeasuredOnce() throws Exception {
+		LockableResourcesManager manager = new LockableResourcesManager(new File(folder.getRoot(), "config.xml"));
+		manager.createResource("r1");
+		assertTrue(manager.reserve(Collections.singletonList(manager.fromName("r1")), "someone"));
+		long tryLocks = count("tryLock");
+		long locks = count("lock");
+
+		assertNull(manager.tryLock(Collections.singletonList(new LockableResourcesStruct(Arrays.asList("r1"))),
+				null, null, null, null, false, null));
+		assertEquals(tryLocks + 1, count("tryLock"));
+		assertEquals(locks, count("lock"));
+	}
+}
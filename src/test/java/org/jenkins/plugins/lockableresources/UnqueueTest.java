@@ -0,0 +1,56 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.jenkins.plugins.lockableresources.backend.SharedDirectoryBackend;
+import org.jenkins.plugins.lockableresources.persistence.ResourceFileStore;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class UnqueueTest {
+
+	private static final Logger LOGGER = Logger.getLogger(UnqueueTest.class.getName());
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SharedDirectoryBackend controller(String id) {
+		SharedDirectoryBackend backend = new SharedDirectoryBackend(folder.getRoot().getAbsolutePath() + "/leases");
+		backend.setControllerId(id);
+		return backend;
+	}
+
+	@Test
+	public void unqueueReleasesTheBackend() throws Exception {
+		LockableResourcesManager manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		LockableResource r = new LockableResource("r1");
+		r.setLabels("device");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResourceFileStore.exportResources(Collections.singletonList(r), out);
+		manager.importResources(new ByteArrayInputStream(out.toByteArray()));
+		manager.setBackend(controller("a"));
+		SharedDirectoryBackend other = controller("b");
+		try {
+			List<LockableResource> selected = manager.tryQueue(new LockableResourcesStruct(null, "device", 1),
+					1, "job", 1, null, LOGGER);
+			assertEquals(1, selected.size());
+			assertFalse(other.acquire(Arrays.asList("r1")));
+
+			manager.unqueue(selected, 1);
+			assertFalse(manager.fromName("r1").isQueued());
+			assertTrue(other.acquire(Arrays.asList("r1")));
+		} finally {
+			other.close();
+			manager.getBackend().close();
+		}
+	}
+}
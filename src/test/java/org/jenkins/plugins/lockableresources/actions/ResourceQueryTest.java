@@ -0,0 +1,87 @@
+package org.jenkins.plugins.lockableresources.actions;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.ResourceState;
+import org.jenkins.plugins.lockableresources.ResourcesSnapshot;
+import org.junit.Test;
+
+public class ResourceQueryTest {
+
+	private static ResourcesSnapshot snapshot() {
+		List<ResourceState> states = new ArrayList<ResourceState>();
+		states.add(new ResourceState(new LockableResource("win-2", "", "windows", null)));
+		states.add(new ResourceState(new LockableResource("linux-1", "", "linux", null)));
+		states.add(new ResourceState(new LockableResource("win-1", "", "windows", "admin")));
+		states.add(new ResourceState(new LockableResource("linux-2", "", "linux", null)));
+		states.add(new ResourceState(new LockableResource("mac-1", "", "mac", null)));
+		return new ResourcesSnapshot(states);
+	}
+
+	private static List<String> names(JSONObject json) {
+		List<String> names = new ArrayList<String>();
+		JSONArray resources = json.getJSONArray("resources");
+		for (int i = 0; i < resources.size(); i++) {
+			names.add(resources.getJSONObject(i).getString("name"));
+		}
+		return names;
+	}
+
+	@Test
+	public void pagesFollowTheCursor() {
+		ResourcesSnapshot snapshot = snapshot();
+		ResourceQuery query = new ResourceQuery();
+		query.setLimit(2);
+
+		JSONObject page = query.run(snapshot);
+		assertEquals("[linux-1, linux-2]", names(page).toString());
+		assertEquals("linux-2", page.getString("next"));
+
+		query.setAfter(page.getString("next"));
+		page = query.run(snapshot);
+		assertEquals("[mac-1, win-1]", names(page).toString());
+
+		query.setAfter(page.getString("next"));
+		page = query.run(snapshot);
+		assertEquals("[win-2]", names(page).toString());
+		assertTrue(page.get("next") instanceof net.sf.json.JSONNull);
+	}
+
+	@Test
+	public void filtersByLabelStateAndPrefix() {
+		ResourcesSnapshot snapshot = snapshot();
+		ResourceQuery query = new ResourceQuery();
+		query.setLabel("windows");
+		assertEquals("[win-1, win-2]", names(query.run(snapshot)).toString());
+
+		query.setStates("free");
+		assertEquals("[win-2]", names(query.run(snapshot)).toString());
+
+		query = new ResourceQuery();
+		query.setPrefix("linux");
+		assertEquals("[linux-1, linux-2]", names(query.run(snapshot)).toString());
+		query.setPrefix("m");
+		assertEquals("[mac-1]", names(query.run(snapshot)).toString());
+	}
+
+	@Test
+	public void selectsFields() {
+		ResourceQuery query = new ResourceQuery();
+		query.setFields("name,state");
+		JSONObject first = query.run(snapshot()).getJSONArray("resources").getJSONObject(0);
+		assertEquals(2, first.size());
+		assertEquals("free", first.getString("state"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownFields() {
+		new ResourceQuery().setFields("name,password");
+	}
+}
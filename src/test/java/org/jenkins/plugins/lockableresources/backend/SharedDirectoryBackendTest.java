@@ -0,0 +1,205 @@
+package org.jenkins.plugins.lockableresources.backend;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class SharedDirectoryBackendTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SharedDirectoryBackend a;
+	private SharedDirectoryBackend b;
+
+	@Before
+	public void setUp() {
+		a = controller("a");
+		b = controller("b");
+	}
+
+	@After
+	public void tearDown() {
+		a.close();
+		b.close();
+	}
+
+	private SharedDirectoryBackend controller(String id) {
+		SharedDirectoryBackend backend = new SharedDirectoryBackend(folder.getRoot().getAbsolutePath());
+		backend.setControllerId(id);
+		backend.setLeaseDuration(TimeUnit.MINUTES.toMillis(10));
+		return backend;
+	}
+
+	@Test
+	public void resourceIsLockedByOneControllerAtMost() {
+		assertTrue(a.acquire(Arrays.asList("r1")));
+		assertTrue(a.acquire(Arrays.asList("r1")));
+		assertFalse(b.acquire(Arrays.asList("r1")));
+
+		// releasing a resource held by someone else does nothing
+		b.release(Arrays.asList("r1"));
+		assertFalse(b.acquire(Arrays.asList("r1")));
+
+		a.release(Arrays.asList("r1"));
+		assertTrue(b.acquire(Arrays.asList("r1")));
+		assertFalse(a.acquire(Arrays.asList("r1")));
+	}
+
+	@Test
+	public void acquireIsAllOrNothing() {
+		assertTrue(a.acquire(Arrays.asList("r2")));
+		assertFalse(b.acquire(Arrays.asList("r1", "r2", "r3")));
+		// r1 was rolled back
+		assertTrue(a.acquire(Arrays.asList("r1", "r3")));
+	}
+
+	@Test
+	public void expiredLeaseIsTakenOver() {
+		a.setLeaseDuration(0);
+		assertTrue(a.acquire(Arrays.asList("r1")));
+		assertTrue(b.acquire(Arrays.asList("r1")));
+		assertFalse(a.acquire(Arrays.asList("r1")));
+	}
+
+	@Test
+	public void halfWrittenLeaseExpires() throws Exception {
+		Path file = folder.getRoot().toPath().resolve("r1.lease");
+		Files.write(file, "a".getBytes(StandardCharsets.UTF_8));
+		assertFalse(b.acquire(Arrays.asList("r1")));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(11)));
+		assertTrue(b.acquire(Arrays.asList("r1")));
+	}
+
+	@Test
+	public void renewKeepsTheLease() {
+		assertTrue(a.acquire(Arrays.asList("r1")));
+		a.renew(Arrays.asList("r1"));
+		assertFalse(b.acquire(Arrays.asList("r1")));
+		// still valid, renewed in place
+		a.setLeaseDuration(TimeUnit.MINUTES.toMillis(100));
+		a.renew(Arrays.asList("r1"));
+		assertFalse(b.acquire(Arrays.asList("r1")));
+		assertTrue(a.acquire(Arrays.asList("r1")));
+	}
+
+	@Test
+	public void expiredLeaseIsRenewedOrReportedLost() throws Exception {
+		final Set<String> lost = Collections.synchronizedSet(new HashSet<String>());
+		a.watch(new LockableResourcesBackend.Listener() {
+			@Override
+			public void released(Collection<String> names) {
+			}
+
+			@Override
+			public void lost(Collection<String> names) {
+				lost.addAll(names);
+			}
+		});
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 50; i++) {
+				final String name = "r" + i;
+				a.setLeaseDuration(0);
+				assertTrue(a.acquire(Arrays.asList(name)));
+				Thread.sleep(2);
+				a.setLeaseDuration(TimeUnit.MINUTES.toMillis(10));
+
+				// a renews its expired lease while b takes it over
+				final CyclicBarrier start = new CyclicBarrier(2);
+				Future<?> renewal = pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						a.renew(Arrays.asList(name));
+						return null;
+					}
+				});
+				Future<Boolean> takeOver = pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						start.await();
+						return b.acquire(Arrays.asList(name));
+					}
+				});
+				renewal.get();
+				boolean tookOver = takeOver.get();
+
+				// exactly one of them holds the resource, and a knows whether it is not itself
+				assertEquals(name, tookOver, lost.contains(name));
+				assertEquals(name, !tookOver, a.acquire(Arrays.asList(name)));
+				assertEquals(name, tookOver, b.acquire(Arrays.asList(name)));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void sameConfigurationIsRecognized() {
+		assertTrue(a.isSameConfiguration(controller("a")));
+		assertFalse(a.isSameConfiguration(b));
+		assertFalse(a.isSameConfiguration(new LocalBackend()));
+	}
+
+	@Test
+	public void waitedResourcesAreHandedOver() {
+		a.queue(Arrays.asList("r1", "r2"));
+		assertEquals(2, a.getWaited().size());
+		assertTrue(a.acquire(Arrays.asList("r1")));
+		assertEquals(Collections.singletonList("r2"), a.getWaited());
+	}
+
+	@Test
+	public void renewReleasesResourcesNoLongerInUse() {
+		assertTrue(a.acquire(Arrays.asList("r1", "r2")));
+		a.renew(Arrays.asList("r1"));
+		assertFalse(b.acquire(Arrays.asList("r1")));
+		assertTrue(b.acquire(Arrays.asList("r2")));
+	}
+
+	@Test
+	public void waitingControllerIsNotifiedOfRelease() throws Exception {
+		final CountDownLatch released = new CountDownLatch(1);
+		b.watch(new LockableResourcesBackend.Listener() {
+			@Override
+			public void released(Collection<String> names) {
+				if (names.contains("r1")) {
+					released.countDown();
+				}
+			}
+
+			@Override
+			public void lost(Collection<String> names) {
+			}
+		});
+		assertTrue(a.acquire(Arrays.asList("r1")));
+		assertFalse(b.acquire(Collections.singletonList("r1")));
+		b.queue(Collections.singletonList("r1"));
+
+		a.release(Arrays.asList("r1"));
+		assertTrue(released.await(2 * SharedDirectoryBackend.POLL_INTERVAL + 5000, TimeUnit.MILLISECONDS));
+		assertTrue(b.acquire(Arrays.asList("r1")));
+	}
+}
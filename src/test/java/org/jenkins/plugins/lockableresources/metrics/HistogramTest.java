@@ -0,0 +1,42 @@
+package org.jenkins.plugins.lockableresources.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+	@Test
+	public void bucketsCoverAllValues() {
+		int previous = 0;
+		for (long v = 0; v < 100000; v++) {
+			int index = Histogram.index(v);
+			assertTrue(index >= previous);
+			assertTrue(Histogram.lowerBound(index) <= v);
+			assertTrue(v < Histogram.lowerBound(index + 1));
+			previous = index;
+		}
+		assertTrue(Histogram.index(Long.MAX_VALUE) >= previous);
+	}
+
+	@Test
+	public void percentilesAreWithinBucketPrecision() {
+		Histogram h = new Histogram();
+		for (long v = 1; v <= 1000; v++) {
+			h.record(v);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(1000, h.getMax());
+		assertEquals(500.5, h.getMean(), 0.001);
+		assertEquals(500, h.getPercentile(50), 125);
+		assertEquals(990, h.getPercentile(99), 250);
+		assertEquals(1000, h.getPercentile(100));
+	}
+
+	@Test
+	public void emptyHistogram() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.getPercentile(99));
+		assertEquals(0, h.getMean(), 0);
+	}
+}
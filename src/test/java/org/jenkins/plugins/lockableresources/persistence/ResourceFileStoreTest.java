@@ -0,0 +1,140 @@
+package org.jenkins.plugins.lockableresources.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ResourceFileStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static List<LockableResource> resources(String... names) {
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for (String name : names) {
+			LockableResource r = new LockableResource(name);
+			r.setLabels("label1");
+			resources.add(r);
+		}
+		return resources;
+	}
+
+	private static List<String> names(List<LockableResource> resources) {
+		List<String> names = new ArrayList<String>();
+		for (LockableResource r : resources) {
+			names.add(r.getName());
+		}
+		return names;
+	}
+
+	@Test
+	public void loadKeepsOrderAndState() throws Exception {
+		ResourceFileStore store = new ResourceFileStore(folder.getRoot());
+		assertFalse(store.exists());
+		List<LockableResource> resources = resources("r2", "r1", "r/3");
+		resources.get(0).setReservedBy("someone");
+		store.save(resources);
+
+		List<LockableResource> loaded = new ResourceFileStore(folder.getRoot()).load();
+		assertEquals(Arrays.asList("r2", "r1", "r/3"), names(loaded));
+		assertEquals("someone", loaded.get(0).getReservedBy());
+		assertEquals("label1", loaded.get(1).getLabels());
+		assertFalse(loaded.get(1).isDirty());
+	}
+
+	@Test
+	public void onlyChangedResourcesAreWritten() throws Exception {
+		ResourceFileStore store = new ResourceFileStore(folder.getRoot());
+		List<LockableResource> resources = resources("r1", "r2");
+		store.save(resources);
+		assertFalse(resources.get(0).isDirty());
+
+		File r1 = new File(folder.getRoot(), "r1.xml");
+		File r2 = new File(folder.getRoot(), "r2.xml");
+		assertTrue(r1.delete());
+		assertTrue(r2.delete());
+		resources.get(1).setReservedBy("someone");
+		store.save(resources);
+		assertFalse(r1.exists());
+		assertTrue(r2.exists());
+	}
+
+	@Test
+	public void removedResourcesAreDeleted() throws Exception {
+		ResourceFileStore store = new ResourceFileStore(folder.getRoot());
+		List<LockableResource> resources = resources("r1", "r2");
+		store.save(resources);
+		resources.remove(0);
+		new ResourceFileStore(folder.getRoot()).save(resources);
+
+		assertFalse(new File(folder.getRoot(), "r1.xml").exists());
+		assertEquals(Arrays.asList("r2"), names(new ResourceFileStore(folder.getRoot()).load()));
+	}
+
+	@Test
+	public void exportImportRoundTrip() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResourceFileStore.exportResources(resources("r1", "r2"), out);
+		List<LockableResource> imported = ResourceFileStore.importResources(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(Arrays.asList("r1", "r2"), names(imported));
+		assertEquals("label1", imported.get(1).getLabels());
+	}
+
+	@Test
+	public void namesDifferingByCaseGetDifferentFiles() throws Exception {
+		assertFalse(ResourceFileStore.fileName("Device").equalsIgnoreCase(ResourceFileStore.fileName("device")));
+		ResourceFileStore store = new ResourceFileStore(folder.getRoot());
+		List<LockableResource> resources = resources("Device", "device");
+		resources.get(0).setReservedBy("someone");
+		store.save(resources);
+
+		List<LockableResource> loaded = new ResourceFileStore(folder.getRoot()).load();
+		assertEquals(Arrays.asList("Device", "device"), names(loaded));
+		assertEquals("someone", loaded.get(0).getReservedBy());
+		assertNull(loaded.get(1).getReservedBy());
+	}
+
+	@Test
+	public void filesOfOlderVersionsAreRenamed() throws Exception {
+		ResourceFileStore store = new ResourceFileStore(folder.getRoot());
+		store.save(resources("Device"));
+		File current = new File(folder.getRoot(), ResourceFileStore.fileName("Device"));
+		File legacy = new File(folder.getRoot(), "Device.xml");
+		assertTrue(current.renameTo(legacy));
+
+		assertEquals(Arrays.asList("Device"), names(new ResourceFileStore(folder.getRoot()).load()));
+		assertTrue(current.isFile());
+		assertFalse(legacy.exists());
+	}
+
+	@Test(expected = IOException.class)
+	public void importRejectsOtherTypes() throws Exception {
+		String xml = "<java.io.File><path>/tmp</path></java.io.File>";
+		ResourceFileStore.importResources(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void importDoesNotCreateOtherTypesInAList() throws Exception {
+		String xml = "<list><resource><name>r1</name></resource><java.io.File><path>/tmp</path></java.io.File></list>";
+		try {
+			List<LockableResource> imported = ResourceFileStore.importResources(
+					new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+			// the robust converters of Jenkins skip the items they cannot read
+			assertEquals(Arrays.asList("r1"), names(imported));
+		} catch (IOException e) {
+			// or the document is rejected
+		}
+	}
+}
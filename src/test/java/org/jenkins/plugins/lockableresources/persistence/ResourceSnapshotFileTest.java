@@ -0,0 +1,68 @@
+package org.jenkins.plugins.lockableresources.persistence;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ResourceSnapshotFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void loadKeepsOrderAndState() throws Exception {
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for (String name : Arrays.asList("r2", "r1", "r/3")) {
+			LockableResource r = new LockableResource(name);
+			r.setLabels("label1 label2");
+			resources.add(r);
+		}
+		resources.get(0).setReservedBy("someone");
+		resources.get(1).setQueued(42, "job");
+		resources.get(1).setDescription(null);
+		resources.get(2).setEphemeral(true);
+		resources.get(2).setLastHolder("folder/job");
+
+		ResourceSnapshotFile file = new ResourceSnapshotFile(new File(folder.getRoot(), "lockable-resources.bin"));
+		assertFalse(file.exists());
+		assertTrue(file.save(resources) > 0);
+		assertFalse(resources.get(0).isDirty());
+
+		List<LockableResource> loaded = new ResourceSnapshotFile(file.getFile()).load();
+		assertEquals(resources, loaded);
+		assertEquals("someone", loaded.get(0).getReservedBy());
+		assertEquals(42, loaded.get(1).getQueueItemId());
+		assertEquals("job", loaded.get(1).getQueueItemProject());
+		assertNull(loaded.get(1).getDescription());
+		assertEquals(Arrays.asList("label1", "label2"), loaded.get(1).getLabelList());
+		assertTrue(loaded.get(2).isEphemeral());
+		assertEquals("folder/job", loaded.get(2).getLastHolder());
+		assertFalse(loaded.get(2).isDirty());
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownVersionIsRejected() throws Exception {
+		File f = new File(folder.getRoot(), "lockable-resources.bin");
+		new ResourceSnapshotFile(f).save(new ArrayList<LockableResource>());
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+		try {
+			out.writeInt(0x4c52424e);
+			out.writeInt(ResourceSnapshotFile.FORMAT_VERSION + 1);
+			out.writeInt(0);
+		} finally {
+			out.close();
+		}
+		new ResourceSnapshotFile(f).load();
+	}
+}
@@ -0,0 +1,42 @@
+package org.jenkins.plugins.lockableresources.queue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import hudson.util.XStream2;
+
+import static org.junit.Assert.*;
+
+public class LockableResourcesStructTest {
+
+	@Test
+	public void requiredResourcesOfOlderVersionsAreReadAsNames() {
+		String xml = "<org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct>\n"
+				+ "  <required>\n"
+				+ "    <org.jenkins.plugins.lockableresources.LockableResource>\n"
+				+ "      <name>resource1</name>\n"
+				+ "      <description></description>\n"
+				+ "      <labels>lab</labels>\n"
+				+ "      <queueItemId>0</queueItemId>\n"
+				+ "    </org.jenkins.plugins.lockableresources.LockableResource>\n"
+				+ "    <org.jenkins.plugins.lockableresources.LockableResource>\n"
+				+ "      <name>resource2</name>\n"
+				+ "      <description></description>\n"
+				+ "      <labels></labels>\n"
+				+ "      <queueItemId>0</queueItemId>\n"
+				+ "    </org.jenkins.plugins.lockableresources.LockableResource>\n"
+				+ "  </required>\n"
+				+ "  <label></label>\n"
+				+ "  <requiredVar>VAR</requiredVar>\n"
+				+ "</org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct>";
+
+		LockableResourcesStruct struct = (LockableResourcesStruct) new XStream2().fromXML(xml);
+
+		assertEquals(Arrays.asList("resource1", "resource2"), struct.getRequiredNames());
+		assertEquals("VAR", struct.requiredVar);
+		String written = new XStream2().toXML(struct);
+		assertFalse(written.contains("<required>"));
+		assertTrue(written.contains("<string>resource1</string>"));
+	}
+}
@@ -0,0 +1,67 @@
+package org.jenkins.plugins.lockableresources.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.logging.Logger;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.persistence.ResourceFileStore;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class SchedulingPlanTest {
+
+	private static final Logger LOGGER = Logger.getLogger(SchedulingPlanTest.class.getName());
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LockableResourcesManager manager;
+
+	@Before
+	public void setUp() throws Exception {
+		manager = new LockableResourcesManager(folder.newFile("config.xml"));
+		LockableResource r = new LockableResource("r1");
+		r.setLabels("device");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResourceFileStore.exportResources(Collections.singletonList(r), out);
+		manager.importResources(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private static SchedulingPlan.Request request(long itemId, String project) {
+		return new SchedulingPlan.Request(itemId, itemId, project, project,
+				new LockableResourcesStruct(null, "device", 1), 1, new HashMap<String, Object>(), null, 0);
+	}
+
+	@Test
+	public void unclaimedItemsGiveTheirResourcesBack() {
+		SchedulingPlan first = SchedulingPlan.compute(manager,
+				Collections.singletonList(request(1, "a")), 0, null, LOGGER);
+		assertTrue(manager.fromName("r1").isQueuedByTask(1));
+
+		// item 1 was never asked about, e.g. cancelled
+		SchedulingPlan second = SchedulingPlan.compute(manager,
+				Collections.singletonList(request(2, "b")), 0, first, LOGGER);
+		assertNotNull(second.claim(2).selected);
+		assertTrue(manager.fromName("r1").isQueuedByTask(2));
+	}
+
+	@Test
+	public void claimedItemsKeepTheirResources() {
+		SchedulingPlan first = SchedulingPlan.compute(manager,
+				Collections.singletonList(request(1, "a")), 0, null, LOGGER);
+		assertNotNull(first.claim(1).selected);
+
+		SchedulingPlan second = SchedulingPlan.compute(manager,
+				Collections.singletonList(request(2, "b")), 0, first, LOGGER);
+		assertNull(second.claim(2).selected);
+		assertTrue(manager.fromName("r1").isQueuedByTask(1));
+	}
+}
@@ -0,0 +1,103 @@
+package org.jenkins.plugins.lockableresources.selection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.junit.Test;
+
+public class ResourceSelectionStrategyTest {
+
+	private static List<LockableResource> pool(int size) {
+		List<LockableResource> resources = new ArrayList<LockableResource>();
+		for (int i = 0; i < size; i++) {
+			resources.add(new LockableResource("r" + i, "", "pool", ""));
+		}
+		return resources;
+	}
+
+	private static List<LockableResource> first(Iterable<LockableResource> order, int count) {
+		List<LockableResource> taken = new ArrayList<LockableResource>();
+		for (LockableResource r : order) {
+			if (taken.size() == count) {
+				break;
+			}
+			taken.add(r);
+		}
+		return taken;
+	}
+
+	@Test
+	public void firstFitKeepsTheOrder() {
+		List<LockableResource> pool = pool(3);
+		assertEquals(pool, first(new FirstFitStrategy().order(pool), 3));
+	}
+
+	@Test
+	public void roundRobinStartsAfterTheLastSelection() {
+		List<LockableResource> pool = pool(3);
+		RoundRobinStrategy strategy = new RoundRobinStrategy();
+		List<LockableResource> taken = first(strategy.order(pool), 2);
+		assertEquals(Arrays.asList(pool.get(0), pool.get(1)), taken);
+		strategy.selected(taken);
+		assertEquals(Arrays.asList(pool.get(2), pool.get(0), pool.get(1)), first(strategy.order(pool), 3));
+	}
+
+	@Test
+	public void randomVisitsEveryCandidateOnce() {
+		for (int size = 0; size < 20; size++) {
+			List<LockableResource> pool = pool(size);
+			List<LockableResource> order = first(new RandomStrategy().order(pool), size + 1);
+			assertEquals(size, order.size());
+			assertEquals(new HashSet<LockableResource>(pool), new HashSet<LockableResource>(order));
+		}
+	}
+
+	@Test
+	public void leastRecentlyUsedTakesTheIdlestFirst() {
+		List<LockableResource> pool = pool(4);
+		LeastRecentlyUsedStrategy strategy = new LeastRecentlyUsedStrategy();
+		strategy.selected(Collections.singletonList(pool.get(0)));
+		strategy.selected(Collections.singletonList(pool.get(2)));
+		assertEquals(Arrays.asList(pool.get(1), pool.get(3), pool.get(0), pool.get(2)),
+				first(strategy.order(pool), 4));
+	}
+
+	@Test
+	public void leastRecentlyUsedForgetsRemovedResources() {
+		List<LockableResource> pool = pool(3);
+		LeastRecentlyUsedStrategy strategy = new LeastRecentlyUsedStrategy();
+		strategy.selected(Arrays.asList(pool.get(0), pool.get(1)));
+		strategy.removed(Collections.singletonList(pool.get(0)));
+		assertEquals(1, strategy.size());
+		// a resource created again under the same name counts as never selected
+		assertEquals(Arrays.asList(pool.get(0), pool.get(2), pool.get(1)), first(strategy.order(pool), 3));
+	}
+
+	@Test
+	public void weightedByCapacityFavoursTheLargerResources() {
+		List<LockableResource> pool = pool(2);
+		pool.add(new LockableResource("big", "", "pool capacity-8", ""));
+		WeightedByCapacityStrategy strategy = new WeightedByCapacityStrategy(null);
+		assertEquals(8, strategy.capacity(pool.get(2)));
+		assertEquals(1, strategy.capacity(pool.get(0)));
+
+		int bigFirst = 0;
+		for (int i = 0; i < 1000; i++) {
+			List<LockableResource> order = first(strategy.order(pool), 4);
+			assertEquals(new HashSet<LockableResource>(pool), new HashSet<LockableResource>(order));
+			assertEquals(3, order.size());
+			if (order.get(0) == pool.get(2)) {
+				bigFirst++;
+			}
+		}
+		// 8 chances out of 10
+		assertTrue("taken first " + bigFirst + " times", bigFirst > 700 && bigFirst < 900);
+	}
+}